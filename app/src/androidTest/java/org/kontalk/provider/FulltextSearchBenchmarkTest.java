@@ -0,0 +1,147 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.kontalk.message.TextComponent;
+import org.kontalk.provider.MyMessages.Messages;
+
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Measures full text search latency on a large corpus of messages.
+ * Uses a separate database so user data is not touched.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class FulltextSearchBenchmarkTest {
+    private static final String TAG = FulltextSearchBenchmarkTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "messages-benchmark.db";
+    private static final int CORPUS_SIZE = 500000;
+    private static final int THREADS = 200;
+    private static final int QUERIES = 50;
+
+    private static final String[] WORDS = {
+        "hello", "where", "are", "you", "tomorrow", "dinner", "meeting", "office",
+        "holiday", "picture", "train", "late", "sorry", "thanks", "birthday",
+        "weekend", "football", "movie", "call", "later", "home", "coffee",
+    };
+
+    private Context mContext;
+    private MessagesProvider.DatabaseHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new MessagesProvider.DatabaseHelper(mContext, DATABASE_NAME);
+        mDb = mHelper.getWritableDatabase();
+        // thread counters are not needed here and would slow down inserts a lot
+        mDb.execSQL("DROP TRIGGER update_thread_on_insert");
+        populate();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    private void populate() {
+        Random rnd = new Random(42);
+        SQLiteStatement stm = mDb.compileStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, timestamp, status, body_mime, body_content, body_length) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+        long start = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < CORPUS_SIZE; i++) {
+                StringBuilder text = new StringBuilder();
+                int words = 3 + rnd.nextInt(15);
+                for (int w = 0; w < words; w++)
+                    text.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+                byte[] content = text.toString().getBytes();
+
+                stm.clearBindings();
+                stm.bindLong(1, 1 + rnd.nextInt(THREADS));
+                stm.bindString(2, "benchmark-" + i);
+                stm.bindString(3, "user" + rnd.nextInt(THREADS) + "@beta.kontalk.net");
+                stm.bindLong(4, rnd.nextInt(2));
+                stm.bindLong(5, i * 1000L);
+                stm.bindLong(6, Messages.STATUS_RECEIVED);
+                stm.bindString(7, TextComponent.MIME_TYPE);
+                stm.bindBlob(8, content);
+                stm.bindLong(9, content.length);
+                stm.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+            stm.close();
+        }
+        Log.i(TAG, "inserted " + CORPUS_SIZE + " messages in " +
+            (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Test
+    public void testSearchLatency() {
+        String[] patterns = { "hol*", "coffee", "dinner tomorrow", "bi*", "\"sorry late\"" };
+        for (String pattern : patterns) {
+            long[] times = new long[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                long start = System.nanoTime();
+                Cursor c = mDb.rawQuery("SELECT fulltext.docid, " +
+                    MessagesFulltext.getSnippetColumn() + " FROM fulltext JOIN messages " +
+                    "ON messages._id = fulltext.docid WHERE fulltext MATCH ? " +
+                    "ORDER BY messages.timestamp DESC LIMIT 50", new String[] { pattern });
+                assertTrue(c.moveToFirst());
+                c.close();
+                times[i] = System.nanoTime() - start;
+            }
+
+            Arrays.sort(times);
+            Log.i(TAG, String.format(Locale.US, "%-18s p50 %7.2f ms, p90 %7.2f ms, max %7.2f ms",
+                pattern, times[QUERIES / 2] / 1e6, times[QUERIES * 9 / 10] / 1e6,
+                times[QUERIES - 1] / 1e6));
+        }
+    }
+
+}
@@ -18,6 +18,9 @@
 
 package org.kontalk.provider;
 
+import java.io.File;
+import java.io.FileOutputStream;
+
 import org.jivesoftware.smack.util.StringUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -37,6 +40,7 @@ import android.test.ProviderTestCase2;
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.SystemUtils;
 
@@ -109,6 +113,79 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         assertQueryCount(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), 0);
     }
 
+    @Test
+    public void testThreadIndex() {
+        ThreadIndex index = ThreadIndex.getInstance();
+        long version = index.getVersion();
+
+        Uri msg = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Test message for you", true, 0);
+        assertNotNull(msg);
+        long threadId = MessagesProviderClient.getThreadByMessage(getMockContext(), msg);
+        assertTrue(index.getVersion() != version);
+
+        ThreadIndex.Entry thread = index.get(threadId);
+        assertNotNull(thread);
+        assertEquals(TEST_USERID, thread.getPeer());
+        assertTrue(thread.getCount() > 0);
+        assertEquals("Test message for you", thread.getContent());
+        assertEquals(thread, index.getLatestThreads(false, 1).get(0));
+
+        MessagesProviderClient.deleteThread(getMockContext(), threadId, false);
+        assertNull(index.get(threadId));
+    }
+
+    @Test
+    public void testThreadIndexMultipleThreadsDelete() {
+        ThreadIndex index = ThreadIndex.getInstance();
+        String otherUserId = XmppStringUtils
+            .completeJidFrom(MessageUtils.sha1("+15555215556"), "prime.kontalk.net");
+
+        Uri msg1 = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "First message", true, 0);
+        MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Second message", true, 0);
+        Uri msg2 = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), otherUserId, "First message", true, 0);
+        MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), otherUserId, "Second message", true, 0);
+        long threadId1 = MessagesProviderClient.getThreadByMessage(getMockContext(), msg1);
+        long threadId2 = MessagesProviderClient.getThreadByMessage(getMockContext(), msg2);
+        int count1 = index.get(threadId1).getCount();
+        int count2 = index.get(threadId2).getCount();
+
+        // delete one message from each thread at once
+        int rows = getMockContext().getContentResolver().delete(Messages.CONTENT_URI,
+            Messages._ID + " IN (" + ContentUris.parseId(msg1) + "," +
+                ContentUris.parseId(msg2) + ")", null);
+        assertEquals(2, rows);
+        assertEquals(count1 - 1, index.get(threadId1).getCount());
+        assertEquals(count2 - 1, index.get(threadId2).getCount());
+
+        MessagesProviderClient.deleteThread(getMockContext(), threadId1, false);
+        MessagesProviderClient.deleteThread(getMockContext(), threadId2, false);
+    }
+
+    @Test
+    public void testInReplyToColumns() {
+        String msgId = MessageUtils.messageId();
+        Uri msg = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            msgId, TEST_USERID, "Test message for you", true, 0);
+        assertNotNull(msg);
+        Uri reply = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Test reply", true, ContentUris.parseId(msg));
+        assertNotNull(reply);
+
+        assertQueryValues(reply,
+            Messages.IN_REPLY_TO, String.valueOf(ContentUris.parseId(msg)),
+            Messages.IN_REPLY_TO_MESSAGE_ID, msgId,
+            Messages.IN_REPLY_TO_PEER, TEST_USERID,
+            Messages.IN_REPLY_TO_BODY_CONTENT, "Test message for you");
+
+        long threadId = MessagesProviderClient.getThreadByMessage(getMockContext(), msg);
+        MessagesProviderClient.deleteThread(getMockContext(), threadId, false);
+    }
+
     @Test
     public void testCreateGroup() {
         String groupId = StringUtils.randomString(20);
@@ -165,6 +242,35 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         assertThat(actualMembers, arrayContainingInAnyOrder(members));
     }
 
+    @Test
+    public void testMediaReleasedWithLastMessage() throws Exception {
+        File file = File.createTempFile("media", ".bin", getMockContext().getCacheDir());
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        Uri localUri = Uri.fromFile(file);
+        String hash = MediaStorage.getContentHash(getMockContext(), localUri);
+        MessagesProviderClient.addMedia(getMockContext(), hash, localUri, file.length());
+        assertEquals(localUri, MessagesProviderClient.getMedia(getMockContext(), hash));
+
+        Uri msg1 = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Test message for you", true, 0);
+        Uri msg2 = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Test message for you", true, 0);
+        MessagesProviderClient.updateMedia(getMockContext(), ContentUris.parseId(msg1), null, localUri, 3);
+        MessagesProviderClient.updateMedia(getMockContext(), ContentUris.parseId(msg2), null, localUri, 3);
+
+        // still referenced by the second message
+        MessagesProviderClient.deleteMessage(getMockContext(), ContentUris.parseId(msg1));
+        assertTrue(file.exists());
+        assertEquals(localUri, MessagesProviderClient.getMedia(getMockContext(), hash));
+
+        long threadId = MessagesProviderClient.getThreadByMessage(getMockContext(), msg2);
+        MessagesProviderClient.deleteThread(getMockContext(), threadId, false);
+        assertFalse(file.exists());
+        assertNull(MessagesProviderClient.getMedia(getMockContext(), hash));
+    }
+
     /** Tries to reproduce issue #761. */
     @Test
     public void testEmptyPeer() {
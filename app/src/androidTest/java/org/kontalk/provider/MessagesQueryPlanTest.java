@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.kontalk.provider.MyMessages.Messages;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that hot queries on the messages table don't regress to full
+ * table scans, using EXPLAIN QUERY PLAN.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessagesQueryPlanTest {
+
+    private static final String TABLE_MESSAGES = "messages";
+
+    private MessagesProvider.DatabaseHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mHelper = new MessagesProvider.DatabaseHelper(InstrumentationRegistry.getTargetContext());
+        mDb = mHelper.getReadableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    @Test
+    public void testPendingReceipts() {
+        assertNoFullScan("SELECT _id, msg_id, peer FROM " + TABLE_MESSAGES +
+            " WHERE " + MessagesProviderClient.SELECTION_PENDING_RECEIPTS +
+            " ORDER BY _id");
+    }
+
+    @Test
+    public void testPendingOutgoing() {
+        assertNoFullScan("SELECT _id FROM " + TABLE_MESSAGES +
+            " WHERE " + MessagesProviderClient.getPendingOutgoingSelection(false) +
+            " ORDER BY _id");
+        assertNoFullScan("SELECT _id FROM " + TABLE_MESSAGES +
+            " WHERE " + MessagesProviderClient.getPendingOutgoingSelection(true) +
+            " ORDER BY _id");
+    }
+
+    @Test
+    public void testMessageByServerId() {
+        assertNoFullScan("SELECT _id FROM " + TABLE_MESSAGES +
+            " WHERE " + Messages.MESSAGE_ID + " = 'test' AND " +
+            Messages.DIRECTION + " = " + Messages.DIRECTION_OUT);
+    }
+
+    @Test
+    public void testThreadUnreadCount() {
+        String plan = assertNoFullScan("SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+            " WHERE thread_id = 1 AND unread <> 0");
+        assertTrue("unread count not using a covering index: " + plan,
+            plan.contains("COVERING INDEX"));
+        plan = assertNoFullScan("SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+            " WHERE thread_id = 1 AND \"new\" <> 0");
+        assertTrue("new count not using a covering index: " + plan,
+            plan.contains("COVERING INDEX"));
+    }
+
+    @Test
+    public void testMarkThreadAsRead() {
+        assertNoFullScan("SELECT _id FROM " + TABLE_MESSAGES +
+            " WHERE " + Messages.THREAD_ID + " = 1 AND " +
+            Messages.UNREAD + " <> 0 AND " +
+            Messages.DIRECTION + " = " + Messages.DIRECTION_IN);
+    }
+
+    /** Asserts the query doesn't scan the messages table and returns the plan. */
+    private String assertNoFullScan(String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext())
+                plan.append(c.getString(detail)).append('\n');
+        }
+        finally {
+            c.close();
+        }
+
+        String result = plan.toString();
+        for (String line : result.split("\n")) {
+            assertFalse("full table scan: " + sql + "\n" + result,
+                isScan(line, TABLE_MESSAGES) && !line.contains(" USING "));
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the plan line is a scan of the given table.
+     * SQLite 3.36 dropped the "TABLE" word: "SCAN TABLE messages" became
+     * "SCAN messages".
+     */
+    private static boolean isScan(String line, String table) {
+        if (!line.startsWith("SCAN "))
+            return false;
+
+        String[] words = line.split(" ");
+        int i = 1;
+        if (words.length > 2 && words[1].equals("TABLE"))
+            i++;
+        return words.length > i && words[i].equals(table);
+    }
+
+}
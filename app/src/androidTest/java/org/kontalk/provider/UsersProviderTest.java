@@ -20,6 +20,7 @@ package org.kontalk.provider;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Date;
 
 import org.junit.After;
 import org.junit.Before;
@@ -483,6 +484,20 @@ public class UsersProviderTest extends ProviderTestCase2<UsersProvider> {
         assertTrue(Arrays.equals(publicKey.getEncoded(), originalKey.getEncoded()));
     }
 
+    @Test
+    public void testUpToDateKeys() throws IOException, PGPException {
+        byte[] keydata = Base64.decode(TEST_KEYDATA, Base64.DEFAULT);
+        Keyring.setKey(getMockContext(), TEST_USERID, keydata);
+        // same key again: nothing to write
+        assertFalse(Keyring.setKey(getMockContext(), TEST_USERID, keydata));
+        assertTrue(Keyring.getUpToDateKeys(getMockContext()).contains(TEST_USERID));
+
+        // a new fingerprint from presence makes the key stale
+        Keyring.setKey(getMockContext(), TEST_USERID,
+            "0000000000000000000000000000000000000000", new Date());
+        assertFalse(Keyring.getUpToDateKeys(getMockContext()).contains(TEST_USERID));
+    }
+
     private void assertQuery(Uri uri) {
         Cursor c = getMockContentResolver().query(uri, null, null, null, null);
         assertNotNull(c);
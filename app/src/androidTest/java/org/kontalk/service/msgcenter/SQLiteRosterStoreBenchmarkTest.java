@@ -0,0 +1,150 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.jxmpp.jid.BareJid;
+import org.jxmpp.jid.impl.JidCreate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.kontalk.util.Preferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Measures roster pushes and lookups on a large roster.
+ * Uses a separate database so user data is not touched.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SQLiteRosterStoreBenchmarkTest {
+    private static final String TAG = SQLiteRosterStoreBenchmarkTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "roster-benchmark.db";
+    private static final int ROSTER_SIZE = 2000;
+    private static final int LOOKUPS = 20000;
+
+    private Context mContext;
+    private SQLiteRosterStore mStore;
+    private String mVersion;
+    private BareJid[] mJids;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        Preferences.init(mContext);
+        // roster version is stored in preferences: don't mess with it
+        mVersion = Preferences.getRosterVersion();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+
+        mJids = new BareJid[ROSTER_SIZE];
+        for (int i = 0; i < ROSTER_SIZE; i++)
+            mJids[i] = JidCreate.bareFrom("user" + i + "@beta.kontalk.net");
+    }
+
+    @After
+    public void tearDown() {
+        mStore.onDestroy();
+        mContext.deleteDatabase(DATABASE_NAME);
+        Preferences.setRosterVersion(mVersion);
+    }
+
+    private RosterPacket.Item createItem(BareJid jid) {
+        RosterPacket.Item item = new RosterPacket.Item(jid, jid.toString());
+        item.setItemType(RosterPacket.ItemType.both);
+        return item;
+    }
+
+    @Test
+    public void testRosterPushes() throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROSTER_SIZE; i++)
+            mStore.addEntry(createItem(mJids[i]), "v" + i);
+        long push = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        mStore.flush();
+        long flush = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++)
+            assertNotNull(mStore.getEntry(mJids[i % ROSTER_SIZE]));
+        long lookup = System.nanoTime() - start;
+
+        Log.i(TAG, String.format(Locale.US,
+            "%d roster pushes: %.3f ms, flush: %.3f ms, %d lookups: %.3f ms",
+            ROSTER_SIZE, push / 1e6, flush / 1e6, LOOKUPS, lookup / 1e6));
+
+        // reopen the store: everything must have been persisted
+        mStore.onDestroy();
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+
+        start = System.nanoTime();
+        assertEquals(ROSTER_SIZE, mStore.getEntries().size());
+        long load = System.nanoTime() - start;
+        assertEquals("v" + (ROSTER_SIZE - 1), mStore.getRosterVersion());
+
+        Log.i(TAG, String.format(Locale.US, "roster load: %.3f ms", load / 1e6));
+    }
+
+    @Test
+    public void testResetAndRemove() throws Exception {
+        List<RosterPacket.Item> items = new ArrayList<>(ROSTER_SIZE);
+        for (BareJid jid : mJids)
+            items.add(createItem(jid));
+
+        long start = System.nanoTime();
+        mStore.resetEntries(items, "reset");
+        mStore.flush();
+        long reset = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROSTER_SIZE; i += 2)
+            mStore.removeEntry(mJids[i], "r" + i);
+        mStore.flush();
+        long remove = System.nanoTime() - start;
+
+        Log.i(TAG, String.format(Locale.US, "reset: %.3f ms, %d removals: %.3f ms",
+            reset / 1e6, ROSTER_SIZE / 2, remove / 1e6));
+
+        mStore.onDestroy();
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+        assertEquals(ROSTER_SIZE / 2, mStore.getEntries().size());
+        assertNull(mStore.getEntry(mJids[0]));
+        assertNotNull(mStore.getEntry(mJids[1]));
+    }
+
+}
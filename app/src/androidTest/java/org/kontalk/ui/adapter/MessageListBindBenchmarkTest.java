@@ -0,0 +1,174 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.GroupCommandComponent;
+import org.kontalk.message.TextComponent;
+import org.kontalk.provider.KontalkGroupCommands;
+import org.kontalk.provider.MyMessages.Groups;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.service.msgcenter.group.KontalkGroupController;
+import org.kontalk.util.MessageUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Measures the cost of preparing the data for a message row bind: building
+ * a message from the cursor every time against using a cached entry.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageListBindBenchmarkTest {
+    private static final String TAG = MessageListBindBenchmarkTest.class.getSimpleName();
+
+    private static final int ROWS = 200;
+    private static final int ROUNDS = 20;
+    private static final int COLUMNS = CompositeMessage.COLUMN_IN_REPLY_TO_MESSAGE_ID + 6;
+
+    private static final String PEER = "user@beta.kontalk.net";
+    private static final String GROUP_JID = KontalkGroupCommands
+        .createGroupJid("benchmark", "beta.kontalk.net");
+
+    private Context mContext;
+    private Cursor mCursor;
+    private RowSnapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+
+        String[] columns = new String[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++)
+            columns[i] = "c" + i;
+        MatrixCursor cursor = new MatrixCursor(columns, ROWS);
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            Object[] row = new Object[COLUMNS];
+            row[CompositeMessage.COLUMN_ID] = i + 1;
+            row[CompositeMessage.COLUMN_MESSAGE_ID] = "benchmark-" + i;
+            row[CompositeMessage.COLUMN_PEER] = PEER;
+            row[CompositeMessage.COLUMN_DIRECTION] = rnd.nextInt(2);
+            row[CompositeMessage.COLUMN_TIMESTAMP] = i * 60000L;
+            row[CompositeMessage.COLUMN_STATUS] = Messages.STATUS_RECEIVED;
+            row[CompositeMessage.COLUMN_GROUP_JID] = GROUP_JID;
+            row[CompositeMessage.COLUMN_GROUP_SUBJECT] = "Benchmark";
+            row[CompositeMessage.COLUMN_GROUP_TYPE] = KontalkGroupController.GROUP_TYPE;
+            row[CompositeMessage.COLUMN_GROUP_MEMBERSHIP] = Groups.MEMBERSHIP_MEMBER;
+
+            String body;
+            switch (i % 3) {
+                case 0:
+                    row[CompositeMessage.COLUMN_BODY_MIME] = GroupCommandComponent.MIME_TYPE;
+                    body = GroupCommandComponent.getAddMembersBodyContent(new String[] {
+                        "alice@beta.kontalk.net", "bob@beta.kontalk.net" });
+                    break;
+                case 1:
+                    row[CompositeMessage.COLUMN_BODY_MIME] = TextComponent.MIME_TYPE;
+                    row[CompositeMessage.COLUMN_ATTACHMENT_MIME] = "image/jpeg";
+                    row[CompositeMessage.COLUMN_ATTACHMENT_PREVIEW_PATH] = "/data/preview/" + i + ".png";
+                    row[CompositeMessage.COLUMN_ATTACHMENT_LOCAL_URI] = "file:///sdcard/Pictures/" + i + ".jpg";
+                    body = "";
+                    break;
+                default:
+                    row[CompositeMessage.COLUMN_BODY_MIME] = TextComponent.MIME_TYPE;
+                    body = "Hello, this is message number " + i;
+            }
+            row[CompositeMessage.COLUMN_BODY_CONTENT] = body.getBytes();
+            cursor.addRow(row);
+        }
+
+        mCursor = cursor;
+        mSnapshot = RowSnapshot.create(cursor, CompositeMessage.COLUMN_ID);
+    }
+
+    @Test
+    public void testBindCost() {
+        long[] uncached = new long[ROWS * ROUNDS];
+        long[] cached = new long[ROWS * ROUNDS];
+        MessageListCache cache = new MessageListCache(mContext, ROWS);
+        cache.prebuild(mCursor, mSnapshot);
+
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int i = 0; i < ROWS; i++) {
+                // what every bind used to do
+                long start = System.nanoTime();
+                mCursor.moveToPosition(i);
+                CompositeMessage msg = CompositeMessage.fromCursor(mContext, mCursor);
+                if (mCursor.moveToPrevious()) {
+                    MessageUtils.getMessageTimestamp(mCursor);
+                    MessageUtils.getMessagePeer(mCursor);
+                    MessageListEntry.getItemViewType(mCursor);
+                }
+                mCursor.moveToNext();
+                uncached[r * ROWS + i] = System.nanoTime() - start;
+                assertEquals(i + 1, msg.getDatabaseId());
+
+                start = System.nanoTime();
+                MessageListEntry entry = cache.get(mCursor, mSnapshot.getHash(i));
+                if (i > 0)
+                    cache.peek(mSnapshot.getId(i - 1), mSnapshot.getHash(i - 1));
+                cached[r * ROWS + i] = System.nanoTime() - start;
+                assertSame(entry, cache.peek(i + 1, mSnapshot.getHash(i)));
+            }
+        }
+
+        log("uncached", uncached);
+        log("cached", cached);
+    }
+
+    @Test
+    public void testPrebuildCost() {
+        long[] times = new long[ROUNDS];
+        for (int r = 0; r < ROUNDS; r++) {
+            MessageListCache cache = new MessageListCache(mContext, ROWS);
+            long start = System.nanoTime();
+            cache.prebuild(mCursor, mSnapshot);
+            times[r] = System.nanoTime() - start;
+        }
+        log("prebuild", times);
+    }
+
+    private static void log(String name, long[] times) {
+        Arrays.sort(times);
+        int count = times.length;
+        Log.i(TAG, String.format(Locale.US, "%-9s p50 %8.1f us, p90 %8.1f us, max %8.1f us",
+            name, times[count / 2] / 1e3, times[count * 9 / 10] / 1e3, times[count - 1] / 1e3));
+    }
+
+}
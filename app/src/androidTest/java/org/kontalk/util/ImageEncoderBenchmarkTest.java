@@ -0,0 +1,133 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Measures encode time and output size of images compressed with a fixed
+ * quality against images compressed within a byte budget.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ImageEncoderBenchmarkTest {
+    private static final String TAG = ImageEncoderBenchmarkTest.class.getSimpleName();
+
+    private static final int ROUNDS = 5;
+
+    private Bitmap mPicture;
+    private Bitmap mThumbnail;
+
+    @Before
+    public void setUp() {
+        mPicture = createPicture(1920, 1440);
+        mThumbnail = Bitmap.createScaledBitmap(mPicture, 512, 384, true);
+    }
+
+    @After
+    public void tearDown() {
+        mPicture.recycle();
+        mThumbnail.recycle();
+    }
+
+    @Test
+    public void testPicture() throws IOException {
+        benchmarkFixed("fixed q85", mPicture, 85);
+        benchmark("unmetered", mPicture, ImageEncoder.BUDGET_UNMETERED, 50, 85);
+        benchmark("metered", mPicture, ImageEncoder.BUDGET_METERED, 50, 85);
+        benchmark("slow", mPicture, ImageEncoder.BUDGET_SLOW, 50, 85);
+    }
+
+    @Test
+    public void testThumbnail() throws IOException {
+        benchmarkFixed("thumb q50", mThumbnail, 50);
+        benchmark("thumb 16k", mThumbnail, 16 * 1024, 20, 50);
+    }
+
+    private void benchmarkFixed(String name, Bitmap bitmap, int quality) {
+        long[] times = new long[ROUNDS];
+        int size = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            times[i] = System.nanoTime() - start;
+            size = out.size();
+        }
+        log(name, times, size);
+    }
+
+    private void benchmark(String name, Bitmap bitmap, long budget, int minQuality, int maxQuality)
+            throws IOException {
+        long[] times = new long[ROUNDS];
+        int size = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            byte[] data = ImageEncoder.compress(bitmap, Bitmap.CompressFormat.JPEG,
+                budget, minQuality, maxQuality);
+            times[i] = System.nanoTime() - start;
+            size = data.length;
+        }
+        log(name, times, size);
+    }
+
+    /** Creates a noisy gradient, which is about as hard to compress as a photo. */
+    private static Bitmap createPicture(int width, int height) {
+        Random rnd = new Random(42);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = rnd.nextInt(48);
+                pixels[y * width + x] = Color.rgb(
+                    (x * 200 / width) + noise,
+                    (y * 200 / height) + noise,
+                    ((x + y) * 100 / (width + height)) + noise);
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        assertTrue(bitmap.getWidth() == width);
+        return bitmap;
+    }
+
+    private static void log(String name, long[] times, int size) {
+        Arrays.sort(times);
+        int count = times.length;
+        Log.i(TAG, String.format(Locale.US, "%-9s p50 %8.1f ms, max %8.1f ms, %7d bytes",
+            name, times[count / 2] / 1e6, times[count - 1] / 1e6, size));
+    }
+
+}
@@ -107,6 +107,9 @@ public class Kontalk extends Application {
     /** Messages controller singleton instance. */
     private MessagesController mMessagesController;
 
+    /** Startup steps tracing. */
+    private StartupInitializer mStartup;
+
     private final SharedPreferences.OnSharedPreferenceChangeListener mPrefListener =
         new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
@@ -156,54 +159,121 @@ public class Kontalk extends Application {
     public void onCreate() {
         super.onCreate();
 
+        final StartupInitializer startup = new StartupInitializer();
+        mStartup = startup;
+
         // init preferences
         // This must be done before registering the reporting manager
         // because we need access to the reporting opt-in preference.
         // However this call will not be reported if it crashes
-        Preferences.init(this);
+        startup.run(StartupInitializer.STEP_PREFERENCES, new Runnable() {
+            @Override
+            public void run() {
+                Preferences.init(Kontalk.this);
+            }
+        });
 
         // init logging system
         // done after preferences because we need to access debug log preference
-        Log.init(this);
+        startup.run(StartupInitializer.STEP_LOG, new Runnable() {
+            @Override
+            public void run() {
+                Log.init(Kontalk.this);
+            }
+        });
 
         // register reporting manager
-        if (Preferences.isReportingEnabled(this))
-            ReportingManager.register(this);
+        startup.run(StartupInitializer.STEP_REPORTING, new Runnable() {
+            @Override
+            public void run() {
+                if (Preferences.isReportingEnabled(Kontalk.this))
+                    ReportingManager.register(Kontalk.this);
+            }
+        });
 
         // register security provider
-        SecureConnectionManager.init(this);
-        try {
-            PGP.registerProvider();
-        }
-        catch (PGP.PRNGFixException e) {
-            ReportingManager.logException(e);
-            Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
-        }
+        // only needed for network connections: they will wait for it
+        startup.runAsync(StartupInitializer.STEP_SECURITY_PROVIDER, new Runnable() {
+            @Override
+            public void run() {
+                SecureConnectionManager.init(Kontalk.this);
+            }
+        });
+
+        // PGP provider is used all over the place, it must be ready now
+        startup.run(StartupInitializer.STEP_PGP, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PGP.registerProvider();
+                }
+                catch (PGP.PRNGFixException e) {
+                    ReportingManager.logException(e);
+                    Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
+                }
+            }
+        });
 
         // init contacts
-        Contact.init(this, new Handler());
+        startup.run(StartupInitializer.STEP_CONTACTS, new Runnable() {
+            @Override
+            public void run() {
+                Contact.init(Kontalk.this, new Handler());
+            }
+        });
 
         // init notification system
         MessagingNotification.init(this);
 
         // init emoji manager
-        // FIXME this is taking a very long time
-        EmojiManager.install(new EmojiOneProvider());
+        // this takes a very long time: activities will wait for it
+        startup.runAsync(StartupInitializer.STEP_EMOJI, new Runnable() {
+            @Override
+            public void run() {
+                EmojiManager.install(new EmojiOneProvider());
+            }
+        });
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         prefs.registerOnSharedPreferenceChangeListener(mPrefListener);
 
         // TODO listen for changes to phone numbers
 
-        AccountManager am = AccountManager.get(this);
-        Account account = Authenticator.getDefaultAccount(am);
+        final AccountManager am = AccountManager.get(this);
+        final Account account = Authenticator.getDefaultAccount(am);
+        startup.run(StartupInitializer.STEP_ACCOUNT, new Runnable() {
+            @Override
+            public void run() {
+                setupAccount(am, account);
+            }
+        });
+
+        if (account != null) {
+            // update notifications from locally unread messages
+            startup.runAsync(StartupInitializer.STEP_NOTIFICATIONS, new Runnable() {
+                @Override
+                public void run() {
+                    MessagingNotification.updateMessagesNotification(Kontalk.this, false);
+                }
+            });
+        }
+
+        // enable/disable components
+        startup.runAsync(StartupInitializer.STEP_COMPONENTS, new Runnable() {
+            @Override
+            public void run() {
+                setServicesEnabled(Kontalk.this, account != null);
+            }
+        });
+
+        startup.finish();
+    }
+
+    void setupAccount(AccountManager am, Account account) {
         if (account != null) {
             if (!Authenticator.hasPersonalKey(am, account))
                 xmppUpgrade();
 
-            // update notifications from locally unread messages
-            MessagingNotification.delayedUpdateMessagesNotification(this, false);
-
             // register account change listener
             final OnAccountsUpdateListener listener = new OnAccountsUpdateListener() {
                 @Override
@@ -242,9 +312,11 @@ public class Kontalk extends Application {
             // ensure everything is cleared up
             MessagesProviderClient.deleteDatabase(Kontalk.this);
         }
+    }
 
-        // enable/disable components
-        setServicesEnabled(this, account != null);
+    /** Returns the startup initializer, for waiting on background startup steps. */
+    public StartupInitializer getStartupInitializer() {
+        return mStartup;
     }
 
     private void xmppUpgrade() {
@@ -316,6 +388,15 @@ public class Kontalk extends Application {
         return (Kontalk) context.getApplicationContext();
     }
 
+    /**
+     * Waits for the emoji manager to be installed. Must be called before
+     * inflating layouts containing emoji views.
+     */
+    public static void awaitEmoji(Context context) {
+        get(context).getStartupInitializer()
+            .awaitUninterruptibly(StartupInitializer.STEP_EMOJI);
+    }
+
     /** Enable/disable application components when account is added or removed. */
     public static void setServicesEnabled(Context context, boolean enabled) {
         PackageManager pm = context.getPackageManager();
@@ -0,0 +1,200 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+
+/**
+ * Runs application startup steps and traces how long each one takes.
+ * Steps not needed for the first frame can be run in background: code
+ * depending on them must call {@link #await} before using them.
+ * @author Daniele Ricci
+ */
+public class StartupInitializer {
+    private static final String TAG = Kontalk.TAG;
+
+    public static final String STEP_PREFERENCES = "preferences";
+    public static final String STEP_LOG = "log";
+    public static final String STEP_REPORTING = "reporting";
+    public static final String STEP_SECURITY_PROVIDER = "security-provider";
+    public static final String STEP_PGP = "pgp";
+    public static final String STEP_CONTACTS = "contacts";
+    public static final String STEP_NOTIFICATIONS = "notifications";
+    public static final String STEP_EMOJI = "emoji";
+    public static final String STEP_ACCOUNT = "account";
+    public static final String STEP_COMPONENTS = "components";
+
+    private static final int THREAD_COUNT = 2;
+    private static final int KEEPALIVE_SECONDS = 1;
+
+    /** A traced startup step. */
+    public static final class Trace {
+        public final String name;
+        /** True if the step was run on the main thread. */
+        public final boolean main;
+        /** Start time, relative to startup. */
+        public final long start;
+        public final long duration;
+
+        Trace(String name, boolean main, long start, long duration) {
+            this.name = name;
+            this.main = main;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return name + (main ? " [main]" : " [bg]") +
+                ": +" + start + " ms, " + duration + " ms";
+        }
+    }
+
+    private final long mStartTime;
+    private final List<Trace> mTraces = new ArrayList<>();
+    private final Map<String, CountDownLatch> mPending = new HashMap<>();
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Time spent on the main thread, only during {@link Kontalk#onCreate}. */
+    private long mBlockingTime = -1;
+
+    StartupInitializer() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+            KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "StartupInitializer");
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Runs a step immediately on the calling thread. */
+    void run(String name, Runnable step) {
+        trace(name, step);
+    }
+
+    /** Runs a step in background. Use {@link #await} to wait for it. */
+    void runAsync(final String name, final Runnable step) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        synchronized (mPending) {
+            mPending.put(name, latch);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    trace(name, step);
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "startup step " + name + " failed", e);
+                }
+                finally {
+                    latch.countDown();
+                }
+            }
+        });
+    }
+
+    /** Marks the end of the blocking part of startup. */
+    void finish() {
+        mBlockingTime = SystemClock.elapsedRealtime() - mStartTime;
+        Log.d(TAG, "application startup blocked main thread for " + mBlockingTime + " ms");
+    }
+
+    /**
+     * Waits for a background step to complete. Returns immediately if the
+     * step has already completed or if it was run synchronously.
+     */
+    public void await(String name) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (mPending) {
+            latch = mPending.get(name);
+        }
+
+        if (latch != null && latch.getCount() > 0) {
+            long start = SystemClock.elapsedRealtime();
+            latch.await();
+            Log.d(TAG, "waited " + (SystemClock.elapsedRealtime() - start) +
+                " ms for startup step " + name);
+        }
+    }
+
+    /** Same as {@link #await} but ignores interruptions. */
+    public void awaitUninterruptibly(String name) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                await(name);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Returns a copy of the traces of completed steps. */
+    public List<Trace> getTraces() {
+        synchronized (mTraces) {
+            return new ArrayList<>(mTraces);
+        }
+    }
+
+    /** Time the main thread was blocked by startup, or -1 if still starting up. */
+    public long getBlockingTime() {
+        return mBlockingTime;
+    }
+
+    private void trace(String name, Runnable step) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            step.run();
+        }
+        finally {
+            long end = SystemClock.elapsedRealtime();
+            Trace trace = new Trace(name, Looper.myLooper() == Looper.getMainLooper(),
+                start - mStartTime, end - start);
+            synchronized (mTraces) {
+                mTraces.add(trace);
+            }
+            Log.v(TAG, "startup: " + trace);
+        }
+    }
+
+}
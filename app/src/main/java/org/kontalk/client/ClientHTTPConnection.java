@@ -21,6 +21,7 @@ package org.kontalk.client;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.KeyManagementException;
@@ -54,7 +55,9 @@ import android.support.annotation.NonNull;
 
 import info.guardianproject.netcipher.client.TlsOnlySocketFactory;
 
+import org.kontalk.Kontalk;
 import org.kontalk.Log;
+import org.kontalk.StartupInitializer;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
@@ -150,6 +153,15 @@ public class ClientHTTPConnection {
                 IOException, KeyManagementException, UnrecoverableKeyException,
                 NoSuchProviderException {
 
+        // security provider might still be installing
+        try {
+            Kontalk.get(context).getStartupInitializer()
+                .await(StartupInitializer.STEP_SECURITY_PROVIDER);
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for security provider");
+        }
+
         // in-memory keystore
         KeyManager[] km = null;
         if (privateKey != null && certificate != null) {
@@ -57,20 +57,39 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
-    /** A simple server provider backed by a server list. */
+    /**
+     * A simple server provider backed by a server list.
+     * Servers are picked at random, or from the best to the worst if a
+     * {@link ServerSelector} is given.
+     */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
         private List<EndpointServer> mUsed;
+        private final ServerSelector mSelector;
 
         public ServerListProvider(ServerList list) {
+            this(list, null);
+        }
+
+        public ServerListProvider(ServerList list, ServerSelector selector) {
             mList = new ServerList(list.getDate(), list);
             mUsed = new LinkedList<>();
+            mSelector = selector;
+            rank();
+        }
+
+        private void rank() {
+            if (mSelector != null) {
+                List<EndpointServer> ranked = mSelector.rank(mList);
+                mList.clear();
+                mList.addAll(ranked);
+            }
         }
 
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s = (mSelector != null) ? mList.get(0) : mList.random();
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
@@ -83,6 +102,7 @@ public class ServerList extends ArrayList<EndpointServer> {
         public void reset() {
             mList.addAll(mUsed);
             mUsed.clear();
+            rank();
         }
     }
 
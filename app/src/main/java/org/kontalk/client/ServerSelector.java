@@ -0,0 +1,211 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import org.kontalk.Log;
+
+
+/**
+ * Ranks servers by connection time and failure history.
+ * Statistics are kept for every endpoint and saved in the application
+ * cache, next to the cached server list. Servers without statistics are
+ * ranked in random order, so load is still spread across servers.
+ * @author Daniele Ricci
+ */
+public class ServerSelector {
+    private static final String TAG = ServerSelector.class.getSimpleName();
+
+    /** Assumed connection time for servers we never connected to. */
+    static final long UNKNOWN_RTT = 2000;
+    /** Penalty for each recent failure. */
+    static final long FAILURE_PENALTY = 10000;
+    /** Failures are counted up to this value. */
+    private static final int MAX_FAILURES = 5;
+    /** Failures older than this are forgotten. */
+    static final long FAILURE_MEMORY = TimeUnit.HOURS.toMillis(1);
+
+    private static ServerSelector sInstance;
+
+    private final File mFile;
+    private final Map<String, Stats> mStats = new HashMap<>();
+
+    private static final class Stats {
+        /** Smoothed connection time. */
+        long rtt;
+        /** Consecutive failures. */
+        int failures;
+        long lastFailure;
+
+        long score(long now) {
+            long score = rtt > 0 ? rtt : UNKNOWN_RTT;
+            if (failures > 0 && now - lastFailure < FAILURE_MEMORY)
+                score += Math.min(failures, MAX_FAILURES) * FAILURE_PENALTY;
+            return score;
+        }
+    }
+
+    ServerSelector(File file) {
+        mFile = file;
+        load();
+    }
+
+    public static synchronized ServerSelector getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ServerSelector(new File(context.getCacheDir(), "serverstats.properties"));
+        return sInstance;
+    }
+
+    /**
+     * Records a successful connection.
+     * @param rtt time taken to connect, including TLS negotiation
+     */
+    public synchronized void reportSuccess(EndpointServer server, long rtt) {
+        Stats stats = getStats(server);
+        // exponentially weighted moving average
+        stats.rtt = stats.rtt > 0 ? (stats.rtt * 3 + rtt) / 4 : rtt;
+        stats.failures = 0;
+        save();
+    }
+
+    /** Records a failed connection attempt. */
+    public synchronized void reportFailure(EndpointServer server) {
+        Stats stats = getStats(server);
+        stats.failures++;
+        stats.lastFailure = System.currentTimeMillis();
+        save();
+    }
+
+    /** Returns the given servers ordered from the best to the worst. */
+    public List<EndpointServer> rank(Collection<EndpointServer> servers) {
+        List<EndpointServer> list = new ArrayList<>(servers);
+        // unknown servers will keep this order
+        Collections.shuffle(list);
+
+        final Map<EndpointServer, Long> scores = new HashMap<>(list.size());
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (EndpointServer server : list) {
+                Stats stats = mStats.get(server.toString());
+                scores.put(server, stats != null ? stats.score(now) : UNKNOWN_RTT);
+            }
+        }
+
+        Collections.sort(list, new Comparator<EndpointServer>() {
+            @Override
+            public int compare(EndpointServer lhs, EndpointServer rhs) {
+                long l = scores.get(lhs);
+                long r = scores.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    private Stats getStats(EndpointServer server) {
+        String key = server.toString();
+        Stats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    private void load() {
+        Properties prop = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            prop.load(in);
+        }
+        catch (IOException e) {
+            // no statistics yet
+            return;
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {
+                // ignored
+            }
+        }
+
+        for (String server : prop.stringPropertyNames()) {
+            // rtt|failures|last failure
+            String[] values = prop.getProperty(server).split("\\|");
+            try {
+                Stats stats = new Stats();
+                stats.rtt = Long.parseLong(values[0]);
+                stats.failures = Integer.parseInt(values[1]);
+                stats.lastFailure = Long.parseLong(values[2]);
+                mStats.put(server, stats);
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "invalid statistics for " + server);
+            }
+        }
+    }
+
+    private void save() {
+        Properties prop = new Properties();
+        for (Map.Entry<String, Stats> e : mStats.entrySet()) {
+            Stats stats = e.getValue();
+            prop.setProperty(e.getKey(), stats.rtt + "|" + stats.failures + "|" + stats.lastFailure);
+        }
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile);
+            prop.store(out, null);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to save server statistics", e);
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+}
@@ -160,29 +160,28 @@ public class PGP {
         }
     }
 
-    /** Creates an ECDSA/ECDH key pair. */
-    public static PGPDecryptedKeyPairRing create(Date timestamp)
-            throws NoSuchAlgorithmException, NoSuchProviderException, PGPException, InvalidAlgorithmParameterException {
-
-        KeyPairGenerator gen;
-        PGPKeyPair authKp, encryptKp, signKp;
-
-        gen = KeyPairGenerator.getInstance("RSA", PROVIDER);
+    /** Creates the RSA authentication (master) key pair. */
+    public static PGPKeyPair createAuthenticationKeyPair(Date timestamp)
+            throws NoSuchAlgorithmException, PGPException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", PROVIDER);
         gen.initialize(RSA_KEY_LENGTH);
+        return new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), timestamp);
+    }
 
-        authKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), timestamp);
-
-        gen = KeyPairGenerator.getInstance("ECDH", PROVIDER);
+    /** Creates the ECDH encryption key pair. */
+    public static PGPKeyPair createEncryptionKeyPair(Date timestamp)
+            throws NoSuchAlgorithmException, PGPException, InvalidAlgorithmParameterException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("ECDH", PROVIDER);
         gen.initialize(new ECGenParameterSpec(EC_CURVE));
+        return new JcaPGPKeyPair(PGPPublicKey.ECDH, gen.generateKeyPair(), timestamp);
+    }
 
-        encryptKp = new JcaPGPKeyPair(PGPPublicKey.ECDH, gen.generateKeyPair(), timestamp);
-
-        gen = KeyPairGenerator.getInstance("ECDSA", PROVIDER);
+    /** Creates the ECDSA signing key pair. */
+    public static PGPKeyPair createSigningKeyPair(Date timestamp)
+            throws NoSuchAlgorithmException, PGPException, InvalidAlgorithmParameterException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("ECDSA", PROVIDER);
         gen.initialize(new ECGenParameterSpec(EC_CURVE));
-
-        signKp = new JcaPGPKeyPair(PGPPublicKey.ECDSA, gen.generateKeyPair(), timestamp);
-
-        return new PGPDecryptedKeyPairRing(authKp, signKp, encryptKp);
+        return new JcaPGPKeyPair(PGPPublicKey.ECDSA, gen.generateKeyPair(), timestamp);
     }
 
     /** Creates public and secret keyring for a given keypair. */
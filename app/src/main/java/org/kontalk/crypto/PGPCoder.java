@@ -56,7 +56,6 @@ import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
-import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 
 import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
@@ -92,10 +91,14 @@ public class PGPCoder extends Coder {
 
     // either one of these two has a value
 
-    private final PGPPublicKeyRing[] mRecipients;
+    private final PGPRecipientKeys mRecipients;
     private final PGPPublicKeyRing mSender;
 
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
+        this(server, key, new PGPRecipientKeys(recipients, server.getNetwork()));
+    }
+
+    public PGPCoder(EndpointServer server, PersonalKey key, PGPRecipientKeys recipients) {
         mServer = server;
         mKey = key;
         mRecipients = recipients;
@@ -150,9 +153,7 @@ public class PGPCoder extends Coder {
             throws PGPException, IOException, SignatureException {
 
         String from = mKey.getUserId(mServer.getNetwork());
-        String[] to = new String[mRecipients.length];
-        for (int i = 0; i < to.length; i++)
-            to[i] = PGP.getUserId(PGP.getMasterKey(mRecipients[i]), mServer.getNetwork());
+        String[] to = mRecipients.getUserIds();
 
         // secure the message against the most basic attacks using Message/CPIM
         CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, data);
@@ -168,8 +169,7 @@ public class PGPCoder extends Coder {
 
         // add public key recipients
         PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+        mRecipients.addMethods(encGen);
 
         OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
 
@@ -504,8 +504,7 @@ public class PGPCoder extends Coder {
 
             // add public key recipients
             PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+            mRecipients.addMethods(encGen);
 
             OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
 
@@ -0,0 +1,74 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+
+
+/**
+ * Recipient key material resolved once for a set of public keyrings.
+ * Holds encryption subkeys and user IDs so they don't need to be looked up
+ * again for every message sent to the same recipients (e.g. a group).
+ * Instances are immutable and can be shared between {@link PGPCoder}s.
+ * @author Daniele Ricci
+ */
+public class PGPRecipientKeys {
+
+    private final PGPPublicKeyRing[] mKeyrings;
+    private final PGPPublicKey[] mEncryptionKeys;
+    private final String[] mUserIds;
+
+    public PGPRecipientKeys(PGPPublicKeyRing[] keyrings, String network) {
+        mKeyrings = keyrings;
+        mEncryptionKeys = new PGPPublicKey[keyrings.length];
+        mUserIds = new String[keyrings.length];
+        for (int i = 0; i < keyrings.length; i++) {
+            PGPPublicKey encryptionKey = PGP.getEncryptionKey(keyrings[i]);
+            if (encryptionKey == null)
+                throw new IllegalArgumentException("no encryption key found in keyring");
+
+            mEncryptionKeys[i] = encryptionKey;
+            mUserIds[i] = PGP.getUserId(PGP.getMasterKey(keyrings[i]), network);
+        }
+    }
+
+    public int size() {
+        return mKeyrings.length;
+    }
+
+    public PGPPublicKeyRing[] getKeyrings() {
+        return mKeyrings;
+    }
+
+    /** Recipient user IDs matching the network, in keyring order. */
+    public String[] getUserIds() {
+        return mUserIds;
+    }
+
+    /** Adds a public key encryption method for every recipient. */
+    public void addMethods(PGPEncryptedDataGenerator generator) {
+        // a new session key is still generated and encrypted for every message
+        for (PGPPublicKey key : mEncryptionKeys)
+            generator.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key));
+    }
+
+}
@@ -83,7 +83,7 @@ public class PersonalKey implements Parcelable {
         mBridgeCert = bridgeCert;
     }
 
-    private PersonalKey(PGPKeyPair authKp, PGPKeyPair signKp, PGPKeyPair encryptKp, X509Certificate bridgeCert) {
+    PersonalKey(PGPKeyPair authKp, PGPKeyPair signKp, PGPKeyPair encryptKp, X509Certificate bridgeCert) {
         this(new PGPDecryptedKeyPairRing(authKp, signKp, encryptKp), bridgeCert);
     }
 
@@ -389,14 +389,12 @@ public class PersonalKey implements Parcelable {
         throw new PGPException("invalid key data");
     }
 
+    /**
+     * Generates a new key.
+     * @see PersonalKeyGenerator
+     */
     public static PersonalKey create(Date timestamp) throws IOException {
-        try {
-            PGPDecryptedKeyPairRing kp = PGP.create(timestamp);
-            return new PersonalKey(kp, null);
-        }
-        catch (Exception e) {
-            throw new IOException("unable to generate keypair", e);
-        }
+        return new PersonalKeyGenerator(timestamp).generate(null);
     }
 
     /**
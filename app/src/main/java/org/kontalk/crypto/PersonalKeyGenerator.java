@@ -0,0 +1,165 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.spongycastle.openpgp.PGPKeyPair;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+
+
+/**
+ * Generates the key pairs of a {@link PersonalKey} in parallel.
+ * The authentication, signing and encryption key pairs are independent of
+ * each other, so each one is generated by a thread of a shared pool.
+ * @author Daniele Ricci
+ */
+public class PersonalKeyGenerator {
+
+    /** Number of key pairs to be generated. */
+    public static final int STEPS = 3;
+
+    private static final int KEEPALIVE_SECONDS = 10;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    public interface ProgressListener {
+        /**
+         * Called from the generating thread every time a key pair is ready.
+         * @param completed number of key pairs generated so far
+         * @param total total number of key pairs
+         */
+        void onProgress(int completed, int total);
+    }
+
+    private final Date mTimestamp;
+
+    private Future<PGPKeyPair> mAuthKey;
+    private Future<PGPKeyPair> mSignKey;
+    private Future<PGPKeyPair> mEncryptKey;
+    private boolean mCanceled;
+
+    public PersonalKeyGenerator(Date timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Generates the key, waiting for all key pairs to be ready.
+     * Can be called only once.
+     * @throws CancellationException if {@link #cancel()} was called
+     */
+    public PersonalKey generate(@Nullable ProgressListener listener) throws IOException {
+        CompletionService<PGPKeyPair> service = new ExecutorCompletionService<>(getExecutor());
+
+        synchronized (this) {
+            if (mCanceled)
+                throw new CancellationException();
+
+            // RSA is the slowest, start it first
+            mAuthKey = service.submit(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws Exception {
+                    return PGP.createAuthenticationKeyPair(mTimestamp);
+                }
+            });
+            mSignKey = service.submit(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws Exception {
+                    return PGP.createSigningKeyPair(mTimestamp);
+                }
+            });
+            mEncryptKey = service.submit(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws Exception {
+                    return PGP.createEncryptionKeyPair(mTimestamp);
+                }
+            });
+        }
+
+        try {
+            for (int i = 1; i <= STEPS; i++) {
+                // cancelled tasks are completed too and will throw here
+                service.take().get();
+                if (listener != null)
+                    listener.onProgress(i, STEPS);
+            }
+
+            return new PersonalKey(mAuthKey.get(), mSignKey.get(), mEncryptKey.get(), null);
+        }
+        catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        }
+        catch (ExecutionException e) {
+            cancel();
+            throw new IOException("unable to generate keypair", e.getCause());
+        }
+    }
+
+    /**
+     * Cancels key generation. The waiting thread will be released
+     * immediately, although key pairs being generated will still
+     * keep their thread busy until they are done.
+     */
+    public synchronized void cancel() {
+        mCanceled = true;
+        if (mAuthKey != null) {
+            mAuthKey.cancel(true);
+            mSignKey.cancel(true);
+            mEncryptKey.cancel(true);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(STEPS, STEPS,
+                KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "KeyPairGenerator");
+                    }
+                });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.Log;
+import org.kontalk.data.Contact.ContactCallback;
+
+
+/**
+ * Loads contact avatars on a small bounded thread pool.
+ * Most recent requests are served first, so the rows currently on screen
+ * win over rows that were scrolled past during a fling. Requests for the
+ * same user are merged and a callback asking for a new contact
+ * automatically cancels its previous request (recycled list rows).
+ * Decoded avatars are kept in a memory-bounded cache that outlives
+ * the {@link Contact} objects.
+ * @author Daniele Ricci
+ */
+class AvatarLoader {
+    private static final String TAG = Contact.TAG;
+
+    private static final int THREAD_COUNT = 2;
+    private static final int KEEPALIVE_SECONDS = 10;
+
+    /** Upper bound for the decoded avatars cache. */
+    private static final int MAX_CACHE_SIZE = 8 * 1024 * 1024;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final LruCache<String, Bitmap> mCache;
+
+    /** Pending requests by cache key. */
+    private final Map<String, Request> mPending = new HashMap<>();
+    /** Pending requests by callback, for cancellation. */
+    private final Map<ContactCallback, Request> mCallbacks = new HashMap<>();
+
+    private long mSequence;
+
+    AvatarLoader() {
+        int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_CACHE_SIZE);
+        mCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+            KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new LoaderThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    Bitmap getCached(String key) {
+        return mCache.get(key);
+    }
+
+    void putCached(String key, Bitmap bitmap) {
+        mCache.put(key, bitmap);
+    }
+
+    void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Queues an avatar load for the given contact. The callback will be
+     * called from a loader thread, unless it is cancelled before.
+     */
+    void load(Context context, Contact contact, ContactCallback callback) {
+        String key = contact.getAvatarKey();
+        synchronized (this) {
+            Request previous = mCallbacks.get(callback);
+            if (previous != null) {
+                if (previous.key.equals(key)) {
+                    // already waiting for this avatar, just bump priority
+                    previous.targets.put(callback, contact);
+                    reschedule(previous);
+                    return;
+                }
+                cancelLocked(callback, previous);
+            }
+
+            Request request = mPending.get(key);
+            if (request == null) {
+                request = new Request(context.getApplicationContext(), key);
+                request.sequence = ++mSequence;
+                mPending.put(key, request);
+                request.targets.put(callback, contact);
+                mCallbacks.put(callback, request);
+                mExecutor.execute(request);
+            }
+            else {
+                request.targets.put(callback, contact);
+                mCallbacks.put(callback, request);
+                reschedule(request);
+            }
+        }
+    }
+
+    /** Cancels any pending avatar load for the given callback. */
+    synchronized void cancel(ContactCallback callback) {
+        Request request = mCallbacks.get(callback);
+        if (request != null)
+            cancelLocked(callback, request);
+    }
+
+    private void cancelLocked(ContactCallback callback, Request request) {
+        mCallbacks.remove(callback);
+        request.targets.remove(callback);
+        if (request.targets.isEmpty() && mExecutor.remove(request)) {
+            // not started yet: nobody is waiting for it anymore
+            mPending.remove(request.key);
+        }
+    }
+
+    /** Moves a queued request to the head of the queue. */
+    private void reschedule(Request request) {
+        if (mExecutor.remove(request)) {
+            request.sequence = ++mSequence;
+            mExecutor.execute(request);
+        }
+    }
+
+    private final class Request implements Runnable, Comparable<Request> {
+        final Context context;
+        final String key;
+        final Map<ContactCallback, Contact> targets = new LinkedHashMap<>(2);
+        long sequence;
+
+        Request(Context context, String key) {
+            this.context = context;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            Contact contact;
+            synchronized (AvatarLoader.this) {
+                if (targets.isEmpty()) {
+                    mPending.remove(key);
+                    return;
+                }
+                contact = targets.values().iterator().next();
+            }
+
+            try {
+                // this will populate the cache for any other contact object
+                contact.getAvatar(context);
+            }
+            catch (Exception e) {
+                // do not throw any exception while loading
+                Log.w(TAG, "error while loading avatar", e);
+            }
+
+            Map<ContactCallback, Contact> callbacks;
+            synchronized (AvatarLoader.this) {
+                mPending.remove(key);
+                callbacks = new LinkedHashMap<>(targets);
+                for (ContactCallback callback : callbacks.keySet()) {
+                    if (mCallbacks.get(callback) == this)
+                        mCallbacks.remove(callback);
+                }
+                targets.clear();
+            }
+
+            for (Map.Entry<ContactCallback, Contact> target : callbacks.entrySet()) {
+                try {
+                    Drawable avatar = target.getValue().getAvatar(context);
+                    target.getKey().avatarLoaded(target.getValue(), avatar);
+                }
+                catch (Exception e) {
+                    Log.w(TAG, "error while loading avatar", e);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            // newest requests first
+            return sequence > another.sequence ? -1 :
+                (sequence < another.sequence ? 1 : 0);
+        }
+    }
+
+    private static final class LoaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "AvatarLoader-" + mCount.getAndIncrement());
+        }
+    }
+
+    /** Decodes an avatar subsampled to be at least <code>size</code> pixels wide. */
+    static Bitmap decodeAvatar(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = 1;
+        int minSide = Math.min(options.outWidth, options.outHeight);
+        while (minSide / (sampleSize * 2) >= size)
+            sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+}
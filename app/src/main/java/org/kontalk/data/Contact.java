@@ -185,6 +185,13 @@ public class Contact {
 
     private final static ContactCache cache = new ContactCache();
 
+    /** Avatar loader and decoded avatars cache. */
+    private final static AvatarLoader sAvatarLoader = new AvatarLoader();
+    /** Bumped every time system contacts (and their photos) may have changed. */
+    private static volatile int sAvatarVersion;
+    /** Incremented every time contact information is invalidated. */
+    private static volatile int sVersion;
+
     /** Stores volatile and connection-time information about a contact. */
     private static final class ContactState {
         private final String mJID;
@@ -407,50 +414,65 @@ public class Contact {
 
     public void getAvatarAsync(final Context context, final ContactCallback callback) {
         if (mAvatar != null) {
+            sAvatarLoader.cancel(callback);
             callback.avatarLoaded(this, mAvatar);
         }
         else {
             // start async load
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        Drawable avatar = getAvatar(context);
-                        callback.avatarLoaded(Contact.this, avatar);
-                    }
-                    catch (Exception e) {
-                        // do not throw any exception while loading
-                        Log.w(TAG, "error while loading avatar", e);
-                    }
-                }
-            }).start();
+            sAvatarLoader.load(context, this, callback);
         }
     }
 
+    /** Cancels any pending asynchronous avatar load for the given callback. */
+    public static void cancelAvatarAsync(ContactCallback callback) {
+        sAvatarLoader.cancel(callback);
+    }
+
+    /**
+     * Key for the decoded avatars cache. Includes everything the avatar
+     * depends on: the system contact it comes from, the initial for the
+     * generated letter avatar and the current avatars version.
+     */
+    String getAvatarKey() {
+        String letter = (mName != null && mName.length() > 0) ? mName : mJID;
+        return mJID + '#' + mContactId + '#' + letter.charAt(0) + '#' + sAvatarVersion;
+    }
+
     public synchronized Drawable getAvatar(Context context) {
         if (mAvatar == null) {
-            Bitmap b = loadAvatarBitmap(context);
-            if (b != null) {
-                mAvatar = new BitmapDrawable(context.getResources(), b);
+            String key = getAvatarKey();
+            Bitmap b = sAvatarLoader.getCached(key);
+            if (b == null) {
+                int size = context.getResources().getDimensionPixelSize(R.dimen.avatar_size);
+                b = loadAvatarBitmap(context, size);
+                if (b == null)
+                    b = MessageUtils.drawableToBitmap(generateRandomAvatar(context, this));
+                sAvatarLoader.putCached(key, b);
             }
+            mAvatar = new BitmapDrawable(context.getResources(), b);
         }
 
-        if (mAvatar == null)
-            mAvatar = generateRandomAvatar(context, this);
-
         return mAvatar;
     }
 
-    private synchronized Bitmap loadAvatarBitmap(Context context) {
+    private synchronized byte[] loadAvatarData(Context context) {
         if (mAvatarData == null) {
             Uri uri = getUri();
             if (uri != null)
                 mAvatarData = loadAvatarData(context, uri);
         }
+        return mAvatarData;
+    }
 
-        if (mAvatarData != null)
-            return BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
+    /** Loads the avatar subsampled for the given size. */
+    private Bitmap loadAvatarBitmap(Context context, int size) {
+        byte[] data = loadAvatarData(context);
+        return data != null ? AvatarLoader.decodeAvatar(data, size) : null;
+    }
 
-        return null;
+    private Bitmap loadAvatarBitmap(Context context) {
+        byte[] data = loadAvatarData(context);
+        return data != null ? BitmapFactory.decodeByteArray(data, 0, data.length) : null;
     }
 
     /**
@@ -507,11 +529,16 @@ public class Contact {
 
     public static void invalidate(String userId) {
         cache.remove(userId);
+        sVersion++;
         fireContactInvalidated(userId);
     }
 
     public static void invalidate() {
         cache.evictAll();
+        sVersion++;
+        // photos might have changed too
+        sAvatarVersion++;
+        sAvatarLoader.evictAll();
         fireContactInvalidated(null);
     }
 
@@ -535,6 +562,11 @@ public class Contact {
         clearState(userId);
     }
 
+    /** Returns a number that changes every time contacts are invalidated. */
+    public static int getVersion() {
+        return sVersion;
+    }
+
     public static void registerContactChangeListener(ContactChangeListener l) {
         sListeners.add(l);
     }
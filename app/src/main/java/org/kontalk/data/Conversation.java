@@ -187,6 +187,17 @@ public class Conversation {
         return cursor.getString(COLUMN_PEER);
     }
 
+    /**
+     * Returns the values of the current thread row. Two rows with the same
+     * state will produce identical conversation objects.
+     */
+    public static String[] getRowState(Cursor cursor) {
+        String[] state = new String[ALL_THREADS_PROJECTION.length];
+        for (int i = 0; i < state.length; i++)
+            state[i] = cursor.getString(i);
+        return state;
+    }
+
     /** Holder for thread delete information. */
     public static final class DeleteThreadHolder {
         long id;
@@ -0,0 +1,265 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import org.kontalk.Log;
+import org.kontalk.reporting.ReportingManager;
+import org.kontalk.util.LatencyStats;
+
+
+/**
+ * Runs full text searches in background.
+ * Queries are debounced while the user is typing and a new query cancels
+ * the previous one. Results are delivered in pages, with snippets and
+ * thread names already computed. Must be used from the main thread.
+ * @author Daniele Ricci
+ */
+public class SearchEngine {
+    private static final String TAG = SearchEngine.class.getSimpleName();
+
+    /** Results for each page. */
+    public static final int PAGE_SIZE = 50;
+
+    /** Delay before starting a query while the user is typing. */
+    private static final int DEBOUNCE_DELAY = 300;
+
+    private static final int KEEPALIVE_SECONDS = 10;
+
+    /** Latency of the first page of every query, for all engines. */
+    private static final LatencyStats sLatency = new LatencyStats(100);
+
+    public interface Listener {
+        /**
+         * Called on the main thread with a page of results.
+         * @param first true if this is the first page of a new query
+         * @param hasMore true if more results can be requested with {@link #loadMore()}
+         */
+        void onSearchResults(String query, List<SearchItem> items, boolean first, boolean hasMore);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor;
+
+    /** Thread display names, used only by the executor thread. */
+    private final Map<Long, String> mNames = new HashMap<>();
+
+    private Task mCurrent;
+    private Runnable mPending;
+
+    public SearchEngine(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "SearchEngine");
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts a new search, cancelling any previous one.
+     * @param debounce true to wait for further input before starting the query
+     */
+    public void search(final String query, boolean debounce) {
+        cancel();
+
+        if (TextUtils.isEmpty(query)) {
+            List<SearchItem> empty = Collections.emptyList();
+            mListener.onSearchResults(query, empty, true, false);
+            return;
+        }
+
+        mPending = new Runnable() {
+            @Override
+            public void run() {
+                mPending = null;
+                start(new Task(query, 0));
+            }
+        };
+        if (debounce)
+            mHandler.postDelayed(mPending, DEBOUNCE_DELAY);
+        else
+            mPending.run();
+    }
+
+    /**
+     * Requests the next page of the current search.
+     * Does nothing if a page is already being loaded or there are no more results.
+     */
+    public void loadMore() {
+        Task task = mCurrent;
+        if (task != null && task.done && task.hasMore) {
+            start(new Task(task.query, task.offset + PAGE_SIZE));
+        }
+    }
+
+    /** Cancels the current search. */
+    public void cancel() {
+        if (mPending != null) {
+            mHandler.removeCallbacks(mPending);
+            mPending = null;
+        }
+        if (mCurrent != null) {
+            mCurrent.signal.cancel();
+            mCurrent = null;
+        }
+    }
+
+    /** Cancels the current search and releases resources. */
+    public void close() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    public static LatencyStats getLatencyStats() {
+        return sLatency;
+    }
+
+    private void start(Task task) {
+        if (task.offset == 0) {
+            // a new query: names might have changed in the meantime
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mNames.clear();
+                }
+            });
+        }
+        mCurrent = task;
+        mExecutor.execute(task);
+    }
+
+    void deliver(Task task, List<SearchItem> items) {
+        if (task != mCurrent)
+            return;
+
+        task.done = true;
+        task.hasMore = items.size() == PAGE_SIZE;
+
+        if (task.offset == 0) {
+            long latency = SystemClock.elapsedRealtime() - task.started;
+            sLatency.add(latency);
+            Log.d(TAG, "search took " + latency + " ms, " + sLatency);
+        }
+
+        mListener.onSearchResults(task.query, items, task.offset == 0, task.hasMore);
+    }
+
+    /** Loads a page of results and builds the search items. */
+    private final class Task implements Runnable {
+        final String query;
+        final int offset;
+        final CancellationSignal signal = new CancellationSignal();
+        final long started = SystemClock.elapsedRealtime();
+
+        /** Used by the main thread only. */
+        boolean done;
+        boolean hasMore;
+
+        Task(String query, int offset) {
+            this.query = query;
+            this.offset = offset;
+        }
+
+        @Override
+        public void run() {
+            if (signal.isCanceled())
+                return;
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final List<SearchItem> items = new ArrayList<>(PAGE_SIZE);
+            Cursor c = null;
+            try {
+                c = SearchItem.query(mContext, query, offset, PAGE_SIZE, signal);
+                if (c == null)
+                    return;
+
+                while (c.moveToNext()) {
+                    signal.throwIfCanceled();
+
+                    long threadId = SearchItem.getThreadId(c);
+                    String name;
+                    if (mNames.containsKey(threadId)) {
+                        name = mNames.get(threadId);
+                    }
+                    else {
+                        name = SearchItem.loadUserDisplayName(mContext, threadId);
+                        mNames.put(threadId, name);
+                    }
+
+                    items.add(SearchItem.fromCursor(c, name));
+                }
+            }
+            catch (OperationCanceledException e) {
+                // superseded by another query
+                return;
+            }
+            catch (SQLiteException e) {
+                // invalid query syntax will end up here too
+                Log.w(TAG, "search error", e);
+                ReportingManager.logException(e);
+            }
+            finally {
+                if (c != null)
+                    c.close();
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(Task.this, items);
+                }
+            });
+        }
+    }
+
+}
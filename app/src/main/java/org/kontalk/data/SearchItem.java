@@ -20,34 +20,40 @@ package org.kontalk.data;
 
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
-import org.kontalk.reporting.ReportingManager;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
+import android.graphics.Typeface;
+import android.support.v4.content.ContentResolverCompat;
+import android.support.v4.os.CancellationSignal;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 
 
 /**
  * A message item found by a search.
+ * All display data is computed when the item is created.
  * @author Daniele Ricci
  */
 public class SearchItem {
     private static final String[] SEARCH_PROJECTION = {
-        Fulltext._ID + " AS " + Messages._ID,
+        Messages._ID,
         Fulltext.THREAD_ID,
-        Fulltext.CONTENT
+        Fulltext.CONTENT,
+        Fulltext.SNIPPET,
     };
 
     private final long mId;
     private final long mThreadId;
-    private final String mText;
-    private final Conversation mConversation;
+    private final String mUserDisplayName;
+    private final CharSequence mText;
 
-    private SearchItem(Context context, long id, long threadId, String text) {
+    private SearchItem(long id, long threadId, String userDisplayName, CharSequence text) {
         mId = id;
         mThreadId = threadId;
+        mUserDisplayName = userDisplayName;
         mText = text;
-        mConversation = Conversation.loadFromId(context, threadId);
     }
 
     public long getMessageId() {
@@ -59,44 +65,86 @@ public class SearchItem {
     }
 
     public String getUserDisplayName() {
-        if (mConversation != null) {
-            if (mConversation.isGroupChat()) {
-                return mConversation.getGroupSubject();
+        return mUserDisplayName;
+    }
+
+    /** Returns the matching snippet with highlighted matches, or the whole text. */
+    public CharSequence getText() {
+        return mText;
+    }
+
+    public static long getThreadId(Cursor cursor) {
+        return cursor.getLong(1);
+    }
+
+    /**
+     * Creates an item from a search cursor.
+     * @param userDisplayName as returned by {@link #loadUserDisplayName}
+     */
+    public static SearchItem fromCursor(Cursor cursor, String userDisplayName) {
+        long id = cursor.getLong(0);
+        long threadId = cursor.getLong(1);
+        String text = cursor.getString(2);
+        String snippet = cursor.getString(3);
+        return new SearchItem(id, threadId, userDisplayName,
+            snippet != null ? highlight(snippet) : text);
+    }
+
+    /** Returns the name to display for results from the given thread. */
+    public static String loadUserDisplayName(Context context, long threadId) {
+        Conversation conv = Conversation.loadFromId(context, threadId);
+        if (conv != null) {
+            if (conv.isGroupChat()) {
+                return conv.getGroupSubject();
             }
             else {
-                final Contact contact = mConversation.getContact();
+                final Contact contact = conv.getContact();
                 String name;
                 if (contact != null)
                     name = contact.getName() + " <" + contact.getNumber() + ">";
                 else
-                    name = mConversation.getRecipient();
+                    name = conv.getRecipient();
                 return name;
             }
         }
         return null;
     }
 
-    public String getText() {
-        return mText;
-    }
-
-    public static SearchItem fromCursor(Context context, Cursor cursor) {
-        long id = cursor.getLong(0);
-        long threadId = cursor.getLong(1);
-        String text = cursor.getString(2);
-        return new SearchItem(context, id, threadId, text);
+    /** Converts snippet highlight markers to bold spans. */
+    private static CharSequence highlight(String snippet) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        int start = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == Fulltext.SNIPPET_START) {
+                start = text.length();
+            }
+            else if (c == Fulltext.SNIPPET_END) {
+                if (start >= 0) {
+                    text.setSpan(new StyleSpan(Typeface.BOLD), start, text.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    start = -1;
+                }
+            }
+            else {
+                text.append(c);
+            }
+        }
+        return text;
     }
 
-    public static Cursor query(Context context, String query) {
-        try {
-            // TODO enhanced queries?
-            return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query + "*").build(),
-                SEARCH_PROJECTION, null, null, null);
-        }
-        catch (SQLiteException e) {
-            ReportingManager.logException(e);
-            return null;
-        }
+    /**
+     * Queries a page of search results.
+     * @throws android.support.v4.os.OperationCanceledException if the query was cancelled
+     */
+    public static Cursor query(Context context, String query, int offset, int count,
+            CancellationSignal signal) {
+        // TODO enhanced queries?
+        return ContentResolverCompat.query(context.getContentResolver(),
+            Fulltext.CONTENT_URI.buildUpon()
+                .appendQueryParameter("pattern", query + "*")
+                .appendQueryParameter("limit", offset + "," + count)
+                .build(),
+            SEARCH_PROJECTION, null, null, null, signal);
     }
 }
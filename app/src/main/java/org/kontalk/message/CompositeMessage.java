@@ -92,6 +92,12 @@ public class CompositeMessage {
         Groups.SUBJECT,
         Groups.GROUP_TYPE,
         Groups.MEMBERSHIP,
+        Messages.IN_REPLY_TO_MESSAGE_ID,
+        Messages.IN_REPLY_TO_PEER,
+        Messages.IN_REPLY_TO_DIRECTION,
+        Messages.IN_REPLY_TO_TIMESTAMP,
+        Messages.IN_REPLY_TO_BODY_MIME,
+        Messages.IN_REPLY_TO_BODY_CONTENT,
     };
 
     // these indexes matches MESSAGE_LIST_PROJECTION
@@ -124,6 +130,8 @@ public class CompositeMessage {
     public static final int COLUMN_GROUP_SUBJECT = 26;
     public static final int COLUMN_GROUP_TYPE = 27;
     public static final int COLUMN_GROUP_MEMBERSHIP = 28;
+    /** First of the referenced message columns, see {@link ReferencedMessage#fromReplyColumns}. */
+    public static final int COLUMN_IN_REPLY_TO_MESSAGE_ID = 29;
 
     public static final String MSG_ID = "org.kontalk.message.id";
     public static final String MSG_SERVER_ID = "org.kontalk.message.serverId";
@@ -455,8 +463,9 @@ public class CompositeMessage {
             // in reply to
             long inReplyToId = c.getLong(COLUMN_IN_REPLY_TO);
             if (inReplyToId > 0) {
-                // load the referenced message
-                ReferencedMessage referencedMsg = ReferencedMessage.load(mContext, inReplyToId);
+                // referenced message was loaded by the same query
+                ReferencedMessage referencedMsg = ReferencedMessage
+                    .fromReplyColumns(c, inReplyToId, COLUMN_IN_REPLY_TO_MESSAGE_ID);
                 // a null message is allowed, meaning that it was not found
                 addComponent(new InReplyToComponent(referencedMsg));
             }
@@ -96,22 +96,42 @@ public class ReferencedMessage {
     }
 
     private static ReferencedMessage fromCursor(Cursor c) {
-        String mime = c.getString(COLUMN_BODY_MIME);
+        return fromCursor(c, c.getLong(COLUMN_ID), COLUMN_MESSAGE_ID);
+    }
+
+    /**
+     * Creates a referenced message from columns in the same order as
+     * {@link #MESSAGE_PROJECTION}, starting from the message ID.
+     */
+    private static ReferencedMessage fromCursor(Cursor c, long id, int firstColumn) {
+        int offset = firstColumn - COLUMN_MESSAGE_ID;
+        String mime = c.getString(COLUMN_BODY_MIME + offset);
         if (!TextComponent.supportsMimeType(mime))
             throw new IllegalArgumentException("Only text messages are supported");
 
-        long id = c.getLong(COLUMN_ID);
-        String msgId = c.getString(COLUMN_MESSAGE_ID);
-        String peer = c.getString(COLUMN_PEER);
-        int direction = c.getInt(COLUMN_DIRECTION);
-        long timestamp = c.getLong(COLUMN_TIMESTAMP);
-        byte[] body = c.getBlob(COLUMN_BODY_CONTENT);
+        String msgId = c.getString(COLUMN_MESSAGE_ID + offset);
+        String peer = c.getString(COLUMN_PEER + offset);
+        int direction = c.getInt(COLUMN_DIRECTION + offset);
+        long timestamp = c.getLong(COLUMN_TIMESTAMP + offset);
+        byte[] body = c.getBlob(COLUMN_BODY_CONTENT + offset);
 
         // remove trailing zero
         String bodyText = MessageUtils.toString(body);
         return new ReferencedMessage(id, msgId, peer, direction, timestamp, bodyText);
     }
 
+    /**
+     * Creates the message referenced by a message list row, from the
+     * columns joined by the provider (see {@link Messages#IN_REPLY_TO_MESSAGE_ID}).
+     * @param id the referenced message database ID
+     * @param firstColumn index of the {@link Messages#IN_REPLY_TO_MESSAGE_ID} column,
+     *                    followed by peer, direction, timestamp, body mime and body content
+     * @return the message or null if it was not found
+     */
+    public static ReferencedMessage fromReplyColumns(Cursor c, long id, int firstColumn) {
+        return c.isNull(firstColumn) ? null : fromCursor(c, id, firstColumn);
+    }
+
     public static ReferencedMessage load(Context context, long id) {
         Cursor c = null;
         try {
@@ -0,0 +1,147 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import android.support.v4.util.LruCache;
+
+import org.kontalk.crypto.PGPRecipientKeys;
+
+
+/**
+ * Cache of resolved recipient key material for group encryption.
+ * Entries are keyed by group JID and a hash of the membership, so a
+ * membership change automatically misses the cache. Entries containing a
+ * user are dropped when that user's key or trust level changes.
+ * @author Daniele Ricci
+ */
+class GroupEncryptionCache {
+    private static final int MAX_ENTRIES = 10;
+
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_ENTRIES);
+
+    /**
+     * Incremented on every invalidation, so keys loaded while an
+     * invalidation was happening will not be cached.
+     */
+    private long mGeneration;
+
+    /** Resolves recipient key material on a cache miss. */
+    interface Loader {
+        PGPRecipientKeys load(String[] sortedMembers);
+    }
+
+    private static final class Entry {
+        final String groupJid;
+        final String network;
+        final String[] members;
+        final PGPRecipientKeys keys;
+
+        Entry(String groupJid, String network, String[] members, PGPRecipientKeys keys) {
+            this.groupJid = groupJid;
+            this.network = network;
+            this.members = members;
+            this.keys = keys;
+        }
+
+        boolean contains(String jid) {
+            return Arrays.binarySearch(members, jid) >= 0;
+        }
+    }
+
+    /** Returns a sorted copy of the given recipients. */
+    static String[] sortMembers(String[] recipients) {
+        String[] members = Arrays.copyOf(recipients, recipients.length);
+        Arrays.sort(members);
+        return members;
+    }
+
+    private static String buildKey(String groupJid, String[] sortedMembers) {
+        return groupJid + '#' + Arrays.hashCode(sortedMembers);
+    }
+
+    /** Returns the cached keys for the given group membership, or null. */
+    public synchronized PGPRecipientKeys get(String groupJid, String network, String[] sortedMembers) {
+        Entry e = mCache.get(buildKey(groupJid, sortedMembers));
+        // hash collisions are unlikely but possible
+        return e != null && e.network.equals(network) &&
+            Arrays.equals(e.members, sortedMembers) ? e.keys : null;
+    }
+
+    /**
+     * Returns the cached keys for the given group membership, loading and
+     * caching them if needed. The loader is called outside the lock; the
+     * loaded keys are not cached if an invalidation happened meanwhile.
+     */
+    public PGPRecipientKeys get(String groupJid, String network, String[] sortedMembers, Loader loader) {
+        PGPRecipientKeys keys;
+        long generation;
+        synchronized (this) {
+            keys = get(groupJid, network, sortedMembers);
+            generation = mGeneration;
+        }
+
+        if (keys == null) {
+            keys = loader.load(sortedMembers);
+            synchronized (this) {
+                if (generation == mGeneration)
+                    put(groupJid, network, sortedMembers, keys);
+            }
+        }
+        return keys;
+    }
+
+    public synchronized void put(String groupJid, String network, String[] sortedMembers, PGPRecipientKeys keys) {
+        mCache.put(buildKey(groupJid, sortedMembers), new Entry(groupJid, network, sortedMembers, keys));
+    }
+
+    /** Drops every entry for the given group. */
+    public synchronized void invalidateGroup(String groupJid) {
+        mGeneration++;
+        for (Map.Entry<String, Entry> e : mCache.snapshot().entrySet()) {
+            if (e.getValue().groupJid.equals(groupJid))
+                mCache.remove(e.getKey());
+        }
+    }
+
+    /** Drops every entry having the given user as a recipient. */
+    public synchronized void invalidateUser(String jid) {
+        mGeneration++;
+        for (Map.Entry<String, Entry> e : mCache.snapshot().entrySet()) {
+            if (e.getValue().contains(jid))
+                mCache.remove(e.getKey());
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    public synchronized int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public synchronized int missCount() {
+        return mCache.missCount();
+    }
+
+}
@@ -19,10 +19,13 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
@@ -38,6 +41,7 @@ import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PGPRecipientKeys;
 import org.kontalk.crypto.PersonalKey;
 
 
@@ -54,11 +58,37 @@ public class Keyring {
     @VisibleForTesting
     static final String VALUE_AUTOTRUST = "<autotrust>";
 
+    /** Resolved recipient keys for recent group conversations. */
+    private static final GroupEncryptionCache sGroupCache = new GroupEncryptionCache();
+
     private Keyring() {
     }
 
     /** Returns a {@link Coder} instance for encrypting data. */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
+        return new PGPCoder(server, key, loadRecipientKeys(context, server, recipients));
+    }
+
+    /**
+     * Returns a {@link Coder} instance for encrypting data to a group.
+     * Recipient key material is cached by group and membership.
+     */
+    public static Coder getEncryptCoder(final Context context, final EndpointServer server, PersonalKey key, String groupJid, String[] recipients) {
+        if (groupJid == null)
+            return getEncryptCoder(context, server, key, recipients);
+
+        PGPRecipientKeys keys = sGroupCache.get(groupJid, server.getNetwork(),
+            GroupEncryptionCache.sortMembers(recipients), new GroupEncryptionCache.Loader() {
+                @Override
+                public PGPRecipientKeys load(String[] sortedMembers) {
+                    return loadRecipientKeys(context, server, sortedMembers);
+                }
+            });
+
+        return new PGPCoder(server, key, keys);
+    }
+
+    private static PGPRecipientKeys loadRecipientKeys(Context context, EndpointServer server, String[] recipients) {
         // get recipients public keys from users database
         PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
         for (int i = 0; i < recipients.length; i++) {
@@ -69,7 +99,12 @@ public class Keyring {
             keys[i] = ring;
         }
 
-        return new PGPCoder(server, key, keys);
+        return new PGPRecipientKeys(keys, server.getNetwork());
+    }
+
+    /** Drops cached encryption data for the given group (e.g. membership changed). */
+    public static void invalidateGroup(String groupJid) {
+        sGroupCache.invalidateGroup(groupJid);
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
@@ -84,20 +119,28 @@ public class Keyring {
         return new PGPCoder(server, null, senderKey);
     }
 
-    /** Adds/updates a public key. */
-    public static void setKey(Context context, String jid, byte[] keydata)
+    /**
+     * Adds/updates a public key.
+     * @return false if the key was already stored and nothing was written
+     */
+    public static boolean setKey(Context context, String jid, byte[] keydata)
         throws IOException, PGPException {
-        setKey(context, jid, keydata, -1);
+        return setKey(context, jid, keydata, -1);
     }
 
-    /** Adds/updates a public key. */
-    public static void setKey(Context context, String jid, byte[] keydata, int trustLevel)
+    /**
+     * Adds/updates a public key.
+     * @return false if the key was already stored and nothing was written
+     */
+    public static boolean setKey(Context context, String jid, byte[] keydata, int trustLevel)
             throws IOException, PGPException {
         PGPPublicKey pk = PGP.getMasterKey(keydata);
         String fingerprint = PGP.getFingerprint(pk);
         Date date = pk.getCreationTime();
 
         int autoTrustedLevel = getAutoTrustedLevel(context, jid);
+        if (autoTrustedLevel < 0 && isKeyStored(context, jid, fingerprint, keydata, trustLevel))
+            return false;
 
         ContentValues values = new ContentValues(3);
         values.put(MyUsers.Keys.PUBLIC_KEY, keydata);
@@ -109,11 +152,31 @@ public class Keyring {
             values.put(MyUsers.Keys.TRUST_LEVEL, autoTrustedLevel);
         }
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        sGroupCache.invalidateUser(jid);
 
         if (autoTrustedLevel >= 0) {
             // delete the autotrust entry
             context.getContentResolver().delete(MyUsers.Keys.getUri(jid, VALUE_AUTOTRUST), null, null);
         }
+        return true;
+    }
+
+    /** Returns true if the same key data is stored with the given trust level (if any). */
+    private static boolean isKeyStored(Context context, String jid, String fingerprint,
+            byte[] keydata, int trustLevel) {
+        Cursor c = context.getContentResolver().query(MyUsers.Keys.getUri(jid),
+            new String[] { MyUsers.Keys.PUBLIC_KEY, MyUsers.Keys.TRUST_LEVEL },
+            MyUsers.Keys.FINGERPRINT + " = ?", new String[] { fingerprint }, null);
+        if (c == null)
+            return false;
+
+        try {
+            return c.moveToFirst() && Arrays.equals(keydata, c.getBlob(0)) &&
+                (trustLevel < 0 || trustLevel == c.getInt(1));
+        }
+        finally {
+            c.close();
+        }
     }
 
     /** Updates the fingerprint and the date (for fingerprint in presence). */
@@ -130,6 +193,7 @@ public class Keyring {
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint)
             // since we are handling data from a presence, insert only if it doesn't exist
             .buildUpon().appendQueryParameter(MyUsers.Keys.INSERT_ONLY, "true").build(), values);
+        sGroupCache.invalidateUser(jid);
     }
 
     /** Sets the trust level for the given key. */
@@ -137,6 +201,7 @@ public class Keyring {
         ContentValues values = new ContentValues(1);
         values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        sGroupCache.invalidateUser(jid);
     }
 
     public static void setAutoTrustLevel(Context context, String jid, int trustLevel) {
@@ -198,6 +263,40 @@ public class Keyring {
         return data;
     }
 
+    /**
+     * Returns the users whose latest known fingerprint (e.g. from presence)
+     * has its public key stored. Keys of any other user are either unknown
+     * or stale and need to be requested.
+     */
+    public static Set<String> getUpToDateKeys(Context context) {
+        Set<String> stored = new HashSet<>();
+        Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+            new String[] { MyUsers.Keys.JID, MyUsers.Keys.FINGERPRINT },
+            MyUsers.Keys.PUBLIC_KEY + " IS NOT NULL", null, null);
+        if (c != null) {
+            while (c.moveToNext())
+                stored.add(c.getString(0) + "/" + c.getString(1));
+            c.close();
+        }
+
+        Set<String> upToDate = new HashSet<>();
+        Set<String> seen = new HashSet<>();
+        c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+            new String[] { MyUsers.Keys.JID, MyUsers.Keys.FINGERPRINT },
+            MyUsers.Keys.FINGERPRINT + " <> ?", new String[] { VALUE_AUTOTRUST },
+            MyUsers.Keys.TIMESTAMP + " DESC");
+        if (c != null) {
+            while (c.moveToNext()) {
+                String jid = c.getString(0);
+                // consider only the latest fingerprint of every user
+                if (seen.add(jid) && stored.contains(jid + "/" + c.getString(1)))
+                    upToDate.add(jid);
+            }
+            c.close();
+        }
+        return upToDate;
+    }
+
     private static Cursor queryLatestWithMinimumTrustLevel(Context context, String jid, int trustLevel, String... columns) {
         return context.getContentResolver().query(MyUsers.Keys.getUri(jid), columns,
             MyUsers.Keys.TRUST_LEVEL + " >= " + trustLevel + " AND "+
@@ -229,6 +328,7 @@ public class Keyring {
             values[i].put(MyUsers.Keys.FINGERPRINT, e.getValue().fingerprint);
             values[i].put(MyUsers.Keys.TRUST_LEVEL, e.getValue().trustLevel);
         }
+        sGroupCache.clear();
         return context.getContentResolver().bulkInsert(MyUsers.Keys.CONTENT_URI, values);
     }
 
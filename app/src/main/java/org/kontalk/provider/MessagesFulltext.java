@@ -0,0 +1,227 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Process;
+
+import org.kontalk.Log;
+import org.kontalk.message.TextComponent;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
+
+
+/**
+ * Full text index of text messages.
+ * On devices supporting it (SQLite 3.7.9, API 16), the index is an
+ * external-content FTS4 table over the messages table, maintained by
+ * triggers, so message text is not stored twice. Older devices keep using
+ * the legacy FTS3 table filled by {@link MessagesProvider}.
+ *
+ * When migrating from the legacy table, existing messages are indexed in
+ * batches by {@link Indexer}, newest first. Messages with an ID lower than
+ * the low watermark in the state table are not indexed yet and the triggers
+ * will leave them alone.
+ * @author Daniele Ricci
+ */
+class MessagesFulltext {
+    private static final String TAG = MessagesProvider.TAG;
+
+    static final String TABLE_FULLTEXT = "fulltext";
+    private static final String TABLE_FULLTEXT_STATE = "fulltext_state";
+    private static final String TABLE_MESSAGES = "messages";
+
+    private static final String SNIPPET_FUNCTION = "snippet(" + TABLE_FULLTEXT + ",'" +
+        Fulltext.SNIPPET_START + "','" + Fulltext.SNIPPET_END + "','...',-1,12)";
+
+    static final boolean EXTERNAL_CONTENT_SUPPORTED =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+
+    /** Legacy full text table. */
+    static final String SCHEMA_LEGACY =
+        "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts3 (" +
+        "thread_id INTEGER NOT NULL, " +
+        "content TEXT" +
+        ")";
+
+    private static String indexable(String row) {
+        return row + "." + Messages.THREAD_ID + " >= 0 AND " +
+            row + "." + Messages.BODY_MIME + " = '" + TextComponent.MIME_TYPE + "' AND " +
+            // outgoing messages are stored in clear text even when sent encrypted
+            "(" + row + "." + Messages.ENCRYPTED + " = 0 OR " +
+            row + "." + Messages.DIRECTION + " = " + Messages.DIRECTION_OUT + ") AND " +
+            row + "." + Messages.BODY_CONTENT + " IS NOT NULL";
+    }
+
+    private static String managed(String row) {
+        return row + "." + Messages._ID + " >= (SELECT low_watermark FROM " + TABLE_FULLTEXT_STATE + ")";
+    }
+
+    private static final String INSERT_NEW =
+        "INSERT INTO " + TABLE_FULLTEXT + "(docid," + Messages.BODY_CONTENT + ") " +
+        "VALUES (new." + Messages._ID + ",new." + Messages.BODY_CONTENT + ")";
+
+    private static final String DELETE_OLD =
+        "DELETE FROM " + TABLE_FULLTEXT + " WHERE docid = old." + Messages._ID;
+
+    private static final String UPDATE_COLUMNS =
+        Messages.BODY_CONTENT + "," + Messages.BODY_MIME + "," +
+        Messages.ENCRYPTED + "," + Messages.THREAD_ID;
+
+    /** External content full text table and its maintenance triggers. */
+    static final String[] SCHEMA_EXTERNAL = {
+        "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts4 (" +
+            "content=\"" + TABLE_MESSAGES + "\", " +
+            Messages.BODY_CONTENT + ", " +
+            "prefix=\"2,3\"" +
+            ")",
+        "CREATE TABLE " + TABLE_FULLTEXT_STATE + " (low_watermark INTEGER NOT NULL)",
+        "INSERT INTO " + TABLE_FULLTEXT_STATE + " VALUES (0)",
+        // new messages always have an ID above the watermark
+        "CREATE TRIGGER fulltext_after_insert AFTER INSERT ON " + TABLE_MESSAGES +
+            " WHEN " + indexable("new") +
+            " BEGIN " + INSERT_NEW + "; END",
+        // old values must be removed while they are still in the content table
+        "CREATE TRIGGER fulltext_before_update BEFORE UPDATE OF " + UPDATE_COLUMNS +
+            " ON " + TABLE_MESSAGES +
+            " WHEN " + indexable("old") + " AND " + managed("old") +
+            " BEGIN " + DELETE_OLD + "; END",
+        "CREATE TRIGGER fulltext_after_update AFTER UPDATE OF " + UPDATE_COLUMNS +
+            " ON " + TABLE_MESSAGES +
+            " WHEN " + indexable("new") + " AND " + managed("new") +
+            " BEGIN " + INSERT_NEW + "; END",
+        "CREATE TRIGGER fulltext_before_delete BEFORE DELETE ON " + TABLE_MESSAGES +
+            " WHEN " + indexable("old") + " AND " + managed("old") +
+            " BEGIN " + DELETE_OLD + "; END",
+    };
+
+    /** Messages indexed per transaction by {@link Indexer}. */
+    private static final int INDEXER_BATCH_SIZE = 500;
+
+    private MessagesFulltext() {
+    }
+
+    /** Returns true if the full text table in the database uses external content. */
+    static boolean isExternalContent(SQLiteDatabase db) {
+        String sql = DatabaseUtils.stringForQuery(db,
+            "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?",
+            new String[] { TABLE_FULLTEXT });
+        return sql != null && sql.contains("content=");
+    }
+
+    /** Replaces the legacy full text table with the external content one. */
+    static void migrate(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FULLTEXT);
+        for (String sql : SCHEMA_EXTERNAL)
+            db.execSQL(sql);
+        // existing messages will be indexed by the background indexer
+        db.execSQL("UPDATE " + TABLE_FULLTEXT_STATE + " SET low_watermark = " +
+            "(SELECT IFNULL(MAX(" + Messages._ID + "), 0) + 1 FROM " + TABLE_MESSAGES + ")");
+    }
+
+    /** Returns true if some existing messages are still to be indexed. */
+    static boolean needsIndexing(SQLiteDatabase db) {
+        return getLowWatermark(db) > 0;
+    }
+
+    private static long getLowWatermark(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+            "SELECT low_watermark FROM " + TABLE_FULLTEXT_STATE, null);
+    }
+
+    /** Column expression for a highlighted snippet of the matching text. */
+    static String getSnippetColumn() {
+        return SNIPPET_FUNCTION;
+    }
+
+    /**
+     * Indexes existing messages in small batches, newest first.
+     * Every batch runs in its own transaction, so it never interleaves with
+     * provider writes and the triggers.
+     */
+    static final class Indexer implements Runnable {
+        private final SQLiteOpenHelper mHelper;
+
+        Indexer(SQLiteOpenHelper helper) {
+            mHelper = helper;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            long startTime = System.currentTimeMillis();
+            long count = 0;
+
+            try {
+                int indexed;
+                while ((indexed = indexBatch(mHelper.getWritableDatabase())) >= 0) {
+                    count += indexed;
+                    // give way to other writers
+                    Thread.yield();
+                }
+
+                Log.d(TAG, "full text indexing completed: " + count + " messages in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+            }
+            catch (SQLiteException e) {
+                // will resume next time the database is opened
+                Log.w(TAG, "full text indexing interrupted after " + count + " messages", e);
+            }
+        }
+
+        /** Indexes a batch of messages. Returns -1 if indexing was completed. */
+        private int indexBatch(SQLiteDatabase db) {
+            db.beginTransactionNonExclusive();
+            try {
+                long watermark = getLowWatermark(db);
+                if (watermark <= 0)
+                    return -1;
+
+                long newWatermark = 0;
+                Cursor c = db.rawQuery("SELECT MIN(" + Messages._ID + ") FROM (" +
+                    "SELECT " + Messages._ID + " FROM " + TABLE_MESSAGES +
+                    " WHERE " + Messages._ID + " < " + watermark +
+                    " ORDER BY " + Messages._ID + " DESC LIMIT " + INDEXER_BATCH_SIZE + ")", null);
+                if (c.moveToFirst() && !c.isNull(0))
+                    newWatermark = c.getLong(0);
+                c.close();
+
+                db.execSQL("INSERT INTO " + TABLE_FULLTEXT + "(docid," + Messages.BODY_CONTENT + ") " +
+                    "SELECT " + Messages._ID + "," + Messages.BODY_CONTENT + " FROM " + TABLE_MESSAGES +
+                    " WHERE " + Messages._ID + " >= " + newWatermark + " AND " +
+                    Messages._ID + " < " + watermark + " AND " +
+                    indexable(TABLE_MESSAGES));
+                int indexed = (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+
+                db.execSQL("UPDATE " + TABLE_FULLTEXT_STATE + " SET low_watermark = " + newWatermark);
+                db.setTransactionSuccessful();
+                return indexed;
+            }
+            finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+}
@@ -18,11 +18,17 @@
 
 package org.kontalk.provider;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -35,7 +41,10 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
@@ -46,10 +55,12 @@ import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.message.LocationComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.Groups;
+import org.kontalk.provider.MyMessages.Media;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
+import org.kontalk.provider.MyMessages.Uploads;
 import org.kontalk.util.SystemUtils;
 
 
@@ -65,10 +76,12 @@ public class MessagesProvider extends ContentProvider {
 
     private static final String TABLE_MESSAGES = "messages";
     private static final String TABLE_MESSAGES_GROUPS = "messages_groups";
-    private static final String TABLE_FULLTEXT = "fulltext";
+    private static final String TABLE_FULLTEXT = MessagesFulltext.TABLE_FULLTEXT;
     private static final String TABLE_THREADS = "threads";
     private static final String TABLE_GROUPS = "groups";
     private static final String TABLE_GROUP_MEMBERS = "group_members";
+    private static final String TABLE_MEDIA = "media";
+    private static final String TABLE_UPLOADS = "uploads";
 
     private static final String TABLE_THREADS_GROUPS = TABLE_THREADS +
         " LEFT OUTER JOIN " + TABLE_GROUPS + " ON " +
@@ -89,19 +102,26 @@ public class MessagesProvider extends ContentProvider {
     private static final int GROUPS_MEMBERS_ID = 12;
     private static final int FULLTEXT_ID = 13;
     private static final int REQUESTS = 14;
+    private static final int MEDIA = 15;
+    private static final int MEDIA_HASH = 16;
+    private static final int UPLOADS = 17;
+    private static final int UPLOADS_KEY = 18;
 
     private DatabaseHelper dbHelper;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
+    private static HashMap<String, String> fulltextLegacyProjectionMap;
     private static HashMap<String, String> groupsMembersProjectionMap;
     private static HashMap<String, String> groupsProjectionMap;
 
+    private ThreadIndex mThreadIndex;
+
     @VisibleForTesting
     static class DatabaseHelper extends SQLiteOpenHelper {
         @VisibleForTesting
-        static final int DATABASE_VERSION = 16;
+        static final int DATABASE_VERSION = 20;
         @VisibleForTesting
         static final String DATABASE_NAME = "messages.db";
 
@@ -208,6 +228,24 @@ public class MessagesProvider extends ContentProvider {
         private static final String SCHEMA_GROUPS_MEMBERS =
             "CREATE TABLE " + TABLE_GROUP_MEMBERS + " " + _SCHEMA_GROUP_MEMBERS;
 
+        /** Content hash index of media files created by the app. */
+        private static final String SCHEMA_MEDIA =
+            "CREATE TABLE " + TABLE_MEDIA + " (" +
+            "hash TEXT PRIMARY KEY, " +
+            "local_uri TEXT NOT NULL, " +
+            "length INTEGER NOT NULL" +
+            ")";
+
+        /** Fetch URLs of uploaded media files, to be reused for identical content. */
+        private static final String SCHEMA_UPLOADS =
+            "CREATE TABLE " + TABLE_UPLOADS + " (" +
+            "upload_key TEXT PRIMARY KEY, " +
+            "media_hash TEXT NOT NULL, " +
+            "fetch_url TEXT NOT NULL, " +
+            "length INTEGER NOT NULL, " +
+            "expires INTEGER NOT NULL" +
+            ")";
+
         /** A view to link messages and groups. */
         private static final String SCHEMA_MESSAGES_GROUPS =
             "CREATE VIEW " + TABLE_MESSAGES_GROUPS + " AS " +
@@ -222,13 +260,6 @@ public class MessagesProvider extends ContentProvider {
             TABLE_THREADS + "." + Threads._ID + "=" +
             TABLE_GROUPS + "." + Groups.THREAD_ID;
 
-        /** This table will contain every text message to speed-up full text searches. */
-        private static final String SCHEMA_FULLTEXT =
-            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts3 (" +
-            "thread_id INTEGER NOT NULL, " +
-            "content TEXT" +
-            ")";
-
         private static final String SCHEMA_MESSAGES_INDEX =
             "CREATE UNIQUE INDEX IF NOT EXISTS unique_message ON " + TABLE_MESSAGES +
             " (msg_id, direction)";
@@ -241,6 +272,28 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS idx_messages_thread_id ON " + TABLE_MESSAGES +
             "(" + Messages.THREAD_ID + ")";
 
+        /** Used for pending outgoing messages and pending receipts. */
+        private static final String SCHEMA_MESSAGES_DIRECTION_STATUS_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_direction_status ON " + TABLE_MESSAGES +
+            "(" + Messages.DIRECTION + "," + Messages.STATUS + ")";
+
+        /**
+         * Covering index for per-thread unread/new counts (used by triggers).
+         * Partial indexes would be better, but they need SQLite 3.8.0 (API 21).
+         */
+        private static final String SCHEMA_MESSAGES_THREAD_UNREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_unread ON " + TABLE_MESSAGES +
+            "(" + Messages.THREAD_ID + "," + Messages.UNREAD + ",\"" + Messages.NEW + "\")";
+
+        /** Used for media reference counting. */
+        private static final String SCHEMA_MESSAGES_ATT_LOCAL_URI_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_att_local_uri ON " + TABLE_MESSAGES +
+            "(" + Messages.ATTACHMENT_LOCAL_URI + ")";
+
+        private static final String SCHEMA_MEDIA_LOCAL_URI_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_media_local_uri ON " + TABLE_MEDIA +
+            "(" + Media.LOCAL_URI + ")";
+
         /** Updates the thread messages count. */
         private static final String UPDATE_MESSAGES_COUNT_NEW =
             "UPDATE " + TABLE_THREADS + " SET count = (" +
@@ -324,6 +377,13 @@ public class MessagesProvider extends ContentProvider {
             DELETE_GROUP_MEMBERS      + ";" +
             "END";
 
+        /** This trigger will forget uploads of deleted media. */
+        private static final String TRIGGER_MEDIA_DELETE_UPLOADS =
+            "CREATE TRIGGER delete_uploads_on_delete AFTER DELETE ON " + TABLE_MEDIA +
+            " BEGIN " +
+            "DELETE FROM " + TABLE_UPLOADS + " WHERE " + Uploads.MEDIA_HASH + " = old." + Media.HASH + ";" +
+            "END";
+
         // -- schema upgrades --
         // the number in the constant name is the version we are upgrading *from*
 
@@ -396,8 +456,33 @@ public class MessagesProvider extends ContentProvider {
             "ALTER TABLE messages ADD COLUMN in_reply_to INTEGER",
         };
 
+        private static final String[] SCHEMA_UPGRADE_V16 = {
+            SCHEMA_MESSAGES_DIRECTION_STATUS_IDX,
+            SCHEMA_MESSAGES_THREAD_UNREAD_IDX,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V18 = {
+            SCHEMA_MEDIA,
+            SCHEMA_MEDIA_LOCAL_URI_IDX,
+            SCHEMA_MESSAGES_ATT_LOCAL_URI_IDX,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V19 = {
+            SCHEMA_UPLOADS,
+            TRIGGER_MEDIA_DELETE_UPLOADS,
+        };
+
+        /** True if the full text table is the external content one. */
+        private boolean mExternalFulltext;
+        private boolean mFulltextIndexerStarted;
+
         DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            this(context, DATABASE_NAME);
+        }
+
+        @VisibleForTesting
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
         }
 
         @Override
@@ -407,14 +492,27 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_GROUPS);
             db.execSQL(SCHEMA_GROUPS_MEMBERS);
             db.execSQL(SCHEMA_MESSAGES_GROUPS);
-            db.execSQL(SCHEMA_FULLTEXT);
+            db.execSQL(SCHEMA_MEDIA);
+            db.execSQL(SCHEMA_UPLOADS);
+            if (MessagesFulltext.EXTERNAL_CONTENT_SUPPORTED) {
+                for (String sql : MessagesFulltext.SCHEMA_EXTERNAL)
+                    db.execSQL(sql);
+            }
+            else {
+                db.execSQL(MessagesFulltext.SCHEMA_LEGACY);
+            }
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
             db.execSQL(SCHEMA_MESSAGES_THREAD_ID_IDX);
+            db.execSQL(SCHEMA_MESSAGES_DIRECTION_STATUS_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_UNREAD_IDX);
+            db.execSQL(SCHEMA_MESSAGES_ATT_LOCAL_URI_IDX);
+            db.execSQL(SCHEMA_MEDIA_LOCAL_URI_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
             db.execSQL(TRIGGER_GROUPS_DELETE_MEMBERS);
+            db.execSQL(TRIGGER_MEDIA_DELETE_UPLOADS);
         }
 
         @Override
@@ -463,13 +561,50 @@ public class MessagesProvider extends ContentProvider {
                         db.execSQL(sql);
                     }
                     // fall through
+                case 16:
+                    for (String sql : SCHEMA_UPGRADE_V16) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
+                case 17:
+                    if (MessagesFulltext.EXTERNAL_CONTENT_SUPPORTED)
+                        MessagesFulltext.migrate(db);
+                    // fall through
+                case 18:
+                    for (String sql : SCHEMA_UPGRADE_V18) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
+                case 19:
+                    for (String sql : SCHEMA_UPGRADE_V19) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            mExternalFulltext = MessagesFulltext.isExternalContent(db);
+            // index existing messages after migrating the full text table
+            if (mExternalFulltext && !mFulltextIndexerStarted && !db.isReadOnly() &&
+                    MessagesFulltext.needsIndexing(db)) {
+                mFulltextIndexerStarted = true;
+                new Thread(new MessagesFulltext.Indexer(this), "FulltextIndexer").start();
             }
         }
+
+        /** Full text table is maintained by triggers if this is true. */
+        public boolean isExternalFulltext() {
+            return mExternalFulltext;
+        }
     }
 
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
+        mThreadIndex = new ThreadIndex(dbHelper, TABLE_THREADS_GROUPS);
+        ThreadIndex.init(mThreadIndex);
         return true;
     }
 
@@ -481,6 +616,13 @@ public class MessagesProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
         SQLitePagedQueryBuilder qb = new SQLitePagedQueryBuilder();
 
         switch (sUriMatcher.match(uri)) {
@@ -546,9 +688,21 @@ public class MessagesProvider extends ContentProvider {
                 break;
 
             case FULLTEXT_ID:
-                qb.setTables(TABLE_FULLTEXT);
-                qb.setProjectionMap(fulltextProjectionMap);
-                qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
+                // ensure database is open so we know the full text table type
+                dbHelper.getReadableDatabase();
+                if (dbHelper.isExternalFulltext()) {
+                    qb.setTables(TABLE_FULLTEXT + " JOIN " + TABLE_MESSAGES + " ON " +
+                        TABLE_MESSAGES + "." + Messages._ID + "=" + TABLE_FULLTEXT + ".docid");
+                    qb.setProjectionMap(fulltextProjectionMap);
+                    qb.appendWhere(TABLE_FULLTEXT + " MATCH ?");
+                    if (sortOrder == null)
+                        sortOrder = TABLE_MESSAGES + "." + Messages.TIMESTAMP + " DESC";
+                }
+                else {
+                    qb.setTables(TABLE_FULLTEXT);
+                    qb.setProjectionMap(fulltextLegacyProjectionMap);
+                    qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
+                }
                 selectionArgs = new String[] { uri.getQueryParameter("pattern") };
                 break;
 
@@ -581,6 +735,20 @@ public class MessagesProvider extends ContentProvider {
                 }
                 break;
 
+            case MEDIA:
+                qb.setTables(TABLE_MEDIA);
+                break;
+
+            case MEDIA_HASH:
+                qb.setTables(TABLE_MEDIA);
+                qb.appendWhere(Media.HASH + "=" + DatabaseUtils.sqlEscapeString(uri.getLastPathSegment()));
+                break;
+
+            case UPLOADS_KEY:
+                qb.setTables(TABLE_UPLOADS);
+                qb.appendWhere(Uploads.KEY + "=" + DatabaseUtils.sqlEscapeString(uri.getLastPathSegment()));
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -588,7 +756,10 @@ public class MessagesProvider extends ContentProvider {
         String limit = uri.getQueryParameter("limit");
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
+        Cursor c = (cancellationSignal != null) ?
+            // long running queries (e.g. full text search) can be interrupted
+            qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit, cancellationSignal) :
+            qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
@@ -601,6 +772,10 @@ public class MessagesProvider extends ContentProvider {
 
         // only messages and requests virtual table can be inserted
         int match = sUriMatcher.match(uri);
+        if (match == MEDIA)
+            return insertMedia(initialValues);
+        if (match == UPLOADS)
+            return insertUpload(initialValues);
         if (match != MESSAGES && match != REQUESTS && match != GROUPS && match != GROUPS_MEMBERS)
             throw new IllegalArgumentException("Unknown URI " + uri);
 
@@ -611,6 +786,7 @@ public class MessagesProvider extends ContentProvider {
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         List<Uri> notifications = new ArrayList<>();
+        ThreadIndex.Transaction threads = mThreadIndex.begin();
 
         db.beginTransactionNonExclusive();
 
@@ -619,6 +795,7 @@ public class MessagesProvider extends ContentProvider {
                 case GROUPS:
                     // configure thread as group
                     insertGroup(db, values, notifications);
+                    threads.changed(values.getAsLong(Groups.THREAD_ID));
                     db.setTransactionSuccessful();
                     // no uri needed
                     return null;
@@ -641,6 +818,7 @@ public class MessagesProvider extends ContentProvider {
             // create the thread first
             long threadId = updateThreads(db, values, notifications, match == REQUESTS);
             values.put(Messages.THREAD_ID, threadId);
+            threads.changed(threadId);
 
             if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
                 // notify thread change
@@ -701,7 +879,8 @@ public class MessagesProvider extends ContentProvider {
             */
 
             if (rowId > 0) {
-                if (threadId != Messages.NO_THREAD) {
+                // external content full text table is updated by triggers
+                if (threadId != Messages.NO_THREAD && !dbHelper.isExternalFulltext()) {
                     // update fulltext table
                     byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
                     String mime = values.getAsString(Messages.BODY_MIME);
@@ -730,12 +909,35 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
+            threads.commit(db);
             ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
                 cr.notifyChange(nuri, null);
         }
     }
 
+    /** Adds or replaces an entry in the media index. */
+    private Uri insertMedia(ContentValues values) {
+        String hash = values.getAsString(Media.HASH);
+        if (hash == null || values.getAsString(Media.LOCAL_URI) == null)
+            throw new IllegalArgumentException("hash and local URI are required");
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        return Media.getUri(hash);
+    }
+
+    /** Adds or replaces an entry in the uploads cache. */
+    private Uri insertUpload(ContentValues values) {
+        String key = values.getAsString(Uploads.KEY);
+        if (key == null || values.getAsString(Uploads.FETCH_URL) == null)
+            throw new IllegalArgumentException("key and fetch URL are required");
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.insertWithOnConflict(TABLE_UPLOADS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        return Uploads.getUri(key);
+    }
+
     private void insertGroup(SQLiteDatabase db, ContentValues values, List<Uri> notifications) {
         if (notifications != null) {
             long threadId = values.getAsLong(Groups.THREAD_ID);
@@ -1035,6 +1237,7 @@ public class MessagesProvider extends ContentProvider {
 
         List<Uri> notifications = null;
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ThreadIndex.Transaction threads = mThreadIndex.begin();
 
         db.beginTransactionNonExclusive();
 
@@ -1080,6 +1283,9 @@ public class MessagesProvider extends ContentProvider {
 
             // notify change only if rows are actually affected
             if (rows > 0) {
+                if (table.equals(TABLE_THREADS) || table.equals(TABLE_GROUPS))
+                    threads.changedAll();
+
                 if (requestOnly)
                     uri = Threads.CONTENT_URI;
 
@@ -1092,7 +1298,7 @@ public class MessagesProvider extends ContentProvider {
                     String[] projection;
 
                     byte[] oldContent = values.getAsByteArray(Messages.BODY_CONTENT);
-                    if (oldContent != null) {
+                    if (oldContent != null && !dbHelper.isExternalFulltext()) {
                         doUpdateFulltext = true;
                         projection = new String[] { Messages.THREAD_ID, Messages._ID,
                                 Messages.DIRECTION, Messages.ENCRYPTED,
@@ -1115,7 +1321,7 @@ public class MessagesProvider extends ContentProvider {
 
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
-                            updateThreadInfo(db, threadId, notifications);
+                            updateThreadInfo(db, threadId, notifications, threads);
 
                             // update fulltext if necessary
                             if (doUpdateFulltext) {
@@ -1149,6 +1355,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
+            threads.commit(db);
             if (notifications != null) {
                 ContentResolver cr = getContext().getContentResolver();
                 for (Uri nuri : notifications)
@@ -1262,6 +1469,24 @@ public class MessagesProvider extends ContentProvider {
                 }
                 break;
 
+            case MEDIA_HASH:
+                table = TABLE_MEDIA;
+                where = Media.HASH + " = ?";
+                args = new String[] { uri.getLastPathSegment() };
+                break;
+
+            case UPLOADS:
+                table = TABLE_UPLOADS;
+                where = selection;
+                args = selectionArgs;
+                break;
+
+            case UPLOADS_KEY:
+                table = TABLE_UPLOADS;
+                where = Uploads.KEY + " = ?";
+                args = new String[] { uri.getLastPathSegment() };
+                break;
+
             // special case: conversations
             case CONVERSATIONS_ID: {
                 boolean keepGroup = Boolean.parseBoolean(uri.getQueryParameter(Messages.KEEP_GROUP));
@@ -1284,13 +1509,19 @@ public class MessagesProvider extends ContentProvider {
                 boolean keepGroup = Boolean.parseBoolean(uri.getQueryParameter(Messages.KEEP_GROUP));
 
                 int num = 0;
+                List<File> garbage;
+                ThreadIndex.Transaction threads = mThreadIndex.begin();
+                threads.changedAll();
                 db.beginTransactionNonExclusive();
                 try {
                     // rows count will be conversations
                     num = db.delete(TABLE_THREADS, null, null);
+                    Set<String> media = getMediaReferences(db, null, null);
                     db.delete(TABLE_MESSAGES, null, null);
+                    garbage = releaseMedia(db, media);
                     // update fulltext
-                    db.delete(TABLE_FULLTEXT, null, null);
+                    if (!dbHelper.isExternalFulltext())
+                        db.delete(TABLE_FULLTEXT, null, null);
                     if (!keepGroup) {
                         // delete groups (members will cascade)
                         db.delete(TABLE_GROUPS, null, null);
@@ -1301,8 +1532,11 @@ public class MessagesProvider extends ContentProvider {
                 }
                 finally {
                     db.endTransaction();
+                    threads.commit(db);
                 }
 
+                deleteMediaFiles(garbage);
+
                 if (num > 0) {
                     ContentResolver cr = getContext().getContentResolver();
                     // notify conversations and threads
@@ -1320,32 +1554,45 @@ public class MessagesProvider extends ContentProvider {
         int rows = 0;
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         List<Uri> notifications = new ArrayList<>();
+        List<File> garbage = null;
+        ThreadIndex.Transaction threads = mThreadIndex.begin();
+        if (table.equals(TABLE_THREADS) || table.equals(TABLE_GROUPS))
+            threads.changedAll();
 
         // let's begin this big transaction :S
         db.beginTransactionNonExclusive();
 
         try {
 
-            long threadId = -1;
+            Set<Long> threadIds = new HashSet<>();
+            Set<String> media = new HashSet<>();
             if (table.equals(TABLE_MESSAGES)) {
-                // retrieve the thread id for later use by updateThreadInfo(), and
+                // retrieve the thread ids for later use by updateThreadInfo(), and
                 // also update fulltext table
                 Cursor c = db.query(TABLE_MESSAGES, new String[] {
                         Messages.THREAD_ID,
                         Messages._ID,
                         Messages.DIRECTION,
-                        Messages.ENCRYPTED
+                        Messages.ENCRYPTED,
+                        Messages.ATTACHMENT_LOCAL_URI,
                     },
                     where, args, null, null, null);
                 if (c != null) {
                     while (c.moveToNext()) {
-                        // FIXME this way we'll only get one threadId...
-                        threadId = c.getLong(0);
+                        // counters are updated by triggers for every thread
+                        long threadId = c.getLong(0);
+                        if (threadIds.add(threadId))
+                            threads.changed(threadId);
+
+                        // media files might need to be released
+                        if (!c.isNull(4))
+                            media.add(c.getString(4));
 
                         // update fulltext
                         int direction = c.getInt(2);
                         int encrypted = c.getInt(3);
-                        if (direction != Messages.DIRECTION_IN || encrypted == 0)
+                        if (!dbHelper.isExternalFulltext() &&
+                                (direction != Messages.DIRECTION_IN || encrypted == 0))
                             db.delete(TABLE_FULLTEXT, Fulltext._ID + " = " + c.getLong(1), null);
                     }
 
@@ -1361,31 +1608,99 @@ public class MessagesProvider extends ContentProvider {
                 notifications.add(uri);
 
             if (table.equals(TABLE_MESSAGES)) {
-                updateThreadAfterDelete(db, threadId, notifications);
+                updateThreadAfterDelete(db, threadIds, notifications, threads);
+                garbage = releaseMedia(db, media);
             }
 
             db.setTransactionSuccessful();
         }
         finally {
             db.endTransaction();
+            threads.commit(db);
             ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
                 cr.notifyChange(nuri, null);
         }
 
+        deleteMediaFiles(garbage);
         return rows;
     }
 
-    private void updateThreadAfterDelete(SQLiteDatabase db, long threadId, @Nullable List<Uri> notifications) {
+    /** Returns the indexed media files referenced by the given messages. */
+    private Set<String> getMediaReferences(SQLiteDatabase db, String where, String[] args) {
+        Set<String> media = new HashSet<>();
+        String selection = Messages.ATTACHMENT_LOCAL_URI + " IN (SELECT " +
+            Media.LOCAL_URI + " FROM " + TABLE_MEDIA + ")";
+        if (where != null)
+            selection += " AND (" + where + ")";
+        Cursor c = db.query(true, TABLE_MESSAGES, new String[] { Messages.ATTACHMENT_LOCAL_URI },
+            selection, args, null, null, null, null);
+        try {
+            while (c.moveToNext())
+                media.add(c.getString(0));
+        }
+        finally {
+            c.close();
+        }
+        return media;
+    }
+
+    /**
+     * Removes media files no longer referenced by any message from the index.
+     * Must be called after the messages have been deleted.
+     * @return the files to delete after the transaction has been committed
+     */
+    private List<File> releaseMedia(SQLiteDatabase db, Set<String> media) {
+        List<File> garbage = new ArrayList<>();
+        for (String localUri : media) {
+            String[] args = { localUri };
+            long refs = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_MESSAGES +
+                " WHERE " + Messages.ATTACHMENT_LOCAL_URI + " = ?", args);
+            if (refs == 0 && db.delete(TABLE_MEDIA, Media.LOCAL_URI + " = ?", args) > 0) {
+                // only app-created files are indexed
+                Uri uri = Uri.parse(localUri);
+                if ("file".equals(uri.getScheme()))
+                    garbage.add(new File(uri.getPath()));
+            }
+        }
+        return garbage;
+    }
+
+    private void deleteMediaFiles(@Nullable List<File> garbage) {
+        if (garbage == null || garbage.isEmpty())
+            return;
+
+        String[] paths = new String[garbage.size()];
+        for (int i = 0; i < paths.length; i++) {
+            File file = garbage.get(i);
+            if (!file.delete())
+                Log.w(TAG, "unable to delete media file " + file);
+            paths[i] = file.getPath();
+        }
+        // remove deleted files from the media store
+        MediaScannerConnection.scanFile(getContext(), paths, null, null);
+    }
+
+    private void updateThreadAfterDelete(SQLiteDatabase db, long threadId,
+            @Nullable List<Uri> notifications, ThreadIndex.Transaction threads) {
+        updateThreadAfterDelete(db, Collections.singleton(threadId), notifications, threads);
+    }
+
+    private void updateThreadAfterDelete(SQLiteDatabase db, Collection<Long> threadIds,
+            @Nullable List<Uri> notifications, ThreadIndex.Transaction threads) {
         // check for empty threads
-        if (deleteEmptyThreads(db) > 0 && notifications != null)
-            notifications.add(Threads.CONTENT_URI);
-        // update thread with latest info and status
-        if (threadId > 0) {
-            updateThreadInfo(db, threadId, notifications);
+        if (deleteEmptyThreads(db) > 0) {
+            threads.changedAll();
+            if (notifications != null)
+                notifications.add(Threads.CONTENT_URI);
         }
-        else
+        // update threads with latest info and status
+        if (threadIds.isEmpty())
             Log.e(TAG, "unable to update thread metadata (threadId not found)");
+        for (long threadId : threadIds) {
+            if (threadId > 0)
+                updateThreadInfo(db, threadId, notifications, threads);
+        }
         // change notifications get triggered by previous method calls
     }
 
@@ -1393,6 +1708,9 @@ public class MessagesProvider extends ContentProvider {
         long threadId = ContentUris.parseId(uri);
         if (threadId > 0) {
             SQLiteDatabase db = dbHelper.getWritableDatabase();
+            ThreadIndex.Transaction threads = mThreadIndex.begin();
+            threads.changed(threadId);
+            List<File> garbage = null;
 
             db.beginTransactionNonExclusive();
 
@@ -1409,25 +1727,32 @@ public class MessagesProvider extends ContentProvider {
                     where += " AND (" + Messages.BODY_MIME + " <> ? OR " + Messages.BODY_MIME + " IS NULL)";
                     args = new String[] { GroupCommandComponent.MIME_TYPE };
                 }
+                Set<String> media = getMediaReferences(db, where, args);
                 num += db.delete(TABLE_MESSAGES, where, args);
+                List<File> released = releaseMedia(db, media);
 
                 if (!keepGroup)
                     // delete group if requested
                     num += db.delete(TABLE_GROUPS, Groups.THREAD_ID + " = " + threadId, null);
 
                 // update fulltext
-                db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
+                if (!dbHelper.isExternalFulltext())
+                    db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
 
                 // update thread information
-                updateThreadAfterDelete(db, threadId, null);
+                updateThreadAfterDelete(db, threadId, null, threads);
 
                 // set transaction successful
                 db.setTransactionSuccessful();
+                garbage = released;
 
                 return num;
             }
             finally {
                 db.endTransaction();
+                threads.commit(db);
+                // garbage is set only if the transaction was successful
+                deleteMediaFiles(garbage);
             }
         }
 
@@ -1435,7 +1760,8 @@ public class MessagesProvider extends ContentProvider {
     }
 
     /** Updates metadata of a given thread. */
-    private void updateThreadInfo(SQLiteDatabase db, long threadId, @Nullable List<Uri> notifications) {
+    private void updateThreadInfo(SQLiteDatabase db, long threadId,
+            @Nullable List<Uri> notifications, ThreadIndex.Transaction threads) {
         Cursor c = db.query(TABLE_MESSAGES_GROUPS, new String[] {
                 Messages.MESSAGE_ID,
                 Messages.DIRECTION,
@@ -1475,6 +1801,7 @@ public class MessagesProvider extends ContentProvider {
                 setThreadContent(new byte[0], TextComponent.MIME_TYPE, null, null, v);
             }
             db.update(TABLE_THREADS, v, Threads._ID + "=" + threadId, null);
+            threads.changed(threadId);
             if (notifications != null) {
                 notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
                 notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
@@ -1490,6 +1817,13 @@ public class MessagesProvider extends ContentProvider {
                     " WHERE "+TABLE_THREADS+"."+Threads._ID+"="+Groups.THREAD_ID+")", null);
     }
 
+    /** Maps a column of the message referenced by the in_reply_to column. */
+    private static void putReplyColumn(String alias, String column) {
+        messagesProjectionMap.put(alias, "(SELECT " + column + " FROM " + TABLE_MESSAGES +
+            " WHERE " + TABLE_MESSAGES + "." + Messages._ID + "=" +
+            TABLE_MESSAGES_GROUPS + "." + Messages.IN_REPLY_TO + ") AS " + alias);
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         switch (sUriMatcher.match(uri)) {
@@ -1523,6 +1857,10 @@ public class MessagesProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, TABLE_GROUPS + "/*/members", GROUPS_MEMBERS);
         sUriMatcher.addURI(AUTHORITY, TABLE_GROUPS + "/*/members/*", GROUPS_MEMBERS_ID);
         sUriMatcher.addURI(AUTHORITY, TABLE_FULLTEXT, FULLTEXT_ID);
+        sUriMatcher.addURI(AUTHORITY, TABLE_MEDIA, MEDIA);
+        sUriMatcher.addURI(AUTHORITY, TABLE_MEDIA + "/*", MEDIA_HASH);
+        sUriMatcher.addURI(AUTHORITY, TABLE_UPLOADS, UPLOADS);
+        sUriMatcher.addURI(AUTHORITY, TABLE_UPLOADS + "/*", UPLOADS_KEY);
         sUriMatcher.addURI(AUTHORITY, "requests", REQUESTS);
 
         messagesProjectionMap = new HashMap<>();
@@ -1559,6 +1897,13 @@ public class MessagesProvider extends ContentProvider {
         messagesProjectionMap.put(Messages.SECURITY_FLAGS, Messages.SECURITY_FLAGS);
         messagesProjectionMap.put(Messages.SERVER_TIMESTAMP, Messages.SERVER_TIMESTAMP);
         messagesProjectionMap.put(Messages.IN_REPLY_TO, Messages.IN_REPLY_TO);
+        // referenced message data is looked up by primary key in the same query
+        putReplyColumn(Messages.IN_REPLY_TO_MESSAGE_ID, Messages.MESSAGE_ID);
+        putReplyColumn(Messages.IN_REPLY_TO_PEER, Messages.PEER);
+        putReplyColumn(Messages.IN_REPLY_TO_DIRECTION, Messages.DIRECTION);
+        putReplyColumn(Messages.IN_REPLY_TO_TIMESTAMP, Messages.TIMESTAMP);
+        putReplyColumn(Messages.IN_REPLY_TO_BODY_MIME, Messages.BODY_MIME);
+        putReplyColumn(Messages.IN_REPLY_TO_BODY_CONTENT, Messages.BODY_CONTENT);
         messagesProjectionMap.put(Groups.GROUP_JID, Groups.GROUP_JID);
         messagesProjectionMap.put(Groups.SUBJECT, Groups.SUBJECT);
         messagesProjectionMap.put(Groups.GROUP_TYPE, Groups.GROUP_TYPE);
@@ -1588,8 +1933,20 @@ public class MessagesProvider extends ContentProvider {
         threadsProjectionMap.put(Groups.MEMBERSHIP, Groups.MEMBERSHIP);
 
         fulltextProjectionMap = new HashMap<>();
-        fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
-        fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
+        fulltextProjectionMap.put(Messages._ID, TABLE_FULLTEXT + ".docid AS " + Messages._ID);
+        fulltextProjectionMap.put(Fulltext.THREAD_ID, TABLE_MESSAGES + "." + Messages.THREAD_ID +
+            " AS " + Fulltext.THREAD_ID);
+        fulltextProjectionMap.put(Fulltext.CONTENT, "CAST(" + TABLE_MESSAGES + "." +
+            Messages.BODY_CONTENT + " AS TEXT) AS " + Fulltext.CONTENT);
+        fulltextProjectionMap.put(Fulltext.SNIPPET, MessagesFulltext.getSnippetColumn() +
+            " AS " + Fulltext.SNIPPET);
+
+        fulltextLegacyProjectionMap = new HashMap<>();
+        fulltextLegacyProjectionMap.put(Messages._ID, Fulltext._ID + " AS " + Messages._ID);
+        fulltextLegacyProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
+        fulltextLegacyProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
+        fulltextLegacyProjectionMap.put(Fulltext.SNIPPET, MessagesFulltext.getSnippetColumn() +
+            " AS " + Fulltext.SNIPPET);
 
         groupsProjectionMap = new HashMap<>();
         groupsProjectionMap.put(Groups.GROUP_JID, Groups.GROUP_JID);
@@ -19,6 +19,7 @@
 package org.kontalk.provider;
 
 import java.io.File;
+import java.util.List;
 import java.util.Random;
 
 import android.content.ContentResolver;
@@ -35,6 +36,7 @@ import org.kontalk.crypto.Coder;
 import org.kontalk.message.LocationComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.Groups;
+import org.kontalk.provider.MyMessages.Media;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.service.msgcenter.group.KontalkGroupController;
@@ -48,14 +50,6 @@ import org.kontalk.util.Preferences;
  */
 public class MessagesProviderClient {
 
-    private static final String[] LATEST_THREADS_PROJ = {
-        Threads._ID,
-        Threads.PEER,
-    };
-
-    public static final int LATEST_THREADS_COLUMN_ID = 0;
-    public static final int LATEST_THREADS_COLUMN_PEER = 1;
-
     private MessagesProviderClient() {
     }
 
@@ -71,11 +65,40 @@ public class MessagesProviderClient {
         return b;
     }
 
-    public static Cursor getLatestThreads(Context context, boolean includeGroups, int limit) {
-        return context.getContentResolver().query(Threads.CONTENT_URI.buildUpon()
-                .appendQueryParameter("limit", String.valueOf(limit)).build(),
-            LATEST_THREADS_PROJ, includeGroups ? null : Groups.GROUP_JID + " IS NULL", null,
-            Threads.DEFAULT_SORT_ORDER);
+    /**
+     * Selection for incoming messages still waiting for our delivery receipt.
+     * Served by the (direction, status) index.
+     */
+    public static final String SELECTION_PENDING_RECEIPTS =
+        Messages.DIRECTION + " = " + Messages.DIRECTION_IN + " AND " +
+        Messages.STATUS + " = " + Messages.STATUS_INCOMING;
+
+    /**
+     * Returns the selection for outgoing messages still to be sent.
+     * Statuses are listed explicitly so the (direction, status) index can be used.
+     * @param includePending true to include messages pending user review
+     */
+    public static String getPendingOutgoingSelection(boolean includePending) {
+        StringBuilder filter = new StringBuilder()
+            .append(Messages.DIRECTION)
+            .append('=')
+            .append(Messages.DIRECTION_OUT)
+            .append(" AND ")
+            .append(Messages.STATUS)
+            .append(" IN (")
+            .append(Messages.STATUS_SENDING)
+            .append(',')
+            .append(Messages.STATUS_ERROR)
+            .append(',')
+            .append(Messages.STATUS_NOTACCEPTED);
+        if (includePending) filter
+            .append(',')
+            .append(Messages.STATUS_PENDING);
+        return filter.append(')').toString();
+    }
+
+    public static List<ThreadIndex.Entry> getLatestThreads(boolean includeGroups, int limit) {
+        return ThreadIndex.getInstance().getLatestThreads(includeGroups, limit);
     }
 
     /** Inserts a new outgoing text message. */
@@ -409,6 +432,92 @@ public class MessagesProviderClient {
             .withAppendedId(Messages.CONTENT_URI, msgId), values, null, null);
     }
 
+    /**
+     * Looks up a media file in the content hash index.
+     * Entries whose file has been deleted meanwhile are removed.
+     * @return the local Uri of the file or null if not found
+     */
+    public static Uri getMedia(Context context, String hash) {
+        ContentResolver cr = context.getContentResolver();
+        Uri mediaUri = Media.getUri(hash);
+        Cursor c = cr.query(mediaUri, new String[] { Media.LOCAL_URI, Media.LENGTH },
+            null, null, null);
+        if (c == null)
+            return null;
+
+        try {
+            if (c.moveToFirst()) {
+                Uri localUri = Uri.parse(c.getString(0));
+                File file = new File(localUri.getPath());
+                if (file.isFile() && file.length() == c.getLong(1))
+                    return localUri;
+
+                // file was removed or modified outside of the app
+                cr.delete(mediaUri, null, null);
+            }
+            return null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the content hash index key of a media file.
+     * @return the key or null if the file is not in the index
+     */
+    public static String getMediaHash(Context context, Uri localUri) {
+        Cursor c = context.getContentResolver().query(Media.CONTENT_URI,
+            new String[] { Media.HASH }, Media.LOCAL_URI + " = ?",
+            new String[] { localUri.toString() }, null);
+        if (c == null)
+            return null;
+
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Adds a media file created by the app to the content hash index. */
+    public static void addMedia(Context context, String hash, Uri localUri, long length) {
+        ContentValues values = new ContentValues(3);
+        values.put(Media.HASH, hash);
+        values.put(Media.LOCAL_URI, localUri.toString());
+        values.put(Media.LENGTH, length);
+        context.getContentResolver().insert(Media.CONTENT_URI, values);
+    }
+
+    /**
+     * Looks for a local copy of the media at the given fetch URL, as
+     * downloaded or sent by another message.
+     * @return the local Uri of the file or null if not found
+     */
+    public static Uri getDownloadedMedia(Context context, String fetchUrl, long excludeMsgId) {
+        Cursor c = context.getContentResolver().query(Messages.CONTENT_URI,
+            new String[] { Messages.ATTACHMENT_LOCAL_URI },
+            Messages.ATTACHMENT_FETCH_URL + " = ? AND " +
+                Messages.ATTACHMENT_LOCAL_URI + " IS NOT NULL AND " +
+                Messages._ID + " <> " + excludeMsgId,
+            new String[] { fetchUrl }, Messages._ID + " DESC");
+        if (c == null)
+            return null;
+
+        try {
+            while (c.moveToNext()) {
+                Uri localUri = Uri.parse(c.getString(0));
+                if ("file".equals(localUri.getScheme()) && new File(localUri.getPath()).isFile())
+                    return localUri;
+            }
+            return null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
     public static void deleteMessage(Context context, long id) {
         context.getContentResolver().delete(ContentUris
             .withAppendedId(Messages.CONTENT_URI, id), null, null);
@@ -537,6 +646,7 @@ public class MessagesProviderClient {
             context.getContentResolver()
                 .insert(Groups.getMembersUri(groupJid), values);
         }
+        Keyring.invalidateGroup(groupJid);
     }
 
     public static void removeGroupMembers(Context context, String groupJid, String[] members, boolean pending) {
@@ -558,6 +668,7 @@ public class MessagesProviderClient {
                         .appendPath(member).build(), null, null);
             }
         }
+        Keyring.invalidateGroup(groupJid);
     }
 
     public static int setGroupSubject(Context context, String groupJid, String subject) {
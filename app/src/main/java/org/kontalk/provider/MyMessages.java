@@ -87,6 +87,13 @@ public final class MyMessages {
             public static final String _ID = "rowid";
             public static final String THREAD_ID = "thread_id";
             public static final String CONTENT = "content";
+            /** Matching text with highlight markers (read only). */
+            public static final String SNIPPET = "snippet";
+
+            /** Highlight start marker in {@link #SNIPPET}. */
+            public static final char SNIPPET_START = '\u0002';
+            /** Highlight end marker in {@link #SNIPPET}. */
+            public static final char SNIPPET_END = '\u0003';
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -128,6 +135,14 @@ public final class MyMessages {
 
         public static final String IN_REPLY_TO = "in_reply_to";
 
+        // columns of the message referenced by IN_REPLY_TO (read only)
+        public static final String IN_REPLY_TO_MESSAGE_ID = "in_reply_to_msg_id";
+        public static final String IN_REPLY_TO_PEER = "in_reply_to_peer";
+        public static final String IN_REPLY_TO_DIRECTION = "in_reply_to_direction";
+        public static final String IN_REPLY_TO_TIMESTAMP = "in_reply_to_timestamp";
+        public static final String IN_REPLY_TO_BODY_MIME = "in_reply_to_body_mime";
+        public static final String IN_REPLY_TO_BODY_CONTENT = "in_reply_to_body_content";
+
         // not DESC here because the listview is reverse-stacked
         public static final String DEFAULT_SORT_ORDER = _ID;
         public static final String INVERTED_SORT_ORDER = _ID + " DESC";
@@ -256,4 +271,50 @@ public final class MyMessages {
          */
         public static final String PENDING = "pending";
     }
+
+    /**
+     * Content hash index of media files created by the app.
+     * A file is shared by all messages pointing to its local URI and it's
+     * deleted together with the last one of them.
+     */
+    public static final class Media {
+        private Media() {}
+
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+            + MessagesProvider.AUTHORITY + "/media");
+
+        public static Uri getUri(String hash) {
+            return Uri.parse("content://"
+                + MessagesProvider.AUTHORITY + "/media/" + Uri.encode(hash));
+        }
+
+        public static final String HASH = "hash";
+        public static final String LOCAL_URI = "local_uri";
+        public static final String LENGTH = "length";
+    }
+
+    /**
+     * Media already uploaded, so that identical content can be sent again
+     * without uploading it. Entries are removed together with their media.
+     */
+    public static final class Uploads {
+        private Uploads() {}
+
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+            + MessagesProvider.AUTHORITY + "/uploads");
+
+        public static Uri getUri(String key) {
+            return Uri.parse("content://"
+                + MessagesProvider.AUTHORITY + "/uploads/" + Uri.encode(key));
+        }
+
+        /** Media hash, MIME type and encryption mode. */
+        public static final String KEY = "upload_key";
+        public static final String MEDIA_HASH = "media_hash";
+        public static final String FETCH_URL = "fetch_url";
+        /** Length of the uploaded data (encrypted data for encrypted uploads). */
+        public static final String LENGTH = "length";
+        /** When the fetch URL should not be used anymore. */
+        public static final String EXPIRES = "expires";
+    }
 }
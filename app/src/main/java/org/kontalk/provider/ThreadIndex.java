@@ -0,0 +1,514 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.Nullable;
+
+import org.kontalk.Log;
+import org.kontalk.provider.MyMessages.Groups;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Threads;
+
+
+/**
+ * In-memory copy of the threads table, with group information.
+ * Threads are loaded once from the database; after that, the provider
+ * reloads the threads touched by every write right after its database
+ * transaction has ended and before any change notification is delivered.
+ * In between, readers of the index might still see the old threads while
+ * the database already has the new ones; since every reload reads
+ * committed data, the index catches up with concurrent writes no matter
+ * the order they commit in. Queries for latest threads and unread state
+ * are served without touching the database.
+ * @author Daniele Ricci
+ */
+public class ThreadIndex {
+    private static final String TAG = MessagesProvider.TAG;
+
+    private static final String[] PROJECTION = {
+        "threads." + Threads._ID,
+        Threads.PEER,
+        Threads.DIRECTION,
+        Threads.COUNT,
+        Threads.UNREAD,
+        "\"" + Threads.NEW + "\"",
+        Threads.MIME,
+        Threads.CONTENT,
+        Threads.TIMESTAMP,
+        Threads.STATUS,
+        Threads.ENCRYPTED,
+        Threads.DRAFT,
+        Threads.REQUEST_STATUS,
+        Threads.STICKY,
+        Threads.ENCRYPTION,
+        Groups.GROUP_JID,
+        Groups.SUBJECT,
+        Groups.GROUP_TYPE,
+        Groups.MEMBERSHIP,
+    };
+
+    /** Same as {@link Threads#DEFAULT_SORT_ORDER}. */
+    private static final Comparator<Entry> DEFAULT_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mSticky != rhs.mSticky)
+                return lhs.mSticky ? -1 : 1;
+            return compareLong(rhs.mTimestamp, lhs.mTimestamp);
+        }
+    };
+
+    /** Same as {@link Threads#INVERTED_SORT_ORDER}. */
+    private static final Comparator<Entry> INVERTED_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return compareLong(lhs.mTimestamp, rhs.mTimestamp);
+        }
+    };
+
+    private static volatile ThreadIndex sInstance;
+
+    private final SQLiteOpenHelper mHelper;
+    private final String mTable;
+
+    /** All threads by id. Null if not loaded yet. */
+    private Map<Long, Entry> mThreads;
+    /** Incremented every time a thread changes. */
+    private long mVersion;
+
+    ThreadIndex(SQLiteOpenHelper helper, String table) {
+        mHelper = helper;
+        mTable = table;
+    }
+
+    /** Called by {@link MessagesProvider} when it's created. */
+    static void init(ThreadIndex index) {
+        sInstance = index;
+    }
+
+    /**
+     * Returns the index of the messages provider. The provider is created
+     * when the process starts, so this is always available to the app.
+     */
+    public static ThreadIndex getInstance() {
+        ThreadIndex index = sInstance;
+        if (index == null)
+            throw new IllegalStateException("messages provider not created yet");
+        return index;
+    }
+
+    /**
+     * Returns a number that changes every time any thread is created,
+     * modified or deleted. It doesn't need the index to be loaded.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /** Returns a thread, or null if not found. */
+    public synchronized Entry get(long threadId) {
+        ensureLoaded();
+        return mThreads.get(threadId);
+    }
+
+    /**
+     * Returns the latest threads, sticky first.
+     * @param includeGroups false to return one-to-one chats only
+     * @param limit maximum number of threads to return, 0 for no limit
+     */
+    public synchronized List<Entry> getLatestThreads(boolean includeGroups, int limit) {
+        ensureLoaded();
+        List<Entry> list = new ArrayList<>(mThreads.size());
+        for (Entry e : mThreads.values()) {
+            if (includeGroups || !e.isGroupChat())
+                list.add(e);
+        }
+        Collections.sort(list, DEFAULT_ORDER);
+        if (limit > 0 && list.size() > limit)
+            list = new ArrayList<>(list.subList(0, limit));
+        return list;
+    }
+
+    /**
+     * Returns threads with new messages whose latest message is incoming,
+     * oldest first.
+     * @param excludePeer a user or group JID to exclude, may be null
+     */
+    public synchronized List<Entry> getNewThreads(@Nullable String excludePeer) {
+        ensureLoaded();
+        List<Entry> list = new ArrayList<>();
+        for (Entry e : mThreads.values()) {
+            if (e.hasNewMessages(excludePeer) && e.mDirection == Messages.DIRECTION_IN)
+                list.add(e);
+        }
+        Collections.sort(list, INVERTED_ORDER);
+        return list;
+    }
+
+    /**
+     * Returns true if any thread has new messages.
+     * @param excludePeer a user or group JID to exclude, may be null
+     */
+    public synchronized boolean hasNewMessages(@Nullable String excludePeer) {
+        ensureLoaded();
+        for (Entry e : mThreads.values()) {
+            if (e.hasNewMessages(excludePeer))
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns threads with the given subscription request status. */
+    public synchronized List<Entry> getRequests(int... requestStatus) {
+        ensureLoaded();
+        List<Entry> list = new ArrayList<>();
+        for (Entry e : mThreads.values()) {
+            for (int status : requestStatus) {
+                if (e.mRequestStatus == status) {
+                    list.add(e);
+                    break;
+                }
+            }
+        }
+        return list;
+    }
+
+    /** Starts tracking changes for a provider write. */
+    Transaction begin() {
+        return new Transaction();
+    }
+
+    private void ensureLoaded() {
+        if (mThreads == null) {
+            Map<Long, Entry> threads = new HashMap<>();
+            Cursor c = mHelper.getReadableDatabase()
+                .query(mTable, PROJECTION, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    Entry e = new Entry(c);
+                    threads.put(e.mId, e);
+                }
+            }
+            finally {
+                c.close();
+            }
+            mThreads = threads;
+        }
+    }
+
+    private static int compareLong(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    /**
+     * Threads changed by a provider write.
+     * Must be committed by the provider after ending the database
+     * transaction and before delivering change notifications.
+     */
+    final class Transaction {
+        private Set<Long> mChanged;
+        private boolean mChangedAll;
+
+        Transaction() {
+        }
+
+        void changed(long threadId) {
+            if (threadId > 0 && !mChangedAll) {
+                if (mChanged == null)
+                    mChanged = new HashSet<>();
+                mChanged.add(threadId);
+            }
+        }
+
+        /** Used when there is no way to know which threads were changed. */
+        void changedAll() {
+            mChangedAll = true;
+            mChanged = null;
+        }
+
+        /**
+         * Reloads the changed threads. Must be called after the database
+         * transaction has ended, so it will read committed data whatever
+         * the transaction outcome was.
+         */
+        void commit(SQLiteDatabase db) {
+            if (!mChangedAll && mChanged == null)
+                return;
+
+            synchronized (ThreadIndex.this) {
+                // not loaded yet: the first read will find the new data
+                if (mThreads == null) {
+                    mVersion++;
+                    return;
+                }
+
+                try {
+                    if (mChangedAll)
+                        reloadAll(db);
+                    else
+                        reload(db);
+                }
+                catch (SQLiteException e) {
+                    Log.w(TAG, "unable to update thread index", e);
+                    // start again from scratch on next read
+                    mThreads = null;
+                    mVersion++;
+                }
+            }
+        }
+
+        private void reloadAll(SQLiteDatabase db) {
+            Map<Long, Entry> threads = new HashMap<>(mThreads.size());
+            Cursor c = db.query(mTable, PROJECTION, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    Entry e = new Entry(c);
+                    threads.put(e.mId, e);
+                }
+            }
+            finally {
+                c.close();
+            }
+            if (!threads.equals(mThreads)) {
+                mThreads = threads;
+                mVersion++;
+            }
+        }
+
+        private void reload(SQLiteDatabase db) {
+            StringBuilder where = new StringBuilder("threads." + Threads._ID + " IN (");
+            boolean first = true;
+            for (long id : mChanged) {
+                if (!first)
+                    where.append(',');
+                where.append(id);
+                first = false;
+            }
+            where.append(')');
+
+            Set<Long> missing = new HashSet<>(mChanged);
+            boolean changed = false;
+            Cursor c = db.query(mTable, PROJECTION, where.toString(), null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    Entry e = new Entry(c);
+                    missing.remove(e.mId);
+                    if (!e.equals(mThreads.put(e.mId, e)))
+                        changed = true;
+                }
+            }
+            finally {
+                c.close();
+            }
+
+            // threads not found anymore were deleted
+            for (Long id : missing) {
+                if (mThreads.remove(id) != null)
+                    changed = true;
+            }
+
+            if (changed)
+                mVersion++;
+        }
+    }
+
+    /** An immutable thread snapshot. */
+    public static final class Entry {
+        final long mId;
+        final String mPeer;
+        final int mDirection;
+        final int mCount;
+        final int mUnread;
+        final int mNew;
+        final String mMime;
+        final String mContent;
+        final long mTimestamp;
+        final int mStatus;
+        final boolean mEncrypted;
+        final String mDraft;
+        final int mRequestStatus;
+        final boolean mSticky;
+        final boolean mEncryption;
+        final String mGroupJid;
+        final String mGroupSubject;
+        final String mGroupType;
+        final int mGroupMembership;
+
+        Entry(Cursor c) {
+            mId = c.getLong(0);
+            mPeer = c.getString(1);
+            mDirection = c.getInt(2);
+            mCount = c.getInt(3);
+            mUnread = c.getInt(4);
+            mNew = c.getInt(5);
+            mMime = c.getString(6);
+            mContent = c.getString(7);
+            mTimestamp = c.getLong(8);
+            mStatus = c.getInt(9);
+            mEncrypted = c.getInt(10) != 0;
+            mDraft = c.getString(11);
+            mRequestStatus = c.getInt(12);
+            mSticky = c.getInt(13) != 0;
+            mEncryption = c.getInt(14) != 0;
+            mGroupJid = c.getString(15);
+            mGroupSubject = c.getString(16);
+            mGroupType = c.getString(17);
+            mGroupMembership = c.getInt(18);
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getPeer() {
+            return mPeer;
+        }
+
+        /** Direction of the latest message. */
+        public int getDirection() {
+            return mDirection;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getUnreadCount() {
+            return mUnread;
+        }
+
+        /** Number of incoming messages not notified yet. */
+        public int getNewCount() {
+            return mNew;
+        }
+
+        public String getMime() {
+            return mMime;
+        }
+
+        /** Content of the latest message, as in {@link Threads#CONTENT}. */
+        public String getContent() {
+            return mContent;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public boolean isEncrypted() {
+            return mEncrypted;
+        }
+
+        public String getDraft() {
+            return mDraft;
+        }
+
+        public int getRequestStatus() {
+            return mRequestStatus;
+        }
+
+        public boolean isSticky() {
+            return mSticky;
+        }
+
+        public boolean isEncryptionEnabled() {
+            return mEncryption;
+        }
+
+        public boolean isGroupChat() {
+            return mGroupJid != null;
+        }
+
+        public String getGroupJid() {
+            return mGroupJid;
+        }
+
+        public String getGroupSubject() {
+            return mGroupSubject;
+        }
+
+        public String getGroupType() {
+            return mGroupType;
+        }
+
+        public int getGroupMembership() {
+            return mGroupMembership;
+        }
+
+        boolean hasNewMessages(String excludePeer) {
+            return mNew != 0 && (excludePeer == null || (!excludePeer.equals(mPeer) &&
+                    !excludePeer.equals(mGroupJid)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Entry))
+                return false;
+
+            Entry e = (Entry) o;
+            return mId == e.mId &&
+                mDirection == e.mDirection &&
+                mCount == e.mCount &&
+                mUnread == e.mUnread &&
+                mNew == e.mNew &&
+                mTimestamp == e.mTimestamp &&
+                mStatus == e.mStatus &&
+                mEncrypted == e.mEncrypted &&
+                mRequestStatus == e.mRequestStatus &&
+                mSticky == e.mSticky &&
+                mEncryption == e.mEncryption &&
+                mGroupMembership == e.mGroupMembership &&
+                equals(mPeer, e.mPeer) &&
+                equals(mMime, e.mMime) &&
+                equals(mContent, e.mContent) &&
+                equals(mDraft, e.mDraft) &&
+                equals(mGroupJid, e.mGroupJid) &&
+                equals(mGroupSubject, e.mGroupSubject) &&
+                equals(mGroupType, e.mGroupType);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mId ^ (mId >>> 32)) * 31 + (int) (mTimestamp ^ (mTimestamp >>> 32));
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+}
@@ -25,7 +25,6 @@ import java.util.List;
 import android.annotation.TargetApi;
 import android.content.ComponentName;
 import android.content.IntentFilter;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
@@ -42,6 +41,7 @@ import android.support.annotation.NonNull;
 
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MessagesProviderClient;
+import org.kontalk.provider.ThreadIndex;
 import org.kontalk.ui.ComposeMessage;
 
 
@@ -66,11 +66,11 @@ public class DirectShareTargetService extends ChooserTargetService {
         ComponentName componentName = new ComponentName(getPackageName(),
             ComposeMessage.class.getCanonicalName());
 
-        Cursor cursor = MessagesProviderClient.getLatestThreads(this, false, MAX_TARGETS);
-        if (cursor.moveToFirst()) {
-            List<ChooserTarget> targets = new ArrayList<>(MAX_TARGETS);
-            do {
-                String userId = cursor.getString(MessagesProviderClient.LATEST_THREADS_COLUMN_PEER);
+        List<ThreadIndex.Entry> threads = MessagesProviderClient.getLatestThreads(false, MAX_TARGETS);
+        if (threads.size() > 0) {
+            List<ChooserTarget> targets = new ArrayList<>(threads.size());
+            for (ThreadIndex.Entry thread : threads) {
+                String userId = thread.getPeer();
 
                 Contact contact = Contact.findByUserId(this, userId);
 
@@ -81,7 +81,7 @@ public class DirectShareTargetService extends ChooserTargetService {
                 targets.add(new ChooserTarget(contact.getDisplayName(),
                     Icon.createWithBitmap(createRoundBitmap(contact.getAvatarBitmap(this))), 0.5f,
                     componentName, extras));
-            } while (cursor.moveToNext());
+            }
             return targets;
         }
 
@@ -169,6 +169,15 @@ public class DownloadService extends IntentService implements DownloadListener {
             mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
             sQueue.put(url, mMessageId);
 
+            // reuse the file if another message downloaded it already
+            Uri existing = MessagesProviderClient.getDownloadedMedia(this, url, mMessageId);
+            if (existing != null) {
+                Log.d(TAG, "media already downloaded: " + existing);
+                MessagesProviderClient.downloaded(this, mMessageId, existing);
+                stopForeground();
+                return;
+            }
+
             Date date;
             long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
             if (timestamp > 0)
@@ -319,11 +328,8 @@ public class DownloadService extends IntentService implements DownloadListener {
             }
         }
 
-        // mark file as downloaded
-        MessagesProviderClient.downloaded(this, mMessageId, uri);
-
-        // update media store
-        MediaStorage.scanFile(this, destination, mime);
+        // keep only one copy of identical files and mark file as downloaded
+        uri = storeMedia(destination, mime);
 
         // stop foreground
         stopForeground();
@@ -357,6 +363,39 @@ public class DownloadService extends IntentService implements DownloadListener {
         }
     }
 
+    /**
+     * Adds a downloaded file to the media index and marks it as downloaded.
+     * If an identical file was already there, the message will use that
+     * file instead and the downloaded file is deleted.
+     * @return the Uri of the file used by the message
+     */
+    private Uri storeMedia(File file, String mime) {
+        Uri uri = Uri.fromFile(file);
+        try {
+            String hash = MediaStorage.getContentHash(this, uri);
+            Uri stored = MessagesProviderClient.getMedia(this, hash);
+            if (stored != null && !stored.equals(uri)) {
+                MessagesProviderClient.downloaded(this, mMessageId, stored);
+                // the file is safe only once the message references it: a
+                // message deleted before that might have released it
+                if (new File(stored.getPath()).isFile()) {
+                    Log.d(TAG, "duplicate media, using " + stored);
+                    file.delete();
+                    return stored;
+                }
+            }
+            MessagesProviderClient.addMedia(this, hash, uri, file.length());
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to hash media " + file, e);
+        }
+
+        // update media store
+        MediaStorage.scanFile(this, file, mime);
+        MessagesProviderClient.downloaded(this, mMessageId, uri);
+        return uri;
+    }
+
     @Override
     public void error(String url, File destination, Throwable exc) {
         Log.e(TAG, "download error", exc);
@@ -21,10 +21,10 @@ package org.kontalk.service;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Date;
+import java.util.concurrent.CancellationException;
 
 import com.instacart.library.truetime.TrueTime;
 
-import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -34,11 +34,13 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.content.LocalBroadcastManager;
 
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.crypto.PersonalKey;
+import org.kontalk.crypto.PersonalKeyGenerator;
 import org.kontalk.ui.ConversationsActivity;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_KEYPAIR_GEN;
@@ -58,15 +60,22 @@ public class KeyPairGeneratorService extends Service {
      * generator thread has started.
      */
     public static final String ACTION_STARTED = "org.kontalk.keypair.STARTED";
+    /** Broadcasted every time one of the key pairs has been generated. */
+    public static final String ACTION_PROGRESS = "org.kontalk.keypair.PROGRESS";
 
     public static final String EXTRA_KEY = "org.kontalk.keypair.KEY";
     public static final String EXTRA_FOREGROUND = "org.kontalk.keypair.FOREGROUND";
+    /** Number of key pairs generated so far. */
+    public static final String EXTRA_PROGRESS = "org.kontalk.keypair.PROGRESS";
+    /** Total number of key pairs to generate. */
+    public static final String EXTRA_TOTAL = "org.kontalk.keypair.TOTAL";
 
     private static final String NTP_DEFAULT_SERVER = "time.google.com";
     private static final int NTP_MAX_RETRIES = 3;
 
     private GeneratorThread mThread;
     private volatile PersonalKey mKey;
+    private NotificationCompat.Builder mNotification;
 
     private LocalBroadcastManager lbm;
 
@@ -82,7 +91,7 @@ public class KeyPairGeneratorService extends Service {
                 if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
                     startForeground();
 
-                mThread = new GeneratorThread(this);
+                mThread = new GeneratorThread(this, new Handler());
                 mThread.start();
 
                 broadcastStarted();
@@ -97,6 +106,16 @@ public class KeyPairGeneratorService extends Service {
         return START_REDELIVER_INTENT;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // key is not needed anymore
+        if (mThread != null) {
+            mThread.cancel();
+            mThread = null;
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -108,20 +127,21 @@ public class KeyPairGeneratorService extends Service {
         PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
             NOTIFICATION_ID_KEYPAIR_GEN, ni, 0);
 
-        Notification no = new NotificationCompat.Builder(this)
+        mNotification = new NotificationCompat.Builder(this)
             .setOngoing(true)
             .setTicker(getString(R.string.notify_gen_keypair_ticker))
             .setSmallIcon(R.drawable.ic_stat_notify)
             .setContentTitle(getString(R.string.notify_gen_keypair_title))
             .setContentText(getString(R.string.notify_gen_keypair_text))
-            .setContentIntent(pi)
-            .build();
+            .setProgress(PersonalKeyGenerator.STEPS, 0, false)
+            .setContentIntent(pi);
 
-        startForeground(NOTIFICATION_ID_KEYPAIR_GEN, no);
+        startForeground(NOTIFICATION_ID_KEYPAIR_GEN, mNotification.build());
     }
 
-    private void stopForeground() {
+    void stopForeground() {
         stopForeground(true);
+        mNotification = null;
     }
 
     private void broadcastKey() {
@@ -135,16 +155,35 @@ public class KeyPairGeneratorService extends Service {
         lbm.sendBroadcast(i);
     }
 
-    private void keypairGenerated(PersonalKey key) {
+    void keypairProgress(int completed, int total) {
+        if (mNotification != null) {
+            mNotification.setProgress(total, completed, false);
+            NotificationManagerCompat.from(this)
+                .notify(NOTIFICATION_ID_KEYPAIR_GEN, mNotification.build());
+        }
+
+        Intent i = new Intent(ACTION_PROGRESS);
+        i.putExtra(EXTRA_PROGRESS, completed);
+        i.putExtra(EXTRA_TOTAL, total);
+        lbm.sendBroadcast(i);
+    }
+
+    void keypairGenerated(PersonalKey key) {
         mKey = key;
         broadcastKey();
     }
 
-    private static final class GeneratorThread extends Thread {
+    private static final class GeneratorThread extends Thread
+            implements PersonalKeyGenerator.ProgressListener {
         private WeakReference<KeyPairGeneratorService> s;
+        /** Used for delivering results to the service thread. */
+        private final Handler mHandler;
+        private PersonalKeyGenerator mGenerator;
+        private boolean mCanceled;
 
-        GeneratorThread(KeyPairGeneratorService service) {
+        GeneratorThread(KeyPairGeneratorService service, Handler handler) {
             s = new WeakReference<>(service);
+            mHandler = handler;
         }
 
         @Override
@@ -156,21 +195,65 @@ public class KeyPairGeneratorService extends Service {
             if (service != null) {
                 // we need the real time from the Internet
                 Date timestamp = getRealtime(service);
+                service = null;
+
+                PersonalKeyGenerator generator = new PersonalKeyGenerator(timestamp);
+                synchronized (this) {
+                    if (mCanceled)
+                        return;
+                    mGenerator = generator;
+                }
 
                 try {
-                    PersonalKey key = PersonalKey.create(timestamp);
+                    final PersonalKey key = generator.generate(this);
                     Log.v("KeyPair", "key pair generated: " + key);
-                    service.keypairGenerated(key);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            KeyPairGeneratorService service = s.get();
+                            if (service != null) {
+                                service.keypairGenerated(key);
+                                service.stopForeground();
+                            }
+                        }
+                    });
+                }
+                catch (CancellationException e) {
+                    Log.v("KeyPair", "keypair generation cancelled");
                 }
                 catch (IOException e) {
                     Log.v("KeyPair", "keypair generation failed", e);
                     // TODO notify user
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            KeyPairGeneratorService service = s.get();
+                            if (service != null)
+                                service.stopForeground();
+                        }
+                    });
                 }
-
-                service.stopForeground();
             }
         }
 
+        @Override
+        public void onProgress(final int completed, final int total) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    KeyPairGeneratorService service = s.get();
+                    if (service != null)
+                        service.keypairProgress(completed, total);
+                }
+            });
+        }
+
+        public synchronized void cancel() {
+            mCanceled = true;
+            if (mGenerator != null)
+                mGenerator.cancel();
+        }
+
         private Date getRealtime(Context context) {
             try {
                 return TrueTime.now();
@@ -19,6 +19,7 @@
 package org.kontalk.service;
 
 import java.io.File;
+import java.io.IOException;
 
 import android.app.IntentService;
 import android.content.Context;
@@ -26,12 +27,14 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 
+import org.kontalk.Log;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.provider.MessagesProviderClient.MessageUpdater;
 import org.kontalk.provider.MyMessages;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.util.ImageEncoder;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
 
@@ -67,8 +70,12 @@ public class MediaService extends IntentService {
         long databaseId = args.getLong(CompositeMessage.MSG_ID);
         String mime = args.getString(CompositeMessage.MSG_MIME);
         boolean media = args.getBoolean("org.kontalk.message.media", false);
+        Uri source = uri;
 
         try {
+            // wait for voice notes still being encrypted
+            VoiceNoteStreamer.await(uri);
+
             File previewFile = null;
             long length;
 
@@ -82,28 +89,42 @@ public class MediaService extends IntentService {
                 previewFile = MediaStorage.cacheThumbnail(this, uri, filename, true);
             }
 
-            if (compress > 0) {
-                File compressed = MediaStorage.resizeImage(this, uri, compress);
-                length = compressed.length();
-                // use the compressed image from now on
-                uri = Uri.fromFile(compressed);
-            }
-            else if (media) {
-                File copy = MediaStorage.copyOutgoingMedia(this, uri);
-                length = copy.length();
-                uri = Uri.fromFile(copy);
+            // compress more on slow or metered networks
+            long maxBytes = compress > 0 ? ImageEncoder.getByteBudget(this) : 0;
+            String key = null;
+            boolean reused = false;
+            if (compress > 0 || media) {
+                key = getMediaKey(uri, compress, maxBytes);
+                Uri stored = key != null ? MessagesProviderClient.getMedia(this, key) : null;
+                if (stored != null)
+                    reused = true;
+                else
+                    stored = storeMedia(source, key, compress, maxBytes);
+                // use the compressed image or the copy from now on
+                uri = stored;
+                length = new File(uri.getPath()).length();
             }
             else {
                 length = MediaStorage.getLength(this, uri);
             }
 
-            MessagesProviderClient.updateMedia(this, databaseId,
-                previewFile != null ? previewFile.toString() : null,
-                uri, length);
+            String preview = previewFile != null ? previewFile.toString() : null;
+            MessagesProviderClient.updateMedia(this, databaseId, preview, uri, length);
+
+            // a reused file is safe only once the message references it: a
+            // message deleted before that might have released it
+            if (reused && !new File(uri.getPath()).isFile()) {
+                Log.d(TAG, "media " + uri + " was released, storing a new copy");
+                uri = storeMedia(source, key, compress, maxBytes);
+                length = new File(uri.getPath()).length();
+                MessagesProviderClient.updateMedia(this, databaseId, preview, uri, length);
+            }
 
             MessageCenterService.sendMedia(this, databaseId);
         }
         catch (Exception e) {
+            // voice note will not be sent
+            VoiceNoteStreamer.discard(source);
             MessageUpdater.forMessage(this, databaseId)
                 .setStatus(MyMessages.Messages.STATUS_ERROR)
                 .commit();
@@ -111,6 +132,37 @@ public class MediaService extends IntentService {
         }
     }
 
+    /**
+     * Copies (or compresses, if requested) an outgoing file to the app
+     * storage and adds it to the media index.
+     * @return the Uri of the stored file
+     */
+    private Uri storeMedia(Uri uri, String key, int compress, long maxBytes) throws IOException {
+        File file = compress > 0 ?
+            MediaStorage.resizeImage(this, uri, compress, maxBytes) :
+            MediaStorage.copyOutgoingMedia(this, uri);
+        Uri stored = Uri.fromFile(file);
+        if (key != null)
+            MessagesProviderClient.addMedia(this, key, stored, file.length());
+        return stored;
+    }
+
+    /**
+     * Returns the media index key for an outgoing file. Compressed images
+     * depend on the compression parameters too.
+     * @return the key or null if the file could not be read
+     */
+    private String getMediaKey(Uri uri, int compress, long maxBytes) {
+        try {
+            String hash = MediaStorage.getContentHash(this, uri);
+            return compress > 0 ? hash + ":" + compress + ":" + maxBytes : hash;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to hash media " + uri, e);
+            return null;
+        }
+    }
+
     public static void prepareMessage(Context context, String msgId, long databaseId, Uri uri, String mime, boolean media, int compress) {
         Intent i = new Intent(context, MediaService.class);
         i.setAction(MediaService.ACTION_PREPARE_MESSAGE);
@@ -26,6 +26,7 @@ package org.kontalk.service;
 import java.io.File;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import android.app.IntentService;
 import android.app.Notification;
@@ -34,6 +35,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 
 import org.kontalk.Log;
@@ -44,7 +46,9 @@ import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.ui.ConversationsActivity;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.HTPPFileUploadConnection;
+import org.kontalk.upload.UploadCache;
 import org.kontalk.upload.UploadConnection;
+import org.kontalk.util.LatencyStats;
 import org.kontalk.util.MediaStorage;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
@@ -62,6 +66,15 @@ public class UploadService extends IntentService implements ProgressListener {
     /** A map to avoid duplicate uploads. */
     private static final Map<String, Long> queue = new LinkedHashMap<>();
 
+    /**
+     * Upload slots older than this will not be used. XEP-0363 doesn't
+     * mandate a lifetime, this is a conservative guess.
+     */
+    private static final long SLOT_LIFETIME = TimeUnit.MINUTES.toMillis(5);
+
+    /** Time from slot request to the first byte sent. */
+    private static final LatencyStats sFirstByteLatency = new LatencyStats(50);
+
     public static final String ACTION_UPLOAD = "org.kontalk.action.UPLOAD";
     public static final String ACTION_UPLOAD_ABORT = "org.kontalk.action.UPLOAD_ABORT";
 
@@ -85,6 +98,14 @@ public class UploadService extends IntentService implements ProgressListener {
     public static final String EXTRA_ENCRYPT = "org.kontalk.upload.ENCRYPT";
     /** Delete local file after sending attempt. */
     public static final String EXTRA_DELETE_ORIGINAL = "org.kontalk.upload.DELETE_ORIGINAL";
+    /** When the upload slot was requested (elapsed realtime). */
+    public static final String EXTRA_REQUEST_TIME = "org.kontalk.upload.REQUEST_TIME";
+    /** When the upload slot was received (elapsed realtime). */
+    public static final String EXTRA_SLOT_TIME = "org.kontalk.upload.SLOT_TIME";
+    /** Upload cache key, the upload will be remembered if present. */
+    public static final String EXTRA_CACHE_KEY = "org.kontalk.upload.CACHE_KEY";
+    /** Media index key of the file, required by {@link #EXTRA_CACHE_KEY}. */
+    public static final String EXTRA_MEDIA_HASH = "org.kontalk.upload.MEDIA_HASH";
     // Intent data is the local file Uri
 
     private ProgressNotificationBuilder mNotificationBuilder;
@@ -97,6 +118,7 @@ public class UploadService extends IntentService implements ProgressListener {
     private long mMessageId;
     private UploadConnection mConn;
     private boolean mCanceled;
+    private long mRequestTime;
 
     public UploadService() {
         super(UploadService.class.getSimpleName());
@@ -169,10 +191,25 @@ public class UploadService extends IntentService implements ProgressListener {
         // delete original
         boolean deleteOriginal = intent.getBooleanExtra(EXTRA_DELETE_ORIGINAL, false);
 
+        // slot timing
+        long requestTime = intent.getLongExtra(EXTRA_REQUEST_TIME, 0);
+        long slotTime = intent.getLongExtra(EXTRA_SLOT_TIME, 0);
+
+        // upload cache
+        String cacheKey = intent.getStringExtra(EXTRA_CACHE_KEY);
+        String mediaHash = intent.getStringExtra(EXTRA_MEDIA_HASH);
+
         // check if upload has already been queued
         if (queue.get(filename) != null) return;
 
         try {
+            if (slotTime > 0 && SystemClock.elapsedRealtime() - slotTime > SLOT_LIFETIME) {
+                // we waited too long in the queue, request a new slot
+                Log.d(TAG, "upload slot expired, sending message again");
+                MessageCenterService.sendMedia(this, databaseId);
+                return;
+            }
+
             // notify user about upload immediately
             long length = MediaStorage.getLength(this, file);
             Log.v(TAG, "file size is " + length + " bytes");
@@ -186,6 +223,7 @@ public class UploadService extends IntentService implements ProgressListener {
             mConn = new HTPPFileUploadConnection(this, url);
 
             mMessageId = databaseId;
+            mRequestTime = requestTime;
             queue.put(filename, mMessageId);
 
             // upload content
@@ -197,6 +235,10 @@ public class UploadService extends IntentService implements ProgressListener {
             // update message fetch_url
             MessagesProviderClient.uploaded(this, databaseId, mediaUrl);
 
+            // identical content will not be uploaded again
+            if (cacheKey != null && mediaHash != null)
+                UploadCache.put(this, cacheKey, mediaHash, mediaUrl, length);
+
             // send message with fetch url to server
             if (groupJid != null) {
                 MessageCenterService.sendGroupUploadedMedia(this, groupJid, to,
@@ -220,6 +262,7 @@ public class UploadService extends IntentService implements ProgressListener {
 
             queue.remove(filename);
             mMessageId = 0;
+            mRequestTime = 0;
         }
     }
 
@@ -261,6 +304,11 @@ public class UploadService extends IntentService implements ProgressListener {
 
     @Override
     public void start(UploadConnection conn) {
+        if (mRequestTime > 0) {
+            long latency = SystemClock.elapsedRealtime() - mRequestTime;
+            sFirstByteLatency.add(latency);
+            Log.d(TAG, "upload started " + latency + " ms after slot request, " + sFirstByteLatency);
+        }
         startForeground(mTotalBytes);
     }
 
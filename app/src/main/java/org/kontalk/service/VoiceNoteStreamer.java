@@ -0,0 +1,335 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.provider.Keyring;
+import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
+
+
+/**
+ * Encrypts a voice note while it's being recorded.
+ * The recording file is read as the recorder writes it, so it must be
+ * written sequentially (e.g. ADTS, not 3GPP). When the message is sent,
+ * the encrypted file is picked up with {@link #take} instead of
+ * encrypting the whole recording; any failure or mismatch will make the
+ * sender encrypt the file as usual. Encrypted files not picked up within
+ * {@link #MAX_AGE} after recording are discarded.
+ * @author Daniele Ricci
+ */
+public class VoiceNoteStreamer implements Runnable {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Delay between reads while waiting for new data. */
+    private static final long POLL_DELAY = 100;
+
+    /** Max time to wait for the encryption to complete after recording. */
+    private static final long MAX_WAIT = 5000;
+
+    /** Max time an encrypted recording is kept if nobody takes it. */
+    private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(30);
+
+    /** Streams by recording path. */
+    private static final Map<String, VoiceNoteStreamer> sStreams = new HashMap<>();
+
+    private final Context mContext;
+    private final File mRecording;
+    private final String mGroupJid;
+    private final String[] mUsers;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mFinished;
+    private volatile long mFinishTime;
+    private volatile boolean mCanceled;
+
+    private File mEncrypted;
+    private long mLength;
+
+    private VoiceNoteStreamer(Context context, File recording, String groupJid, String[] users) {
+        mContext = context;
+        mRecording = recording;
+        mGroupJid = groupJid;
+        mUsers = users;
+    }
+
+    /**
+     * Starts encrypting a recording for the given recipients.
+     * @param groupJid group JID, or null for a 1-to-1 conversation
+     */
+    public static VoiceNoteStreamer start(Context context, File recording, String groupJid, String[] users) {
+        VoiceNoteStreamer stream = register(context.getApplicationContext(), recording, groupJid, users);
+        new Thread(stream, "VoiceNoteStreamer").start();
+        return stream;
+    }
+
+    @VisibleForTesting
+    static VoiceNoteStreamer register(Context context, File recording, String groupJid, String[] users) {
+        discardExpired();
+        VoiceNoteStreamer stream = new VoiceNoteStreamer(context, recording, groupJid, users);
+        synchronized (sStreams) {
+            sStreams.put(recording.getAbsolutePath(), stream);
+        }
+        return stream;
+    }
+
+    /** Must be called after the recorder has been stopped, whether the recording is used or not. */
+    public void finish() {
+        mFinishTime = SystemClock.elapsedRealtime();
+        mFinished = true;
+    }
+
+    /** Stops encryption and discards everything. */
+    public void cancel() {
+        mCanceled = true;
+        remove(mRecording.getAbsolutePath());
+        synchronized (this) {
+            if (mEncrypted != null) {
+                mEncrypted.delete();
+                mEncrypted = null;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        File temp = null;
+        try {
+            PersonalKey key = Kontalk.get(mContext).getPersonalKey();
+            EndpointServer server = Preferences.getEndpointServer(mContext);
+            Coder coder = Keyring.getEncryptCoder(mContext, server, key, mGroupJid, mUsers);
+
+            temp = File.createTempFile("media", null, mContext.getCacheDir());
+            TailInputStream in = new TailInputStream(mRecording);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                coder.encryptFile(in, out);
+            }
+            finally {
+                SystemUtils.closeStream(in);
+                SystemUtils.closeStream(out);
+            }
+
+            complete(temp, in.getCount());
+            temp = null;
+        }
+        catch (Exception e) {
+            if (!mCanceled)
+                Log.w(TAG, "voice note encryption failed, will encrypt after recording", e);
+        }
+        finally {
+            if (temp != null)
+                temp.delete();
+            mDone.countDown();
+        }
+    }
+
+    /** Stores the encrypted file, or deletes it if the stream was canceled. */
+    @VisibleForTesting
+    void complete(File encrypted, long length) {
+        synchronized (this) {
+            if (mCanceled) {
+                encrypted.delete();
+            }
+            else {
+                mEncrypted = encrypted;
+                mLength = length;
+            }
+        }
+        mDone.countDown();
+    }
+
+    /**
+     * Waits for the encryption of the given recording to complete, if it
+     * is being encrypted.
+     */
+    public static void await(Uri recording) {
+        discardExpired();
+        VoiceNoteStreamer stream;
+        synchronized (sStreams) {
+            stream = sStreams.get(recording.getPath());
+        }
+
+        if (stream != null) {
+            try {
+                if (!stream.mDone.await(MAX_WAIT, TimeUnit.MILLISECONDS))
+                    Log.w(TAG, "voice note encryption is taking too long");
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the encrypted version of the given recording, if it was
+     * encrypted for the same recipients and it's complete.
+     * @return the encrypted file (to be deleted by the caller) or null
+     */
+    public static File take(Uri recording, String groupJid, String[] users) {
+        String path = recording.getPath();
+        return path != null ? take(path, groupJid, users) : null;
+    }
+
+    @VisibleForTesting
+    static File take(String path, String groupJid, String[] users) {
+        discardExpired();
+        VoiceNoteStreamer stream = remove(path);
+        if (stream == null)
+            return null;
+
+        if (stream.mDone.getCount() > 0) {
+            Log.d(TAG, "voice note encryption not completed yet");
+            stream.cancel();
+            return null;
+        }
+
+        synchronized (stream) {
+            File encrypted = stream.mEncrypted;
+            if (encrypted == null)
+                return null;
+
+            if ((groupJid != null ? groupJid.equals(stream.mGroupJid) : stream.mGroupJid == null) &&
+                    new HashSet<>(Arrays.asList(users)).equals(new HashSet<>(Arrays.asList(stream.mUsers))) &&
+                    new File(path).length() == stream.mLength) {
+                stream.mEncrypted = null;
+                return encrypted;
+            }
+        }
+
+        Log.d(TAG, "voice note recipients or data changed, encrypting again");
+        stream.cancel();
+        return null;
+    }
+
+    /**
+     * Discards the encrypted version of the given recording, e.g. because
+     * the message will not be sent encrypted.
+     */
+    public static void discard(Uri recording) {
+        String path = recording.getPath();
+        VoiceNoteStreamer stream = path != null ? remove(path) : null;
+        if (stream != null)
+            stream.cancel();
+    }
+
+    /** Discards recordings nobody took in time (e.g. the message was never sent). */
+    private static void discardExpired() {
+        List<VoiceNoteStreamer> expired = null;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sStreams) {
+            Iterator<VoiceNoteStreamer> iter = sStreams.values().iterator();
+            while (iter.hasNext()) {
+                VoiceNoteStreamer stream = iter.next();
+                if (stream.mFinished && now - stream.mFinishTime > MAX_AGE) {
+                    iter.remove();
+                    if (expired == null)
+                        expired = new LinkedList<>();
+                    expired.add(stream);
+                }
+            }
+        }
+
+        if (expired != null) {
+            Log.d(TAG, "discarding " + expired.size() + " unused voice note streams");
+            for (VoiceNoteStreamer stream : expired)
+                stream.cancel();
+        }
+    }
+
+    private static VoiceNoteStreamer remove(String path) {
+        synchronized (sStreams) {
+            return sStreams.remove(path);
+        }
+    }
+
+    /** Reads a file while it's being written until the stream is finished. */
+    private final class TailInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mCount;
+
+        TailInputStream(File file) throws IOException {
+            mIn = new FileInputStream(file);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                if (mCanceled)
+                    throw new IOException("voice note canceled");
+
+                // read the finished flag first, the recorder might flush after our read
+                boolean finished = mFinished;
+                int count = mIn.read(b, off, len);
+                if (count > 0) {
+                    mCount += count;
+                    return count;
+                }
+                if (finished)
+                    return -1;
+
+                SystemClock.sleep(POLL_DELAY);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+}
@@ -25,7 +25,20 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.segment.backo.Backo;
 
@@ -41,13 +54,18 @@ import org.spongycastle.openpgp.PGPException;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.text.TextUtils;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
+import org.kontalk.StartupInitializer;
 import org.kontalk.authenticator.LegacyAuthentication;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerList;
+import org.kontalk.client.ServerSelector;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
@@ -73,6 +91,12 @@ public class XMPPConnectionHelper extends Thread {
     /** Max retries after for authentication error. */
     private static final int MAX_AUTH_ERRORS = 3;
 
+    /** Max number of servers to connect to in parallel. */
+    private static final int MAX_RACE_CANDIDATES = 3;
+
+    /** Delay before trying the next server in a connection race. */
+    private static final long RACE_STAGGER_DELAY = 300;
+
     private final Context mContext;
     private EndpointServer mServer;
     private boolean mServerDirty;
@@ -155,6 +179,10 @@ public class XMPPConnectionHelper extends Thread {
             SmackException, PGPException, IOException, KeyStoreException,
             NoSuchProviderException, NoSuchAlgorithmException, CertificateException, InterruptedException {
 
+        // security provider might still be installing
+        Kontalk.get(mContext).getStartupInitializer()
+            .await(StartupInitializer.STEP_SECURITY_PROVIDER);
+
         Log.d(TAG, "using server " + mServer.toString());
 
         if (mServerDirty) {
@@ -169,26 +197,19 @@ public class XMPPConnectionHelper extends Thread {
         }
 
         // recreate connection if closed
+        boolean connected = false;
         if (mConn == null) {
 
-            KeyStore trustStore = null;
-            boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-            if (!acceptAnyCertificate)
-                trustStore = InternalTrustStore.getTrustStore(mContext);
-
-            String resource = getResource(mContext);
-
-            if (key == null) {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    acceptAnyCertificate, trustStore, token);
+            List<EndpointServer> candidates = mLimited ?
+                Collections.singletonList(mServer) : getCandidates(mContext, mServer);
+            if (candidates.size() > 1) {
+                // already connected to the fastest server
+                mConn = raceConnect(candidates, key, token);
+                mServer = mConn.getServer();
+                connected = true;
             }
-
             else {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore, token);
+                mConn = createConnection(mServer, key, token);
             }
 
             // apply packet timeout based on retry count
@@ -199,7 +220,18 @@ public class XMPPConnectionHelper extends Thread {
         }
 
         // connect
-        mConn.connect();
+        if (!connected) {
+            ServerSelector selector = ServerSelector.getInstance(mContext);
+            long start = SystemClock.elapsedRealtime();
+            try {
+                mConn.connect();
+            }
+            catch (SmackException | IOException | XMPPException e) {
+                selector.reportFailure(mServer);
+                throw e;
+            }
+            selector.reportSuccess(mServer, SystemClock.elapsedRealtime() - start);
+        }
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -212,6 +244,156 @@ public class XMPPConnectionHelper extends Thread {
 
     }
 
+    private KontalkConnection createConnection(EndpointServer server, PersonalKey key, String token)
+            throws PGPException, IOException, KeyStoreException, NoSuchProviderException,
+            NoSuchAlgorithmException, CertificateException {
+
+        KeyStore trustStore = null;
+        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+        if (!acceptAnyCertificate)
+            trustStore = InternalTrustStore.getTrustStore(mContext);
+
+        String resource = getResource(mContext);
+
+        if (key == null) {
+            return new KontalkConnection(resource, server, !USE_STARTTLS,
+                acceptAnyCertificate, trustStore, token);
+        }
+
+        else {
+            return new KontalkConnection(resource, server, !USE_STARTTLS,
+                key.getBridgePrivateKey(),
+                key.getBridgeCertificate(),
+                acceptAnyCertificate,
+                trustStore, token);
+        }
+    }
+
+    /**
+     * Connects to several servers in parallel and returns the first
+     * connection to complete TLS negotiation. Candidates are started in
+     * order, each one {@link #RACE_STAGGER_DELAY} milliseconds after the
+     * previous one, or immediately if the previous one failed.
+     * @throws IOException (or any other connection error) if all candidates failed
+     */
+    private KontalkConnection raceConnect(List<EndpointServer> candidates, PersonalKey key, String token)
+            throws XMPPException, SmackException, PGPException, IOException, KeyStoreException,
+            NoSuchProviderException, NoSuchAlgorithmException, CertificateException, InterruptedException {
+
+        final ServerSelector selector = ServerSelector.getInstance(mContext);
+        final AtomicBoolean finished = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size());
+        CompletionService<KontalkConnection> service = new ExecutorCompletionService<>(executor);
+        List<KontalkConnection> connections = new ArrayList<>(candidates.size());
+
+        KontalkConnection winner = null;
+        Throwable error = null;
+        int pending = 0;
+        try {
+            for (int i = 0; i < candidates.size() && winner == null; i++) {
+                final EndpointServer server = candidates.get(i);
+                final KontalkConnection conn = createConnection(server, key, token);
+                connections.add(conn);
+
+                Log.d(TAG, "racing server " + server);
+                service.submit(new Callable<KontalkConnection>() {
+                    @Override
+                    public KontalkConnection call() throws Exception {
+                        long start = SystemClock.elapsedRealtime();
+                        try {
+                            conn.connect();
+                        }
+                        catch (Exception e) {
+                            // losers are shut down on purpose
+                            if (!finished.get())
+                                selector.reportFailure(server);
+                            throw e;
+                        }
+                        selector.reportSuccess(server, SystemClock.elapsedRealtime() - start);
+                        return conn;
+                    }
+                });
+                pending++;
+
+                boolean last = (i == candidates.size() - 1);
+                long deadline = SystemClock.elapsedRealtime() + RACE_STAGGER_DELAY;
+                while (winner == null && pending > 0) {
+                    Future<KontalkConnection> result;
+                    if (last) {
+                        result = service.take();
+                    }
+                    else {
+                        long wait = deadline - SystemClock.elapsedRealtime();
+                        result = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : null;
+                        if (result == null) {
+                            // start the next candidate
+                            break;
+                        }
+                    }
+
+                    pending--;
+                    try {
+                        winner = result.get();
+                    }
+                    catch (ExecutionException e) {
+                        error = e.getCause();
+                        Log.d(TAG, "server connection failed: " + error);
+                        // do not wait for the stagger delay
+                        if (!last)
+                            break;
+                    }
+                }
+            }
+        }
+        finally {
+            finished.set(true);
+            for (KontalkConnection conn : connections) {
+                if (conn != winner)
+                    conn.instantShutdown();
+            }
+            executor.shutdownNow();
+        }
+
+        if (winner == null) {
+            if (error instanceof XMPPException)
+                throw (XMPPException) error;
+            if (error instanceof SmackException)
+                throw (SmackException) error;
+            if (error instanceof IOException)
+                throw (IOException) error;
+            if (error instanceof InterruptedException)
+                throw (InterruptedException) error;
+            throw new IOException("unable to connect to any server", error);
+        }
+
+        Log.d(TAG, "connected to " + winner.getServer());
+        return winner;
+    }
+
+    /**
+     * Returns the servers a connection to the given server can be raced
+     * with, from the best to the worst: all servers of the same network in
+     * the server list, unless a custom server was set by the user.
+     */
+    public static List<EndpointServer> getCandidates(Context context, EndpointServer server) {
+        if (!TextUtils.isEmpty(Preferences.getServerURI()))
+            return Collections.singletonList(server);
+
+        Set<EndpointServer> servers = new HashSet<>();
+        servers.add(server);
+        ServerList list = ServerListUpdater.getCurrentList(context);
+        if (list != null) {
+            for (EndpointServer s : list) {
+                if (server.getNetwork().equalsIgnoreCase(s.getNetwork()))
+                    servers.add(s);
+            }
+        }
+
+        List<EndpointServer> ranked = ServerSelector.getInstance(context).rank(servers);
+        return ranked.size() > MAX_RACE_CANDIDATES ?
+            ranked.subList(0, MAX_RACE_CANDIDATES) : ranked;
+    }
+
     public void connect() {
         PersonalKey key = null;
 
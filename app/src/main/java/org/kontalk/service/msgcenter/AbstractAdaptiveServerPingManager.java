@@ -32,8 +32,18 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
     private static final Logger LOGGER = Logger.getLogger(AbstractAdaptiveServerPingManager.class.getName());
 
+    /** Minimum ping interval. */
+    public static final long MIN_INTERVAL = 90 * 1000;
+    /** Maximum (and initial) ping interval. */
+    public static final long MAX_INTERVAL = 30 * 60 * 1000;
+
     protected boolean mEnabled = true;
 
+    /**
+     * Identity of the network we are learning the interval for.
+     */
+    protected String mNetworkId;
+
     // All values are in milliseconds.
 
     /**
@@ -134,10 +144,36 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
         setupPing(nextAlarm);
     }
 
+    /**
+     * Restores the values learned on the given network and starts over
+     * with the adaptive algorithm.
+     */
+    protected void restoreNetwork(String networkId) {
+        mNetworkId = networkId;
+        // setup first alarm using last learned value
+        setupPing(getLearnedInterval(networkId, MAX_INTERVAL));
+        // next increase can happen at least at next interval
+        mNextIncrease = getLearnedBackoff(networkId, mInterval);
+        // reset internal variables
+        mLastSuccess = 0;
+        mLastSuccessInterval = 0;
+    }
+
+    /** Keeps the interval between {@link #MIN_INTERVAL} and {@link #MAX_INTERVAL}. */
+    protected static long clampInterval(long intervalMillis) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, intervalMillis));
+    }
+
     protected abstract void setupPing(long intervalMillis);
 
     protected abstract long getElapsedRealtime();
 
+    /** Returns the last interval learned on the given network. */
+    protected abstract long getLearnedInterval(String networkId, long defaultValue);
+
+    /** Returns the last increase backoff learned on the given network. */
+    protected abstract long getLearnedBackoff(String networkId, long defaultValue);
+
     protected void setNextIncreaseInterval(long interval) {
         // reset last successful interval
         mLastSuccessInterval = 0;
@@ -89,20 +89,13 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
         }
     };
 
-    private static final int MIN_ALARM_INTERVAL = 90 * 1000;
-
     private Context mContext;
     private PendingIntent mPendingIntent;
 
     private void setupOnConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
-            // reset internal variables
-            mLastSuccess = 0;
-            mLastSuccessInterval = 0;
+            // restore values learned on the current network
+            restoreNetwork(SystemUtils.getCurrentNetworkIdentity(mContext));
         }
     }
 
@@ -167,19 +160,11 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     protected synchronized void setupPing(long intervalMillis) {
         if (mPendingIntent != null) {
             sAlarmManager.cancel(mPendingIntent);
-            mInterval = intervalMillis;
-
-            // do not go beyond 30 minutes...
-            if (mInterval > AlarmManager.INTERVAL_HALF_HOUR) {
-                mInterval = AlarmManager.INTERVAL_HALF_HOUR;
-            }
-            // ...or less than 90 seconds
-            else if (mInterval < MIN_ALARM_INTERVAL) {
-                mInterval = MIN_ALARM_INTERVAL;
-            }
+            // do not go beyond 30 minutes or less than 90 seconds
+            mInterval = clampInterval(intervalMillis);
 
             // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
+            Preferences.setPingAlarmInterval(mNetworkId, mInterval);
 
             // remove difference from last received stanza
             long interval = mInterval;
@@ -212,7 +197,17 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     @Override
     protected void setNextIncreaseInterval(long interval) {
         super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
+        Preferences.setPingAlarmBackoff(mNetworkId, mNextIncrease);
+    }
+
+    @Override
+    protected long getLearnedInterval(String networkId, long defaultValue) {
+        return Preferences.getPingAlarmInterval(networkId, defaultValue);
+    }
+
+    @Override
+    protected long getLearnedBackoff(String networkId, long defaultValue) {
+        return Preferences.getPingAlarmBackoff(networkId, defaultValue);
     }
 
     public static void onConnected() {
@@ -26,6 +26,7 @@ import org.jivesoftware.smack.filter.StanzaIdFilter;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 import org.jivesoftware.smackx.disco.packet.DiscoverItems;
+import org.jxmpp.jid.BareJid;
 
 import org.kontalk.Log;
 import org.kontalk.client.EndpointServer;
@@ -40,19 +41,28 @@ import org.kontalk.upload.HTTPFileUploadService;
  */
 class DiscoverInfoListener extends MessageCenterPacketListener {
 
-    public DiscoverInfoListener(MessageCenterService instance) {
+    private final ServiceDiscoveryCache.Revalidation mRevalidation;
+
+    public DiscoverInfoListener(MessageCenterService instance, ServiceDiscoveryCache.Revalidation revalidation) {
         super(instance);
+        mRevalidation = revalidation;
     }
 
     @Override
     public void processStanza(Stanza packet) {
         XMPPConnection conn = getConnection();
-        EndpointServer server = getServer();
 
         // we don't need this listener anymore
         conn.removeAsyncStanzaListener(this);
 
-        DiscoverInfo query = (DiscoverInfo) packet;
+        if (packet instanceof DiscoverInfo)
+            processInfo(conn, (DiscoverInfo) packet);
+        mRevalidation.done();
+    }
+
+    private void processInfo(XMPPConnection conn, DiscoverInfo query) {
+        EndpointServer server = getServer();
+
         List<DiscoverInfo.Feature> features = query.getFeatures();
         for (DiscoverInfo.Feature feat : features) {
 
@@ -69,23 +79,30 @@ class DiscoverInfoListener extends MessageCenterPacketListener {
                 items.setTo(server.getNetwork());
 
                 StanzaFilter filter = new StanzaIdFilter(items.getStanzaId());
-                conn.addAsyncStanzaListener(new PushDiscoverItemsListener(getInstance()), filter);
+                mRevalidation.expect(1);
+                conn.addAsyncStanzaListener(new PushDiscoverItemsListener(getInstance(), mRevalidation), filter);
 
                 sendPacket(items);
             }
 
             /*
-             * TODO upload info should be requested only when needed and
-             * cached. This discovery should of course be issued before any
+             * TODO upload info should be requested only when needed.
+             * This discovery should of course be issued before any
              * media message gets requeued.
              * Actually, delay any message from being requeued if at least
              * 1 media message is present; do the discovery first.
              */
             else if (HTTPFileUpload.NAMESPACE.equals(feat.getVar())) {
-                Log.d(MessageCenterService.TAG, "got upload service: " + packet.getFrom());
-                addUploadService(new HTTPFileUploadService(conn, packet.getFrom().asBareJid()), 0);
-                // resend pending messages
-                resendPendingMessages(true, false);
+                BareJid jid = query.getFrom().asBareJid();
+                Log.d(MessageCenterService.TAG, "got upload service: " + jid);
+                mRevalidation.addUploadService(jid.toString());
+
+                // already known from the discovery cache
+                if (!hasUploadService(jid)) {
+                    addUploadService(new HTTPFileUploadService(conn, jid), 0);
+                    // resend pending messages
+                    resendPendingMessages(true, false);
+                }
             }
         }
     }
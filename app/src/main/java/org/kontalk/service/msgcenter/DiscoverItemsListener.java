@@ -34,8 +34,11 @@ import org.jivesoftware.smackx.disco.packet.DiscoverItems;
  */
 class DiscoverItemsListener extends MessageCenterPacketListener {
 
-    public DiscoverItemsListener(MessageCenterService instance) {
+    private final ServiceDiscoveryCache.Revalidation mRevalidation;
+
+    public DiscoverItemsListener(MessageCenterService instance, ServiceDiscoveryCache.Revalidation revalidation) {
         super(instance);
+        mRevalidation = revalidation;
     }
 
     @Override
@@ -45,16 +48,22 @@ class DiscoverItemsListener extends MessageCenterPacketListener {
         // we don't need this listener anymore
         conn.removeAsyncStanzaListener(this);
 
-        DiscoverItems query = (DiscoverItems) packet;
-        List<DiscoverItems.Item> items = query.getItems();
-        for (DiscoverItems.Item item : items) {
-            DiscoverInfo info = new DiscoverInfo();
-            info.setTo(item.getEntityID());
+        if (packet instanceof DiscoverItems) {
+            List<DiscoverItems.Item> items = ((DiscoverItems) packet).getItems();
+            mRevalidation.expect(items.size());
+            for (DiscoverItems.Item item : items) {
+                DiscoverInfo info = new DiscoverInfo();
+                info.setTo(item.getEntityID());
 
-            StanzaFilter filter = new StanzaIdFilter(info.getStanzaId());
-            conn.addAsyncStanzaListener(new DiscoverInfoListener(getInstance()), filter);
-            sendPacket(info);
+                StanzaFilter filter = new StanzaIdFilter(info.getStanzaId());
+                conn.addAsyncStanzaListener(new DiscoverInfoListener(getInstance(), mRevalidation), filter);
+                if (!sendPacket(info)) {
+                    mRevalidation.failed();
+                    mRevalidation.done();
+                }
+            }
         }
+        mRevalidation.done();
     }
 }
 
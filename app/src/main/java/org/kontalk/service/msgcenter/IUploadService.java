@@ -31,6 +31,9 @@ public interface IUploadService {
 
     interface UrlCallback {
         void callback(String putUrl, String getUrl);
+
+        /** Called if no upload URL could be obtained. */
+        void error(Exception e);
     }
 
 }
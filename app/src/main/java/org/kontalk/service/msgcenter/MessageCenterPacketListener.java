@@ -143,6 +143,11 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.addUploadService(service, priority);
     }
 
+    protected boolean hasUploadService(BareJid jid) {
+        MessageCenterService instance = mInstance.get();
+        return instance != null && instance.hasUploadService(jid);
+    }
+
     protected void resendPendingMessages(final boolean retrying, final boolean forcePending) {
         final MessageCenterService instance = mInstance.get();
         if (instance != null) {
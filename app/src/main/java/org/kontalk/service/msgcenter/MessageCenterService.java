@@ -33,8 +33,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.zip.ZipInputStream;
@@ -44,12 +46,14 @@ import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.debugger.AbstractDebugger;
 import org.jivesoftware.smack.debugger.SmackDebugger;
 import org.jivesoftware.smack.debugger.SmackDebuggerFactory;
 import org.jivesoftware.smack.filter.StanzaFilter;
 import org.jivesoftware.smack.filter.StanzaIdFilter;
 import org.jivesoftware.smack.filter.StanzaTypeFilter;
+import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Stanza;
@@ -142,10 +146,12 @@ import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.MyUsers;
+import org.kontalk.provider.ThreadIndex;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.KeyPairGeneratorService;
 import org.kontalk.service.UploadService;
+import org.kontalk.service.VoiceNoteStreamer;
 import org.kontalk.service.XMPPConnectionHelper;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
 import org.kontalk.service.msgcenter.group.AddRemoveMembersCommand;
@@ -157,6 +163,9 @@ import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.service.msgcenter.group.PartCommand;
 import org.kontalk.service.msgcenter.group.SetSubjectCommand;
 import org.kontalk.ui.MessagingNotification;
+import org.kontalk.upload.HTTPFileUploadService;
+import org.kontalk.upload.UploadCache;
+import org.kontalk.util.LatencyStats;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
@@ -355,6 +364,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     // use with org.kontalk.action.VCARD
     public static final String EXTRA_PUBLIC_KEY = "org.kontalk.vcard.publicKey";
+    /** Request only unknown or changed keys of the whole roster. */
+    public static final String EXTRA_REFRESH = "org.kontalk.vcard.refresh";
 
     // used with org.kontalk.action.BLOCKLIST
     public static final String EXTRA_BLOCKLIST = "org.kontalk.blocklist";
@@ -416,6 +427,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * Fast ping tester timeout.
      */
     private static final int FAST_PING_TIMEOUT = 3000;
+
+    /** Time from authentication to the first media message sent, for all connections. */
+    private static final LatencyStats sFirstMediaLatency = new LatencyStats(50);
     /**
      * Minimal interval between connection tests (5 mins).
      */
@@ -495,9 +509,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     String mMyUsername;
 
     /**
-     * Supported upload services.
+     * Supported upload services. Also modified by discovery listeners
+     * on the connection thread.
      */
-    List<IUploadService> mUploadServices;
+    final List<IUploadService> mUploadServices = new CopyOnWriteArrayList<>();
 
     /**
      * Roster store.
@@ -508,6 +523,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * Service handler.
      */
     Handler mHandler;
+    /**
+     * Outbound queue for chat states and receipts.
+     */
+    private OutboundStanzaQueue mOutboundQueue;
+    /**
+     * Outgoing messages processing pipeline.
+     */
+    private OutboundPipeline mOutboundPipeline;
     /**
      * Task execution pool. Generally used by packet listeners.
      */
@@ -525,6 +548,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * Timestamp of last use of {@link #ACTION_TEST}.
      */
     private long mLastTest;
+    /**
+     * Time of authentication, until the first media message is sent.
+     */
+    private long mAuthenticatedTime;
     /**
      * Pending intent for idle signaling.
      */
@@ -789,9 +816,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         configure();
 
         // create the roster store
+        // entries will be loaded on first access (i.e. roster load after login)
         mRosterStore = new SQLiteRosterStore(this);
-        // this will trigger create/upgrade
-        mRosterStore.getWritableDatabase();
 
         // waiting receipt list
         // also used for keeping the device on while waiting for message delivery
@@ -818,6 +844,27 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create main thread handler
         mHandler = new Handler();
 
+        // create outgoing messages pipeline
+        mOutboundPipeline = new OutboundPipeline();
+
+        // create outbound stanza queue
+        mOutboundQueue = new OutboundStanzaQueue(Looper.getMainLooper(),
+            new OutboundStanzaQueue.Callback() {
+                @Override
+                public boolean sendStanza(Stanza stanza) {
+                    return sendPacket(stanza);
+                }
+
+                @Override
+                public void onStanzaDropped(Stanza stanza, boolean superseded) {
+                    // stanza will not be sent, remove it from the pending queue
+                    Long msgId = mWaitingReceipt.remove(stanza.getStanzaId());
+                    // superseded stanzas were waiting for an ack that will never come
+                    if (superseded && msgId != null)
+                        mIdleHandler.release();
+                }
+            });
+
         // register screen off listener for manual inactivation
         registerInactivity();
     }
@@ -920,6 +967,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public void onDestroy() {
         Log.d(TAG, "destroying message center");
         quit(false);
+        // drop outgoing messages being processed, they will be sent again later
+        mOutboundPipeline.shutdown();
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
         // destroy roster store
@@ -947,6 +996,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private synchronized void quit(boolean restarting) {
+        // discard queued stanzas
+        if (mOutboundQueue != null)
+            mOutboundQueue.clear();
+        // presences are not valid anymore
+        PresenceStore.getInstance().clear();
+
         if (!restarting) {
             // quit the idle handler
             mIdleHandler.quit();
@@ -1005,10 +1060,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 mConnection = null;
         }
 
-        if (mUploadServices != null) {
-            mUploadServices.clear();
-            mUploadServices = null;
-        }
+        mUploadServices.clear();
 
         // clear cached data from contacts
         Contact.invalidateData();
@@ -1559,6 +1611,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 PublicKeyListener listener = new PublicKeyListener(this, p);
                 sendIqWithReply(p, true, listener, listener);
             }
+            else if (intent.getBooleanExtra(EXTRA_REFRESH, false)) {
+                // request only the keys we don't have already
+                List<BareJid> jids = new ArrayList<>();
+                for (RosterEntry buddy : getRoster().getEntries()) {
+                    if (isRosterEntrySubscribed(buddy))
+                        jids.add(buddy.getJid());
+                }
+                jids.add(mConnection.getUser().asBareJid());
+
+                queueTask(new PublicKeyRefresher(this,
+                    intent.getStringExtra(EXTRA_PACKET_ID), jids));
+            }
             else {
                 // request public keys for the whole roster
                 Collection<RosterEntry> buddies = getRoster().getEntries();
@@ -1701,8 +1765,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 mHelper = new XMPPConnectionHelper(this, mServer, false);
             }
             else {
-                // reuse connection if the server is the same
-                KontalkConnection reuseConnection = mServer.equals(mConnection.getServer()) ?
+                // reuse connection if the server is one we would have raced with
+                KontalkConnection reuseConnection = XMPPConnectionHelper
+                        .getCandidates(this, mServer).contains(mConnection.getServer()) ?
                         mConnection : null;
                 mHelper = new XMPPConnectionHelper(this, mServer, false, reuseConnection);
             }
@@ -1826,9 +1891,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // send presence
         sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
+        mAuthenticatedTime = SystemClock.elapsedRealtime();
         // clear upload service
-        if (mUploadServices != null)
-            mUploadServices.clear();
+        mUploadServices.clear();
         // discovery
         discovery();
 
@@ -1888,16 +1953,66 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private void discovery() {
         StanzaFilter filter;
 
+        String network = mServer.getNetwork();
+        String ver = null;
+        ExtensionElement caps = mConnection.getFeature(CapsExtension.ELEMENT, CapsExtension.NAMESPACE);
+        if (caps instanceof CapsExtension)
+            ver = ((CapsExtension) caps).getVer();
+
+        // use services known from previous connections until discovery is complete
+        ServiceDiscoveryCache cached = ServiceDiscoveryCache.load(network, ver);
+        if (cached != null) {
+            for (String service : cached.uploadServices) {
+                try {
+                    addUploadService(new HTTPFileUploadService(mConnection, JidCreate.bareFrom(service)));
+                }
+                catch (XmppStringprepException e) {
+                    Log.w(TAG, "invalid cached upload service: " + service);
+                }
+            }
+            if (cached.pushSenderId != null && sPushSenderId == null)
+                sPushSenderId = cached.pushSenderId;
+
+            Log.d(TAG, "using cached service discovery: " + cached.uploadServices.size() +
+                " upload services");
+            if (getUploadService() != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        resendPendingMessages(true, false);
+                    }
+                });
+            }
+        }
+
+        final XMPPConnection connection = mConnection;
+        final Handler handler = mHandler;
+        ServiceDiscoveryCache.Revalidation revalidation = new ServiceDiscoveryCache.Revalidation(network, ver,
+            new ServiceDiscoveryCache.Revalidation.Callback() {
+                @Override
+                public void onRevalidated(final Set<String> uploadServices) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // results of an old connection are not relevant anymore
+                            if (mConnection == connection)
+                                retainUploadServices(uploadServices);
+                        }
+                    });
+                }
+            });
+        revalidation.expect(2);
+
         DiscoverInfo info = new DiscoverInfo();
-        info.setTo(mServer.getNetwork());
+        info.setTo(network);
         filter = new StanzaIdFilter(info.getStanzaId());
-        mConnection.addAsyncStanzaListener(new DiscoverInfoListener(this), filter);
+        mConnection.addAsyncStanzaListener(new DiscoverInfoListener(this, revalidation), filter);
         sendPacket(info);
 
         DiscoverItems items = new DiscoverItems();
-        items.setTo(mServer.getNetwork());
+        items.setTo(network);
         filter = new StanzaIdFilter(items.getStanzaId());
-        mConnection.addAsyncStanzaListener(new DiscoverItemsListener(this), filter);
+        mConnection.addAsyncStanzaListener(new DiscoverItemsListener(this, revalidation), filter);
         sendPacket(items);
     }
 
@@ -2022,34 +2137,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     void resendPendingMessages(boolean retrying, boolean forcePending, String to) {
         String[] filterArgs = null;
 
-        StringBuilder filter = new StringBuilder()
-            .append(Messages.DIRECTION)
-            .append('=')
-            .append(Messages.DIRECTION_OUT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_SENT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_RECEIVED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_NOTDELIVERED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_QUEUED);
-
-
-        // filter out pending messages
-        if (!forcePending) filter
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_PENDING);
+        StringBuilder filter = new StringBuilder(MessagesProviderClient
+            .getPendingOutgoingSelection(forcePending));
 
         // filter out non-media non-uploaded messages
         if (retrying) filter
@@ -2255,8 +2344,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 Messages.MESSAGE_ID,
                 Messages.PEER,
             },
-            Messages.DIRECTION + " = " + Messages.DIRECTION_IN + " AND " +
-                Messages.STATUS + " = " + Messages.STATUS_INCOMING,
+            MessagesProviderClient.SELECTION_PENDING_RECEIPTS,
             null, Messages._ID);
 
         while (c.moveToNext()) {
@@ -2279,18 +2367,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     void sendPendingSubscriptionReplies() {
-        Cursor c = getContentResolver().query(Threads.CONTENT_URI,
-            new String[]{
-                Threads.PEER,
-                Threads.REQUEST_STATUS,
-            },
-            Threads.REQUEST_STATUS + "=" + Threads.REQUEST_REPLY_PENDING_ACCEPT + " OR " +
-                Threads.REQUEST_STATUS + "=" + Threads.REQUEST_REPLY_PENDING_BLOCK,
-            null, Threads._ID);
+        List<ThreadIndex.Entry> requests = ThreadIndex.getInstance()
+            .getRequests(Threads.REQUEST_REPLY_PENDING_ACCEPT, Threads.REQUEST_REPLY_PENDING_BLOCK);
 
-        while (c.moveToNext()) {
-            String to = c.getString(0);
-            int reqStatus = c.getInt(1);
+        for (ThreadIndex.Entry request : requests) {
+            String to = request.getPeer();
+            int reqStatus = request.getRequestStatus();
 
             int action;
 
@@ -2314,8 +2396,6 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             sendSubscriptionReply(to, null, action);
         }
-
-        c.close();
     }
 
     Roster getRoster() {
@@ -2516,7 +2596,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         sendPacket(p);
     }
 
-    private void sendMessage(Bundle data) {
+    /**
+     * Sends a message or a media upload request. Only bookkeeping is done
+     * here, the rest is processed by the outbound pipeline.
+     */
+    private void sendMessage(final Bundle data) {
         if (!isRosterLoaded()) {
             Log.d(TAG, "roster not loaded yet, not sending message");
             return;
@@ -2525,11 +2609,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         boolean retrying = data.getBoolean("org.kontalk.message.retrying");
 
         final String groupJid = data.getString("org.kontalk.message.group.jid");
-        String to;
+        final String to;
         // used for verifying isPaused()
-        String convJid;
-        String[] toGroup;
-        GroupController group = null;
+        final String convJid;
+        final String[] toGroup;
+        final GroupController group;
 
         if (groupJid != null) {
             toGroup = data.getStringArray("org.kontalk.message.to");
@@ -2564,6 +2648,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             to = data.getString("org.kontalk.message.to");
             toGroup = new String[]{to};
             convJid = to;
+            group = null;
         }
 
         Jid toJid;
@@ -2587,7 +2672,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             return;
         }
 
-        PersonalKey key;
+        final PersonalKey key;
         try {
             key = ((Kontalk) getApplicationContext()).getPersonalKey();
         }
@@ -2615,346 +2700,500 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         String _mediaUri = data.getString("org.kontalk.message.media.uri");
         if (_mediaUri != null) {
             // take the first available upload service :)
-            IUploadService uploadService = getUploadService();
-            if (uploadService != null) {
-                Uri preMediaUri = Uri.parse(_mediaUri);
-                final String previewPath = data.getString("org.kontalk.message.preview.path");
-                long fileLength;
-
-                try {
-                    // encrypt the file if necessary
-                    if (encrypt) {
-                        InputStream in = getContentResolver().openInputStream(preMediaUri);
-                        File encrypted = MessageUtils.encryptFile(this, in, toGroup);
-                        fileLength = encrypted.length();
-                        preMediaUri = Uri.fromFile(encrypted);
-                    }
-                    else {
-                        fileLength = MediaStorage.getLength(this, preMediaUri);
-                    }
+            final IUploadService uploadService = getUploadService();
+            final long requestTime = SystemClock.elapsedRealtime();
+            if (uploadService != null && mAuthenticatedTime > 0) {
+                long latency = requestTime - mAuthenticatedTime;
+                mAuthenticatedTime = 0;
+                sFirstMediaLatency.add(latency);
+                Log.d(TAG, "first media message sent " + latency +
+                    " ms after authentication, " + sFirstMediaLatency);
+            }
+
+            final Uri mediaUri = Uri.parse(_mediaUri);
+            mOutboundPipeline.submit(convJid, new OutboundPipeline.Task<Void>() {
+                @Override
+                public Void process() {
+                    uploadMedia(data, mediaUri, uploadService, requestTime,
+                        groupJid, to, toGroup, msgId, id, mime, encrypt);
+                    return null;
                 }
-                catch (Exception e) {
-                    Log.w(TAG, "error preprocessing media: " + preMediaUri, e);
-                    // simulate upload error
-                    UploadService.errorNotification(this,
-                        getString(R.string.notify_ticker_upload_error),
-                        getString(R.string.notify_text_upload_error));
-                    return;
+
+                @Override
+                public void deliver(Void result) {
+                    // message will be sent by the upload service
                 }
+            });
+        }
+        else {
+            // hold on to message center while we send the message
+            mIdleHandler.hold(false);
+            if (msgId > 0)
+                mWaitingReceipt.put(id, msgId);
 
-                final Uri mediaUri = preMediaUri;
+            // group messages and standalone messages don't request receipts
+            final boolean ackRequest = group == null &&
+                !data.getBoolean("org.kontalk.message.standalone", false);
 
-                // build a filename
-                String filename = CompositeMessage.getFilename(mime, new Date());
-                if (filename == null)
-                    filename = MediaStorage.UNKNOWN_FILENAME;
+            final EndpointServer server = mServer;
+            mOutboundPipeline.submit(convJid, new OutboundPipeline.Task<Stanza>() {
+                @Override
+                public Stanza process() {
+                    return buildMessage(data, group, groupJid, to, toGroup, convJid,
+                        server, key, msgId, id, mime, encrypt, ackRequest);
+                }
 
-                // media message - start upload service
-                final String uploadTo = to;
-                final String[] uploadGroupTo = toGroup;
-                uploadService.getPostUrl(filename, fileLength, mime, new IUploadService.UrlCallback() {
-                    @Override
-                    public void callback(String putUrl, String getUrl) {
-                        // start upload intent service
-                        Intent i = new Intent(MessageCenterService.this, UploadService.class);
-                        i.setData(mediaUri);
-                        i.setAction(UploadService.ACTION_UPLOAD);
-                        i.putExtra(UploadService.EXTRA_POST_URL, putUrl);
-                        i.putExtra(UploadService.EXTRA_GET_URL, getUrl);
-                        i.putExtra(UploadService.EXTRA_DATABASE_ID, msgId);
-                        i.putExtra(UploadService.EXTRA_MESSAGE_ID, id);
-                        i.putExtra(UploadService.EXTRA_MIME, mime);
-                        // this will be used only for out of band data
-                        i.putExtra(UploadService.EXTRA_ENCRYPT, encrypt);
-                        i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
-                        // delete original (actually it's the encrypted temp file) if we already encrypted it
-                        i.putExtra(UploadService.EXTRA_DELETE_ORIGINAL, encrypt);
-                        i.putExtra(UploadService.EXTRA_USER, groupJid != null ? uploadGroupTo : uploadTo);
-                        if (groupJid != null)
-                            i.putExtra(UploadService.EXTRA_GROUP, groupJid);
-                        startService(i);
-                    }
-                });
+                @Override
+                public void deliver(Stanza m) {
+                    deliverMessage(m, id, msgId, ackRequest);
+                }
+            });
+        }
+    }
 
+    /**
+     * Prepares a media message for upload and requests an upload slot.
+     * Called by the outbound pipeline.
+     */
+    void uploadMedia(Bundle data, Uri preMediaUri, IUploadService uploadService, final long requestTime,
+            final String groupJid, final String to, final String[] toGroup, final long msgId,
+            final String id, final String mime, final boolean encrypt) {
+        final String previewPath = data.getString("org.kontalk.message.preview.path");
+
+        // reuse a previous upload of identical content
+        final String mediaHash = MessagesProviderClient.getMediaHash(this, preMediaUri);
+        final String cacheKey = mediaHash != null ?
+            UploadCache.getKey(mediaHash, mime, encrypt, toGroup) : null;
+        UploadCache.Entry cached = cacheKey != null ? UploadCache.get(this, cacheKey) : null;
+        if (cached != null) {
+            Log.d(TAG, "media already uploaded: " + cached.fetchUrl);
+            VoiceNoteStreamer.discard(preMediaUri);
+            MessagesProviderClient.uploaded(this, msgId, cached.fetchUrl);
+            if (groupJid != null) {
+                sendGroupUploadedMedia(this, groupJid, toGroup, mime, preMediaUri,
+                    cached.length, previewPath, cached.fetchUrl, encrypt, msgId, id);
             }
             else {
-                // TODO warn user about this problem
-                Log.w(TAG, "no upload service - this shouldn't happen!");
+                sendUploadedMedia(this, to, mime, preMediaUri,
+                    cached.length, previewPath, cached.fetchUrl, encrypt, msgId, id);
             }
+            return;
         }
-        else {
-            // hold on to message center while we send the message
-            mIdleHandler.hold(false);
 
-            Stanza m, originalStanza;
-
-            // pre-process message for group delivery
-            GroupCommand groupCommand = null;
-            if (group != null) {
-                int groupCommandId = data.getInt("org.kontalk.message.group.command", 0);
-                switch (groupCommandId) {
-                    case GROUP_COMMAND_PART:
-                        groupCommand = group.part();
-                        ((PartCommand) groupCommand).setDatabaseId(msgId);
-                        // FIXME careful to this, might need abstraction
-                        groupCommand.setMembers(toGroup);
-                        groupCommand.setGroupJid(groupJid);
-                        break;
-                    case GROUP_COMMAND_CREATE: {
-                        String subject = data.getString("org.kontalk.message.group.subject");
-                        groupCommand = group.createGroup();
-                        ((CreateGroupCommand) groupCommand).setSubject(subject);
-                        groupCommand.setMembers(toGroup);
-                        groupCommand.setGroupJid(groupJid);
-                        break;
-                    }
-                    case GROUP_COMMAND_SUBJECT: {
-                        String subject = data.getString("org.kontalk.message.group.subject");
-                        groupCommand = group.setSubject();
-                        ((SetSubjectCommand) groupCommand).setSubject(subject);
-                        // FIXME careful to this, might need abstraction
-                        groupCommand.setMembers(toGroup);
-                        groupCommand.setGroupJid(groupJid);
-                        break;
-                    }
-                    case GROUP_COMMAND_MEMBERS: {
-                        String subject = data.getString("org.kontalk.message.group.subject");
-                        String[] added = data.getStringArray("org.kontalk.message.group.add");
-                        String[] removed = data.getStringArray("org.kontalk.message.group.remove");
-                        groupCommand = group.addRemoveMembers();
-                        ((AddRemoveMembersCommand) groupCommand).setSubject(subject);
-                        ((AddRemoveMembersCommand) groupCommand).setAddedMembers(added);
-                        ((AddRemoveMembersCommand) groupCommand).setRemovedMembers(removed);
-                        groupCommand.setMembers(toGroup);
-                        groupCommand.setGroupJid(groupJid);
-                        break;
-                    }
-                    default:
-                        groupCommand = group.info();
-                        // FIXME careful to this, might need abstraction
-                        groupCommand.setMembers(toGroup);
-                        groupCommand.setGroupJid(groupJid);
-                }
+        if (uploadService == null) {
+            // TODO warn user about this problem
+            Log.w(TAG, "no upload service - this shouldn't happen!");
+            return;
+        }
 
-                m = group.beforeEncryption(groupCommand, null);
+        long fileLength;
+
+        try {
+            // encrypt the file if necessary
+            if (encrypt) {
+                // voice notes might have been encrypted while recording
+                File encrypted = VoiceNoteStreamer.take(preMediaUri, groupJid, toGroup);
+                if (encrypted == null) {
+                    InputStream in = getContentResolver().openInputStream(preMediaUri);
+                    encrypted = MessageUtils.encryptFile(this, in, groupJid, toGroup);
+                }
+                fileLength = encrypted.length();
+                preMediaUri = Uri.fromFile(encrypted);
             }
             else {
-                // message stanza
-                m = new org.jivesoftware.smack.packet.Message();
+                // voice note might have been encrypted while recording
+                VoiceNoteStreamer.discard(preMediaUri);
+                fileLength = MediaStorage.getLength(this, preMediaUri);
             }
+        }
+        catch (Exception e) {
+            Log.w(TAG, "error preprocessing media: " + preMediaUri, e);
+            // simulate upload error
+            UploadService.errorNotification(this,
+                getString(R.string.notify_ticker_upload_error),
+                getString(R.string.notify_text_upload_error));
+            return;
+        }
 
-            originalStanza = m;
-            boolean isMessage = (m instanceof org.jivesoftware.smack.packet.Message);
-
-            if (to != null) m.setTo(to);
+        final Uri mediaUri = preMediaUri;
 
-            // set message id
-            m.setStanzaId(id);
-            if (msgId > 0)
-                mWaitingReceipt.put(id, msgId);
+        // build a filename
+        String filename = CompositeMessage.getFilename(mime, new Date());
+        if (filename == null)
+            filename = MediaStorage.UNKNOWN_FILENAME;
 
-            // message server id
-            String serverId = isMessage ? data.getString("org.kontalk.message.ack") : null;
-            boolean ackRequest = isMessage &&
-                !data.getBoolean("org.kontalk.message.standalone", false) &&
-                group == null;
-
-            if (isMessage) {
-                org.jivesoftware.smack.packet.Message msg = (org.jivesoftware.smack.packet.Message) m;
-                msg.setType(org.jivesoftware.smack.packet.Message.Type.chat);
-                String body = data.getString("org.kontalk.message.body");
-                if (body != null)
-                    msg.setBody(body);
-
-                String fetchUrl = data.getString("org.kontalk.message.fetch.url");
-
-                // generate preview if needed
-                String _previewUri = data.getString("org.kontalk.message.preview.uri");
-                String previewFilename = data.getString("org.kontalk.message.preview.path");
-                if (_previewUri != null && previewFilename != null) {
-                    File previewPath = new File(previewFilename);
-                    if (!previewPath.isFile()) {
-                        Uri previewUri = Uri.parse(_previewUri);
-                        try {
-                            MediaStorage.cacheThumbnail(this, previewUri, previewPath, true);
-                        }
-                        catch (Exception e) {
-                            Log.w(TAG, "unable to generate preview for media", e);
-                        }
-                    }
+        // media message - start upload service
+        uploadService.getPostUrl(filename, fileLength, mime, new IUploadService.UrlCallback() {
+            @Override
+            public void callback(String putUrl, String getUrl) {
+                // start upload intent service
+                Intent i = new Intent(MessageCenterService.this, UploadService.class);
+                i.setData(mediaUri);
+                i.setAction(UploadService.ACTION_UPLOAD);
+                i.putExtra(UploadService.EXTRA_POST_URL, putUrl);
+                i.putExtra(UploadService.EXTRA_GET_URL, getUrl);
+                i.putExtra(UploadService.EXTRA_REQUEST_TIME, requestTime);
+                i.putExtra(UploadService.EXTRA_SLOT_TIME, SystemClock.elapsedRealtime());
+                i.putExtra(UploadService.EXTRA_DATABASE_ID, msgId);
+                i.putExtra(UploadService.EXTRA_MESSAGE_ID, id);
+                i.putExtra(UploadService.EXTRA_MIME, mime);
+                // this will be used only for out of band data
+                i.putExtra(UploadService.EXTRA_ENCRYPT, encrypt);
+                i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
+                // delete original (actually it's the encrypted temp file) if we already encrypted it
+                i.putExtra(UploadService.EXTRA_DELETE_ORIGINAL, encrypt);
+                i.putExtra(UploadService.EXTRA_USER, groupJid != null ? toGroup : to);
+                if (groupJid != null)
+                    i.putExtra(UploadService.EXTRA_GROUP, groupJid);
+                i.putExtra(UploadService.EXTRA_CACHE_KEY, cacheKey);
+                i.putExtra(UploadService.EXTRA_MEDIA_HASH, mediaHash);
+                startService(i);
+            }
 
-                    m.addExtension(new BitsOfBinary(MediaStorage.THUMBNAIL_MIME_NETWORK, previewPath));
+            @Override
+            public void error(Exception e) {
+                // message will be sent again on next connection
+                if (encrypt)
+                    new File(mediaUri.getPath()).delete();
+
+                if (e instanceof XMPPException.XMPPErrorException) {
+                    // the server refused the file
+                    UploadService.errorNotification(MessageCenterService.this,
+                        getString(R.string.notify_ticker_upload_error),
+                        getString(R.string.notify_text_upload_error));
                 }
+            }
+        });
+    }
 
-                // add download url if present
-                if (fetchUrl != null) {
-                    // in this case we will need the length too
-                    long length = data.getLong("org.kontalk.message.length");
-                    m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
+    /**
+     * Builds and encrypts a message stanza. Called by the outbound pipeline.
+     * @return the stanza to send, or null if the message can't be sent now
+     */
+    Stanza buildMessage(Bundle data, GroupController group, String groupJid, String to,
+            String[] toGroup, String convJid, EndpointServer server, PersonalKey key,
+            long msgId, String id, String mime, boolean encrypt, boolean ackRequest) {
+        Stanza m, originalStanza;
+
+        // pre-process message for group delivery
+        GroupCommand groupCommand = null;
+        if (group != null) {
+            int groupCommandId = data.getInt("org.kontalk.message.group.command", 0);
+            switch (groupCommandId) {
+                case GROUP_COMMAND_PART:
+                    groupCommand = group.part();
+                    ((PartCommand) groupCommand).setDatabaseId(msgId);
+                    // FIXME careful to this, might need abstraction
+                    groupCommand.setMembers(toGroup);
+                    groupCommand.setGroupJid(groupJid);
+                    break;
+                case GROUP_COMMAND_CREATE: {
+                    String subject = data.getString("org.kontalk.message.group.subject");
+                    groupCommand = group.createGroup();
+                    ((CreateGroupCommand) groupCommand).setSubject(subject);
+                    groupCommand.setMembers(toGroup);
+                    groupCommand.setGroupJid(groupJid);
+                    break;
+                }
+                case GROUP_COMMAND_SUBJECT: {
+                    String subject = data.getString("org.kontalk.message.group.subject");
+                    groupCommand = group.setSubject();
+                    ((SetSubjectCommand) groupCommand).setSubject(subject);
+                    // FIXME careful to this, might need abstraction
+                    groupCommand.setMembers(toGroup);
+                    groupCommand.setGroupJid(groupJid);
+                    break;
                 }
+                case GROUP_COMMAND_MEMBERS: {
+                    String subject = data.getString("org.kontalk.message.group.subject");
+                    String[] added = data.getStringArray("org.kontalk.message.group.add");
+                    String[] removed = data.getStringArray("org.kontalk.message.group.remove");
+                    groupCommand = group.addRemoveMembers();
+                    ((AddRemoveMembersCommand) groupCommand).setSubject(subject);
+                    ((AddRemoveMembersCommand) groupCommand).setAddedMembers(added);
+                    ((AddRemoveMembersCommand) groupCommand).setRemovedMembers(removed);
+                    groupCommand.setMembers(toGroup);
+                    groupCommand.setGroupJid(groupJid);
+                    break;
+                }
+                default:
+                    groupCommand = group.info();
+                    // FIXME careful to this, might need abstraction
+                    groupCommand.setMembers(toGroup);
+                    groupCommand.setGroupJid(groupJid);
+            }
+
+            m = group.beforeEncryption(groupCommand, null);
+        }
+        else {
+            // message stanza
+            m = new org.jivesoftware.smack.packet.Message();
+        }
+
+        originalStanza = m;
+        boolean isMessage = (m instanceof org.jivesoftware.smack.packet.Message);
+
+        if (to != null) m.setTo(to);
 
-                // add location data if present
-                if (data.containsKey("org.kontalk.message.geo_lat")) {
-                    double lat = data.getDouble("org.kontalk.message.geo_lat");
-                    double lon = data.getDouble("org.kontalk.message.geo_lon");
-                    UserLocation userLocation = new UserLocation(lat, lon);
+        // set message id
+        m.setStanzaId(id);
 
-                    if (data.containsKey("org.kontalk.message.geo_text")) {
-                        String text = data.getString("org.kontalk.message.geo_text");
-                        userLocation.setText(text);
+        // message server id
+        String serverId = isMessage ? data.getString("org.kontalk.message.ack") : null;
+
+        if (isMessage) {
+            org.jivesoftware.smack.packet.Message msg = (org.jivesoftware.smack.packet.Message) m;
+            msg.setType(org.jivesoftware.smack.packet.Message.Type.chat);
+            String body = data.getString("org.kontalk.message.body");
+            if (body != null)
+                msg.setBody(body);
+
+            String fetchUrl = data.getString("org.kontalk.message.fetch.url");
+
+            // generate preview if needed
+            String _previewUri = data.getString("org.kontalk.message.preview.uri");
+            String previewFilename = data.getString("org.kontalk.message.preview.path");
+            if (_previewUri != null && previewFilename != null) {
+                File previewPath = new File(previewFilename);
+                if (!previewPath.isFile()) {
+                    Uri previewUri = Uri.parse(_previewUri);
+                    try {
+                        MediaStorage.cacheThumbnail(this, previewUri, previewPath, true);
                     }
-                    if (data.containsKey("org.kontalk.message.geo_street")) {
-                        String street = data.getString("org.kontalk.message.geo_street");
-                        userLocation.setStreet(street);
+                    catch (Exception e) {
+                        Log.w(TAG, "unable to generate preview for media", e);
                     }
+                }
+
+                m.addExtension(new BitsOfBinary(MediaStorage.THUMBNAIL_MIME_NETWORK, previewPath));
+            }
 
-                    m.addExtension(userLocation);
+            // add download url if present
+            if (fetchUrl != null) {
+                // in this case we will need the length too
+                long length = data.getLong("org.kontalk.message.length");
+                m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
+            }
+
+            // add location data if present
+            if (data.containsKey("org.kontalk.message.geo_lat")) {
+                double lat = data.getDouble("org.kontalk.message.geo_lat");
+                double lon = data.getDouble("org.kontalk.message.geo_lon");
+                UserLocation userLocation = new UserLocation(lat, lon);
+
+                if (data.containsKey("org.kontalk.message.geo_text")) {
+                    String text = data.getString("org.kontalk.message.geo_text");
+                    userLocation.setText(text);
+                }
+                if (data.containsKey("org.kontalk.message.geo_street")) {
+                    String street = data.getString("org.kontalk.message.geo_street");
+                    userLocation.setStreet(street);
                 }
 
-                // add referenced message if any
-                long inReplyToId = data.getLong("org.kontalk.message.inReplyTo", 0);
-                if (inReplyToId > 0) {
-                    ReferencedMessage referencedMsg = ReferencedMessage.load(this, inReplyToId);
-                    if (referencedMsg != null) {
-                        DelayInformation fwdDelay = new DelayInformation(new Date(referencedMsg.getTimestamp()));
+                m.addExtension(userLocation);
+            }
 
-                        try {
-                            org.jivesoftware.smack.packet.Message fwdMessage =
-                                new org.jivesoftware.smack.packet.Message(referencedMsg.getPeer(),
-                                    referencedMsg.getTextContent());
-                            fwdMessage.setStanzaId(referencedMsg.getMessageId());
+            // add referenced message if any
+            long inReplyToId = data.getLong("org.kontalk.message.inReplyTo", 0);
+            if (inReplyToId > 0) {
+                ReferencedMessage referencedMsg = ReferencedMessage.load(this, inReplyToId);
+                if (referencedMsg != null) {
+                    DelayInformation fwdDelay = new DelayInformation(new Date(referencedMsg.getTimestamp()));
 
-                            m.addExtension(new Forwarded(fwdDelay, fwdMessage));
-                        }
-                        catch (XmppStringprepException e) {
-                            Log.w(TAG, "unable to parse referenced message JID: " + referencedMsg.getPeer(), e);
-                            // this is serious, report it
-                            ReportingManager.logException(e);
-                        }
+                    try {
+                        org.jivesoftware.smack.packet.Message fwdMessage =
+                            new org.jivesoftware.smack.packet.Message(referencedMsg.getPeer(),
+                                referencedMsg.getTextContent());
+                        fwdMessage.setStanzaId(referencedMsg.getMessageId());
+
+                        m.addExtension(new Forwarded(fwdDelay, fwdMessage));
+                    }
+                    catch (XmppStringprepException e) {
+                        Log.w(TAG, "unable to parse referenced message JID: " + referencedMsg.getPeer(), e);
+                        // this is serious, report it
+                        ReportingManager.logException(e);
                     }
                 }
+            }
 
-                if (encrypt) {
-                    byte[] toMessage = null;
-                    try {
-                        Coder coder = Keyring.getEncryptCoder(this, mServer, key, toGroup);
-                        if (coder != null) {
+            if (encrypt) {
+                byte[] toMessage = null;
+                try {
+                    Coder coder = Keyring.getEncryptCoder(this, server, key, groupJid, toGroup);
+                    if (coder != null) {
 
-                            // no extensions, create a simple text version to save space
-                            if (m.getExtensions().size() == 0) {
-                                toMessage = coder.encryptText(body);
-                            }
+                        // no extensions, create a simple text version to save space
+                        if (m.getExtensions().size() == 0) {
+                            toMessage = coder.encryptText(body);
+                        }
 
-                            // some extension, encrypt whole stanza just to be sure
-                            else {
-                                toMessage = coder.encryptStanza(m.toXML());
-                            }
+                        // some extension, encrypt whole stanza just to be sure
+                        else {
+                            toMessage = coder.encryptStanza(m.toXML());
+                        }
 
-                            org.jivesoftware.smack.packet.Message encMsg =
-                                new org.jivesoftware.smack.packet.Message(m.getTo(),
-                                    ((org.jivesoftware.smack.packet.Message) m).getType());
+                        org.jivesoftware.smack.packet.Message encMsg =
+                            new org.jivesoftware.smack.packet.Message(m.getTo(),
+                                ((org.jivesoftware.smack.packet.Message) m).getType());
 
-                            encMsg.setBody(getString(R.string.text_encrypted));
-                            encMsg.setStanzaId(m.getStanzaId());
-                            encMsg.addExtension(new E2EEncryption(toMessage));
+                        encMsg.setBody(getString(R.string.text_encrypted));
+                        encMsg.setStanzaId(m.getStanzaId());
+                        encMsg.addExtension(new E2EEncryption(toMessage));
 
-                            // save the unencrypted stanza for later
-                            originalStanza = m;
-                            m = encMsg;
-                        }
+                        // save the unencrypted stanza for later
+                        originalStanza = m;
+                        m = encMsg;
                     }
+                }
 
-                    // FIXME there is some very ugly code here
-                    // FIXME notify just once per session (store in Kontalk instance?)
+                // FIXME there is some very ugly code here
+                // FIXME notify just once per session (store in Kontalk instance?)
 
-                    catch (IllegalArgumentException noPublicKey) {
-                        // warn user: message will be not sent
-                        if (MessagingNotification.isPaused(convJid)) {
-                            Toast.makeText(this, R.string.warn_no_public_key,
-                                Toast.LENGTH_LONG).show();
-                        }
+                catch (IllegalArgumentException noPublicKey) {
+                    // warn user: message will be not sent
+                    if (MessagingNotification.isPaused(convJid)) {
+                        showToast(R.string.warn_no_public_key);
                     }
-                    catch (GeneralSecurityException e) {
-                        // warn user: message will not be sent
-                        if (MessagingNotification.isPaused(convJid)) {
-                            Toast.makeText(this, R.string.warn_encryption_failed,
-                                Toast.LENGTH_LONG).show();
-                        }
+                }
+                catch (GeneralSecurityException e) {
+                    // warn user: message will not be sent
+                    if (MessagingNotification.isPaused(convJid)) {
+                        showToast(R.string.warn_encryption_failed);
                     }
+                }
 
-                    if (toMessage == null) {
-                        // message was not encrypted for some reason, mark it pending user review
-                        MessageUpdater.forMessage(this, msgId)
-                            .setStatus(Messages.STATUS_PENDING)
-                            .commit();
+                if (toMessage == null) {
+                    // message was not encrypted for some reason, mark it pending user review
+                    MessageUpdater.forMessage(this, msgId)
+                        .setStatus(Messages.STATUS_PENDING)
+                        .commit();
 
-                        // do not send the message
-                        if (msgId > 0)
-                            mWaitingReceipt.remove(id);
-                        mIdleHandler.release();
-                        return;
-                    }
+                    // do not send the message
+                    return null;
                 }
             }
+        }
 
-            // post-process for group delivery
-            if (group != null) {
-                m = group.afterEncryption(groupCommand, m, originalStanza);
-            }
+        // post-process for group delivery
+        if (group != null) {
+            m = group.afterEncryption(groupCommand, m, originalStanza);
+        }
 
-            if (isMessage) {
-                // received receipt
-                if (serverId != null) {
-                    m.addExtension(new DeliveryReceipt(serverId));
+        if (isMessage) {
+            // received receipt
+            if (serverId != null) {
+                m.addExtension(new DeliveryReceipt(serverId));
+            }
+            else {
+                ChatState chatState;
+                try {
+                    chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
+                    // add chat state if message is not a received receipt
+                    m.addExtension(new ChatStateExtension(chatState));
                 }
-                else {
-                    ChatState chatState;
-                    try {
-                        chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
-                        // add chat state if message is not a received receipt
-                        m.addExtension(new ChatStateExtension(chatState));
-                    }
-                    catch (Exception ignored) {
-                    }
-
-                    // standalone: no receipt
-                    if (ackRequest)
-                        DeliveryReceiptRequest.addTo((org.jivesoftware.smack.packet.Message) m);
+                catch (Exception ignored) {
                 }
+
+                // standalone: no receipt
+                if (ackRequest)
+                    DeliveryReceiptRequest.addTo((org.jivesoftware.smack.packet.Message) m);
             }
+        }
+
+        return m;
+    }
+
+    /**
+     * Sends a message built by {@link #buildMessage}.
+     * @param m the stanza to send, null if the message could not be built
+     */
+    void deliverMessage(Stanza m, String id, long msgId, boolean ackRequest) {
+        if (mIdleHandler == null) {
+            // message center is being destroyed
+            return;
+        }
+
+        if (m == null) {
+            // message will be sent again later
+            if (msgId > 0)
+                mWaitingReceipt.remove(id);
+            mIdleHandler.release();
+            return;
+        }
 
+        // chat states and receipts go through the outbound queue
+        if (!mOutboundQueue.offer(m)) {
+            mOutboundQueue.beforeSend(m);
             if (!sendPacket(m) && msgId > 0) {
                 // message was not sent, remove it from the pending queue
                 mWaitingReceipt.remove(id);
             }
-
-            // no ack request, release message center immediately
-            if (!ackRequest)
-                mIdleHandler.release();
         }
+
+        // no ack request, release message center immediately
+        if (!ackRequest)
+            mIdleHandler.release();
     }
 
-    private void ensureUploadServices() {
-        if (mUploadServices == null)
-            mUploadServices = new ArrayList<>(2);
+    /** Shows a toast from any thread. */
+    void showToast(final int textId) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(getApplicationContext(), textId,
+                        Toast.LENGTH_LONG).show();
+                }
+            });
+        }
     }
 
     void addUploadService(IUploadService service) {
-        ensureUploadServices();
         mUploadServices.add(service);
     }
 
     void addUploadService(IUploadService service, int priority) {
-        ensureUploadServices();
         mUploadServices.add(priority, service);
     }
 
+    /**
+     * Removes upload services not reported by service discovery anymore,
+     * e.g. restored from an outdated discovery cache.
+     */
+    void retainUploadServices(Set<String> jids) {
+        // copy-on-write iterators don't support removal
+        List<IUploadService> removed = new ArrayList<>();
+        for (IUploadService service : mUploadServices) {
+            if (service instanceof HTTPFileUploadService) {
+                String jid = ((HTTPFileUploadService) service).getService().toString();
+                if (!jids.contains(jid)) {
+                    Log.d(TAG, "upload service not available anymore: " + jid);
+                    removed.add(service);
+                }
+            }
+        }
+        if (removed.size() > 0)
+            mUploadServices.removeAll(removed);
+    }
+
+    /** Returns true if an HTTP upload service with the given address is known. */
+    boolean hasUploadService(BareJid jid) {
+        for (IUploadService service : mUploadServices) {
+            if (service instanceof HTTPFileUploadService &&
+                    jid.equals(((HTTPFileUploadService) service).getService()))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Returns the first available upload service post URL.
      */
     private IUploadService getUploadService() {
-        return (mUploadServices != null && mUploadServices.size() > 0) ?
-            mUploadServices.get(0) : null;
+        // the list might be cleared between a size check and a get
+        Iterator<IUploadService> services = mUploadServices.iterator();
+        return services.hasNext() ? services.next() : null;
     }
 
     private void setForeground() {
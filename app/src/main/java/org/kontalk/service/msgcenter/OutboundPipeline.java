@@ -0,0 +1,227 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.kontalk.Log;
+import org.kontalk.reporting.ReportingManager;
+import org.kontalk.util.LatencyStats;
+
+
+/**
+ * Processes outgoing messages in background.
+ * Encryption, thumbnails and stanza building run on a small thread pool,
+ * then the result is delivered on the main thread. Tasks for the same
+ * conversation are processed one at a time and delivered in the same
+ * order they were submitted; different conversations run in parallel.
+ * @author Daniele Ricci
+ */
+public class OutboundPipeline {
+    private static final String TAG = MessageCenterService.TAG;
+
+    private static final int MAX_THREADS = 3;
+    private static final int KEEPALIVE_SECONDS = 10;
+
+    /** Tasks submitted and not delivered yet, for all pipelines. */
+    private static final AtomicInteger sQueueDepth = new AtomicInteger();
+
+    /** Time spent waiting for the conversation and a free thread. */
+    private static final LatencyStats sWaitLatency = new LatencyStats(100);
+    /** Time spent processing in background. */
+    private static final LatencyStats sProcessLatency = new LatencyStats(100);
+    /** Time spent waiting for the main thread. */
+    private static final LatencyStats sDeliveryLatency = new LatencyStats(100);
+
+    public interface Task<T> {
+        /** Called on a background thread. */
+        T process();
+
+        /**
+         * Called on the main thread with the result of {@link #process()}.
+         * @param result null if processing threw an exception
+         */
+        void deliver(T result);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler;
+
+    /**
+     * Tasks waiting for the conversation for each busy conversation.
+     * Guarded by itself.
+     */
+    private final Map<String, Queue<Job<?>>> mLanes = new HashMap<>();
+
+    /** Tasks submitted and not delivered yet. Used by the main thread only. */
+    private int mPending;
+    private boolean mShutdown;
+
+    OutboundPipeline() {
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "OutboundPipeline");
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task for the given conversation. Must be called from the main thread.
+     * @param conversation the conversation JID
+     */
+    <T> void submit(String conversation, Task<T> task) {
+        Job<T> job = new Job<>(conversation, task);
+        mPending++;
+        sQueueDepth.incrementAndGet();
+        synchronized (mLanes) {
+            Queue<Job<?>> lane = mLanes.get(conversation);
+            if (lane != null) {
+                // another task is running for this conversation
+                lane.add(job);
+                return;
+            }
+            mLanes.put(conversation, new LinkedList<Job<?>>());
+        }
+        execute(job);
+    }
+
+    /**
+     * Drops all pending tasks. Results not delivered yet will be discarded.
+     * Must be called from the main thread.
+     */
+    void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+        synchronized (mLanes) {
+            mLanes.clear();
+        }
+        sQueueDepth.addAndGet(-mPending);
+        mPending = 0;
+    }
+
+    private void execute(Job<?> job) {
+        try {
+            mExecutor.execute(job);
+        }
+        catch (RejectedExecutionException e) {
+            Log.v(TAG, "pipeline shut down, dropping outgoing message");
+        }
+    }
+
+    /** Starts the next task for the given conversation. */
+    private void next(String conversation) {
+        Job<?> job;
+        synchronized (mLanes) {
+            Queue<Job<?>> lane = mLanes.get(conversation);
+            if (lane == null)
+                return;
+            job = lane.poll();
+            if (job == null) {
+                mLanes.remove(conversation);
+                return;
+            }
+        }
+        execute(job);
+    }
+
+    /** Number of tasks submitted and not delivered yet. */
+    public static int getQueueDepth() {
+        return sQueueDepth.get();
+    }
+
+    public static LatencyStats getWaitLatency() {
+        return sWaitLatency;
+    }
+
+    public static LatencyStats getProcessLatency() {
+        return sProcessLatency;
+    }
+
+    public static LatencyStats getDeliveryLatency() {
+        return sDeliveryLatency;
+    }
+
+    private final class Job<T> implements Runnable {
+        final String conversation;
+        final Task<T> task;
+        final long queued = SystemClock.elapsedRealtime();
+
+        Job(String conversation, Task<T> task) {
+            this.conversation = conversation;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long started = SystemClock.elapsedRealtime();
+            sWaitLatency.add(started - queued);
+
+            T result = null;
+            try {
+                result = task.process();
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "error processing outgoing message", e);
+                ReportingManager.logException(e);
+            }
+
+            final long processed = SystemClock.elapsedRealtime();
+            sProcessLatency.add(processed - started);
+            Log.v(TAG, "outgoing message processed in " + (processed - started) + " ms, " +
+                sQueueDepth.get() + " queued, " + sProcessLatency);
+
+            // post before starting the next task to keep ordering
+            final T deliverResult = result;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mShutdown)
+                        return;
+                    sDeliveryLatency.add(SystemClock.elapsedRealtime() - processed);
+                    mPending--;
+                    sQueueDepth.decrementAndGet();
+                    task.deliver(deliverResult);
+                }
+            });
+
+            next(conversation);
+        }
+    }
+
+}
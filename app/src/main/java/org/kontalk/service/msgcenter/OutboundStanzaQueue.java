@@ -0,0 +1,223 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
+import org.jivesoftware.smackx.receipts.DeliveryReceipt;
+import org.jxmpp.jid.Jid;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.kontalk.Log;
+
+
+/**
+ * Outbound queue for low-priority stanzas (standalone chat states and
+ * delivery receipts). Stanzas are held for a short time and then handed to
+ * the connection all at once, so the packet writer can flush them with a
+ * single socket write. Chat states superseded by a newer one for the same
+ * peer and duplicate receipts are dropped before being sent.
+ * Not thread safe: must be used from the handler thread only.
+ * @author Daniele Ricci
+ */
+class OutboundStanzaQueue {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Flush the queue after this many milliseconds. */
+    private static final long FLUSH_DELAY = 150;
+    /** Flush the queue immediately when it reaches this many stanzas. */
+    private static final int FLUSH_SIZE = 50;
+
+    interface Callback {
+        /** Sends a stanza to the connection. */
+        boolean sendStanza(Stanza stanza);
+
+        /**
+         * Called for a stanza that will never be sent.
+         * @param superseded true if the stanza was replaced by another one,
+         *                   false if sending failed
+         */
+        void onStanzaDropped(Stanza stanza, boolean superseded);
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    /** Pending chat states by peer. */
+    private final Map<Jid, Stanza> mChatStates = new LinkedHashMap<>();
+    /** Pending receipts by receipt ID. */
+    private final Map<String, Stanza> mReceipts = new LinkedHashMap<>();
+
+    private boolean mFlushScheduled;
+
+    private long mStanzasQueued;
+    private long mStanzasDropped;
+    private long mBytesSaved;
+    private long mWritesSaved;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    OutboundStanzaQueue(Looper looper, Callback callback) {
+        mHandler = new Handler(looper);
+        mCallback = callback;
+    }
+
+    /** Returns true if the given stanza can be queued. */
+    static boolean isQueueable(Stanza stanza) {
+        return getReceiptId(stanza) != null || isStandaloneChatState(stanza);
+    }
+
+    private static String getReceiptId(Stanza stanza) {
+        if (stanza instanceof Message) {
+            DeliveryReceipt receipt = DeliveryReceipt.from((Message) stanza);
+            if (receipt != null)
+                return receipt.getId();
+        }
+        return null;
+    }
+
+    private static boolean isStandaloneChatState(Stanza stanza) {
+        return stanza instanceof Message &&
+            ((Message) stanza).getBody() == null &&
+            stanza.getExtensions().size() == 1 &&
+            stanza.hasExtension(ChatStateExtension.NAMESPACE);
+    }
+
+    /**
+     * Queues a stanza for delivery.
+     * @return false if the stanza is not queueable
+     */
+    boolean offer(Stanza stanza) {
+        Stanza superseded;
+
+        String receiptId = getReceiptId(stanza);
+        if (receiptId != null) {
+            // a receipt already queued for the same message is enough
+            if (mReceipts.containsKey(receiptId)) {
+                drop(stanza, true);
+                return true;
+            }
+            mReceipts.put(receiptId, stanza);
+            superseded = null;
+        }
+        else if (isStandaloneChatState(stanza)) {
+            // newer chat state replaces the pending one (re-queued at the end)
+            superseded = mChatStates.remove(stanza.getTo());
+            mChatStates.put(stanza.getTo(), stanza);
+        }
+        else {
+            return false;
+        }
+
+        mStanzasQueued++;
+        if (superseded != null)
+            drop(superseded, true);
+
+        if (size() >= FLUSH_SIZE) {
+            flush();
+        }
+        else if (!mFlushScheduled) {
+            mHandler.postDelayed(mFlushTask, FLUSH_DELAY);
+            mFlushScheduled = true;
+        }
+        return true;
+    }
+
+    /**
+     * Must be called before sending any other stanza to the given peer.
+     * A pending chat state for the peer is dropped because every message we
+     * send carries its own chat state; everything else is flushed to keep
+     * delivery order.
+     */
+    void beforeSend(Stanza stanza) {
+        if (stanza instanceof Message && ((Message) stanza)
+                .hasExtension(ChatStateExtension.NAMESPACE)) {
+            Stanza pending = mChatStates.remove(stanza.getTo());
+            if (pending != null)
+                drop(pending, true);
+        }
+
+        if (size() > 0)
+            flush();
+    }
+
+    /** Sends all queued stanzas to the connection. */
+    void flush() {
+        mHandler.removeCallbacks(mFlushTask);
+        mFlushScheduled = false;
+
+        int count = size();
+        if (count == 0)
+            return;
+
+        List<Stanza> stanzas = new ArrayList<>(count);
+        stanzas.addAll(mReceipts.values());
+        stanzas.addAll(mChatStates.values());
+        mReceipts.clear();
+        mChatStates.clear();
+
+        // the packet writer flushes only when its queue is empty
+        for (Stanza stanza : stanzas) {
+            if (!mCallback.sendStanza(stanza))
+                mCallback.onStanzaDropped(stanza, false);
+        }
+        mWritesSaved += count - 1;
+
+        Log.v(TAG, "flushed " + count + " stanzas (queued: " + mStanzasQueued +
+            ", dropped: " + mStanzasDropped +
+            ", bytes saved: " + mBytesSaved + ", writes saved: " + mWritesSaved + ")");
+    }
+
+    /** Discards all queued stanzas (e.g. on disconnection). */
+    void clear() {
+        mHandler.removeCallbacks(mFlushTask);
+        mFlushScheduled = false;
+        for (Iterator<Stanza> it = mReceipts.values().iterator(); it.hasNext(); ) {
+            mCallback.onStanzaDropped(it.next(), false);
+            it.remove();
+        }
+        mChatStates.clear();
+    }
+
+    private void drop(Stanza stanza, boolean superseded) {
+        mStanzasDropped++;
+        mBytesSaved += stanza.toXML().length();
+        mWritesSaved++;
+        mCallback.onStanzaDropped(stanza, superseded);
+    }
+
+    int size() {
+        return mReceipts.size() + mChatStates.size();
+    }
+
+}
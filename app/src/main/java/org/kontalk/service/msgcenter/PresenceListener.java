@@ -258,24 +258,41 @@ class PresenceListener extends MessageCenterPacketListener {
                         MessageCenterService.requestPublicKey(getContext(), jid);
                 }
 
-                Intent i = createIntent(getContext(), p, getRosterEntry(p.getFrom()));
-                sendBroadcast(i);
+                // coalesced delivery to in-process subscribers
+                PresenceStore.getInstance()
+                    .update(createItem(getContext(), p, getRosterEntry(p.getFrom())));
             }
         });
     }
 
     public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
+        PresenceStore.Item item = createItem(ctx, p, entry);
+
         Intent i = new Intent(ACTION_PRESENCE);
-        Presence.Type type = p.getType();
-        i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
+        i.putExtra(EXTRA_TYPE, item.type.name());
         i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
 
-        i.putExtra(EXTRA_FROM, StringUtils.maybeToString(p.getFrom().toString()));
+        i.putExtra(EXTRA_FROM, item.from);
         i.putExtra(EXTRA_TO, StringUtils.maybeToString(p.getTo()));
-        i.putExtra(EXTRA_STATUS, p.getStatus());
+        i.putExtra(EXTRA_STATUS, item.status);
+        i.putExtra(EXTRA_SHOW, item.mode.name());
+        i.putExtra(EXTRA_PRIORITY, item.priority);
+        i.putExtra(EXTRA_STAMP, item.timestamp);
+        i.putExtra(EXTRA_FINGERPRINT, item.fingerprint);
+
+        // subscription information
+        if (entry != null) {
+            i.putExtra(EXTRA_ROSTER_NAME, item.rosterName);
+            i.putExtra(EXTRA_SUBSCRIBED_FROM, item.subscribedFrom);
+            i.putExtra(EXTRA_SUBSCRIBED_TO, item.subscribedTo);
+        }
+
+        return i;
+    }
+
+    public static PresenceStore.Item createItem(Context ctx, Presence p, RosterEntry entry) {
+        Presence.Type type = p.getType();
         Presence.Mode mode = p.getMode();
-        i.putExtra(EXTRA_SHOW, mode != null ? mode.name() : Presence.Mode.available.name());
-        i.putExtra(EXTRA_PRIORITY, p.getPriority());
 
         String jid = p.getFrom().asBareJid().toString();
 
@@ -291,28 +308,31 @@ class PresenceListener extends MessageCenterPacketListener {
                 timestamp = System.currentTimeMillis();
         }
 
-        i.putExtra(EXTRA_STAMP, timestamp);
-
         // public key fingerprint
         String fingerprint = PublicKeyPresence.getFingerprint(p);
         if (fingerprint == null) {
             // try untrusted fingerprint from database
             fingerprint = Keyring.getFingerprint(ctx, jid, MyUsers.Keys.TRUST_UNKNOWN);
         }
-        i.putExtra(EXTRA_FINGERPRINT, fingerprint);
 
         // subscription information
+        String rosterName = null;
+        boolean subscribedFrom = false, subscribedTo = false;
         if (entry != null) {
-            i.putExtra(EXTRA_ROSTER_NAME, entry.getName());
+            rosterName = entry.getName();
 
             RosterPacket.ItemType subscriptionType = entry.getType();
-            i.putExtra(EXTRA_SUBSCRIBED_FROM, subscriptionType == RosterPacket.ItemType.both ||
-                subscriptionType == RosterPacket.ItemType.from);
-            i.putExtra(EXTRA_SUBSCRIBED_TO, subscriptionType == RosterPacket.ItemType.both ||
-                subscriptionType == RosterPacket.ItemType.to);
+            subscribedFrom = subscriptionType == RosterPacket.ItemType.both ||
+                subscriptionType == RosterPacket.ItemType.from;
+            subscribedTo = subscriptionType == RosterPacket.ItemType.both ||
+                subscriptionType == RosterPacket.ItemType.to;
         }
 
-        return i;
+        return new PresenceStore.Item(p.getFrom().toString(),
+            type != null ? type : Presence.Type.available,
+            mode != null ? mode : Presence.Mode.available,
+            p.getStatus(), p.getPriority(), timestamp, fingerprint,
+            rosterName, subscribedFrom, subscribedTo);
     }
 
     @SuppressWarnings("WeakerAccess")
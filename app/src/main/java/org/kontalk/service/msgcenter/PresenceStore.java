@@ -0,0 +1,154 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.jxmpp.util.XmppStringUtils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+
+/**
+ * Collects presence received from contact resources.
+ * Presence stanzas are coalesced by JID and delivered to listeners in
+ * batches on the main thread, instead of one broadcast per stanza (e.g.
+ * when logging in with a large roster). Roster data (subscription and name)
+ * comes from the roster, which is persisted by {@link SQLiteRosterStore}.
+ * @author Daniele Ricci
+ */
+public class PresenceStore {
+
+    /** Delay for collecting presence updates into a single batch. */
+    private static final int BATCH_DELAY = 100;
+
+    /** A presence snapshot. */
+    public static final class Item {
+        /** Full JID. */
+        public final String from;
+        public final String bareJid;
+        /** Presence type (available or unavailable). */
+        public final Presence.Type type;
+        public final Presence.Mode mode;
+        public final String status;
+        public final int priority;
+        public final long timestamp;
+        public final String fingerprint;
+        public final String rosterName;
+        public final boolean subscribedFrom;
+        public final boolean subscribedTo;
+
+        Item(String from, Presence.Type type, Presence.Mode mode, String status,
+                int priority, long timestamp, String fingerprint, String rosterName,
+                boolean subscribedFrom, boolean subscribedTo) {
+            this.from = from;
+            this.bareJid = XmppStringUtils.parseBareJid(from);
+            this.type = type;
+            this.mode = mode;
+            this.status = status;
+            this.priority = priority;
+            this.timestamp = timestamp;
+            this.fingerprint = fingerprint;
+            this.rosterName = rosterName;
+            this.subscribedFrom = subscribedFrom;
+            this.subscribedTo = subscribedTo;
+        }
+
+        public boolean isAvailable() {
+            return type == Presence.Type.available;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the presences changed since the
+         * last call. Only the last presence for each JID is included.
+         */
+        void onPresenceChanged(Collection<Item> changed);
+    }
+
+    private static PresenceStore sInstance;
+
+    private final Handler mHandler;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    /** Changes not yet delivered, by full JID. */
+    private Map<String, Item> mPending = new LinkedHashMap<>();
+    private boolean mDispatchScheduled;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, Item> changed;
+            synchronized (PresenceStore.this) {
+                changed = mPending;
+                mPending = new LinkedHashMap<>();
+                mDispatchScheduled = false;
+            }
+
+            if (changed.size() > 0) {
+                Collection<Item> items = Collections.unmodifiableCollection(changed.values());
+                for (Listener l : mListeners)
+                    l.onPresenceChanged(items);
+            }
+        }
+    };
+
+    private PresenceStore() {
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public static synchronized PresenceStore getInstance() {
+        if (sInstance == null)
+            sInstance = new PresenceStore();
+        return sInstance;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /** Schedules delivery of a presence to listeners. */
+    public synchronized void update(Item item) {
+        mPending.put(item.from, item);
+        if (!mDispatchScheduled) {
+            mDispatchScheduled = true;
+            mHandler.postDelayed(mDispatch, BATCH_DELAY);
+        }
+    }
+
+    /** Discards pending changes, e.g. when disconnected. */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mDispatch);
+        mDispatchScheduled = false;
+        mPending.clear();
+    }
+
+}
@@ -51,16 +51,33 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
 class PublicKeyListener extends MessageCenterPacketListener implements ExceptionCallback {
 
     private final IQ mRequest;
+    private final Runnable mCompletion;
 
     public PublicKeyListener(MessageCenterService instance, IQ request) {
+        this(instance, request, null);
+    }
+
+    /**
+     * @param completion will be run after the reply or the error has been processed
+     */
+    public PublicKeyListener(MessageCenterService instance, IQ request, Runnable completion) {
         super(instance);
         mRequest = request;
+        mCompletion = completion;
     }
 
     @Override
     public void processStanza(Stanza packet) {
-        PublicKeyPublish p = (PublicKeyPublish) packet;
+        try {
+            processPublicKey((PublicKeyPublish) packet);
+        }
+        finally {
+            if (mCompletion != null)
+                mCompletion.run();
+        }
+    }
 
+    private void processPublicKey(PublicKeyPublish p) {
         byte[] _publicKey = p.getPublicKey();
 
         if (_publicKey != null) {
@@ -95,7 +112,7 @@ class PublicKeyListener extends MessageCenterPacketListener implements Exception
             String id = p.getStanzaId();
 
             // broadcast key update
-            Intent i = prepareIntent(packet, ACTION_PUBLICKEY);
+            Intent i = prepareIntent(p, ACTION_PUBLICKEY);
             i.putExtra(EXTRA_PUBLIC_KEY, _publicKey);
             sendBroadcast(i);
 
@@ -118,16 +135,17 @@ class PublicKeyListener extends MessageCenterPacketListener implements Exception
                 else {
                     try {
                         Log.v("pubkey", "Updating key for " + from);
-                        Keyring.setKey(getContext(), from.toString(), _publicKey,
-                            selfJid ? MyUsers.Keys.TRUST_VERIFIED : -1);
+                        if (Keyring.setKey(getContext(), from.toString(), _publicKey,
+                                selfJid ? MyUsers.Keys.TRUST_VERIFIED : -1)) {
 
-                        // update display name with uid (if empty)
-                        PGPUserID keyUid = PGP.parseUserId(_publicKey, getConnection().getServiceName().toString());
-                        if (keyUid != null && keyUid.getName() != null)
-                            UsersProvider.updateDisplayNameIfEmpty(getContext(), from.toString(), keyUid.getName());
+                            // update display name with uid (if empty)
+                            PGPUserID keyUid = PGP.parseUserId(_publicKey, getConnection().getServiceName().toString());
+                            if (keyUid != null && keyUid.getName() != null)
+                                UsersProvider.updateDisplayNameIfEmpty(getContext(), from.toString(), keyUid.getName());
 
-                        // invalidate cache for this user
-                        Contact.invalidate(from.toString());
+                            // invalidate cache for this user
+                            Contact.invalidate(from.toString());
+                        }
                     }
                     catch (Exception e) {
                         // TODO warn user
@@ -140,9 +158,15 @@ class PublicKeyListener extends MessageCenterPacketListener implements Exception
 
     @Override
     public void processException(Exception exception) {
-        Intent i = prepareResponseIntent(mRequest, ACTION_PUBLICKEY);
-        i.putExtra(EXTRA_TYPE, IQ.Type.error.toString());
-        i.putExtra(EXTRA_ERROR_EXCEPTION, exception);
-        sendBroadcast(i);
+        try {
+            Intent i = prepareResponseIntent(mRequest, ACTION_PUBLICKEY);
+            i.putExtra(EXTRA_TYPE, IQ.Type.error.toString());
+            i.putExtra(EXTRA_ERROR_EXCEPTION, exception);
+            sendBroadcast(i);
+        }
+        finally {
+            if (mCompletion != null)
+                mCompletion.run();
+        }
     }
 }
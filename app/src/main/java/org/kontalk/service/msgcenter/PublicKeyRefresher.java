@@ -0,0 +1,159 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jxmpp.jid.BareJid;
+
+import android.content.Intent;
+
+import org.kontalk.Log;
+import org.kontalk.client.PublicKeyPublish;
+import org.kontalk.provider.Keyring;
+import org.kontalk.provider.MyUsers;
+
+import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PUBLICKEY;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PUBLIC_KEY;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
+
+
+/**
+ * Refreshes public keys of a list of users, requesting only keys that are
+ * unknown or whose fingerprint (as advertised by presence) changed.
+ * Keys already up to date are broadcast from the keyring, so listeners get
+ * a reply for every user anyway. Requests are pipelined with a limited
+ * number of them waiting for a reply.
+ * @author Daniele Ricci
+ */
+class PublicKeyRefresher implements Runnable {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Maximum number of requests waiting for a reply. */
+    private static final int WINDOW_SIZE = 10;
+
+    private final WeakReference<MessageCenterService> mInstance;
+    private final String mPacketId;
+    private final List<BareJid> mJids;
+
+    private final Queue<BareJid> mQueue = new LinkedList<>();
+    private int mPending;
+    private int mRequested;
+
+    PublicKeyRefresher(MessageCenterService instance, String packetId, List<BareJid> jids) {
+        mInstance = new WeakReference<>(instance);
+        mPacketId = packetId;
+        mJids = jids;
+    }
+
+    /** Must be called from a background thread. */
+    @Override
+    public void run() {
+        MessageCenterService instance = mInstance.get();
+        if (instance == null)
+            return;
+
+        Set<String> upToDate = Keyring.getUpToDateKeys(instance);
+        int cached = 0;
+        for (BareJid jid : mJids) {
+            String jidString = jid.toString();
+            Keyring.TrustedPublicKeyData key = upToDate.contains(jidString) ?
+                Keyring.getPublicKeyData(instance, jidString, MyUsers.Keys.TRUST_UNKNOWN) : null;
+
+            if (key != null) {
+                Intent i = prepareIntent(jidString);
+                i.putExtra(EXTRA_PUBLIC_KEY, key.keyData);
+                broadcast(instance, i);
+                cached++;
+            }
+            else {
+                synchronized (this) {
+                    mQueue.add(jid);
+                }
+            }
+        }
+
+        Log.v(TAG, "public keys: " + cached + " up to date, " + mQueue.size() + " to request");
+        next();
+    }
+
+    /** Sends requests until the window is full. */
+    synchronized void next() {
+        MessageCenterService instance = mInstance.get();
+        if (instance == null || !instance.isConnected()) {
+            // reply with an error so listeners don't wait for these keys
+            for (BareJid jid : mQueue) {
+                Intent i = prepareIntent(jid.toString());
+                i.putExtra(EXTRA_TYPE, IQ.Type.error.toString());
+                broadcast(instance, i);
+            }
+            if (!mQueue.isEmpty())
+                Log.v(TAG, "public keys: not connected, " + mQueue.size() + " requests dropped");
+            mQueue.clear();
+            return;
+        }
+
+        while (mPending < WINDOW_SIZE && !mQueue.isEmpty()) {
+            PublicKeyPublish p = new PublicKeyPublish();
+            p.setStanzaId(mPacketId);
+            p.setTo(mQueue.poll());
+
+            mPending++;
+            mRequested++;
+            PublicKeyListener listener = new PublicKeyListener(instance, p, new Runnable() {
+                @Override
+                public void run() {
+                    onReply();
+                }
+            });
+            instance.sendIqWithReply(p, true, listener, listener);
+        }
+    }
+
+    private Intent prepareIntent(String jid) {
+        Intent i = new Intent(ACTION_PUBLICKEY);
+        i.putExtra(EXTRA_PACKET_ID, mPacketId);
+        i.putExtra(EXTRA_FROM, jid);
+        return i;
+    }
+
+    private static void broadcast(MessageCenterService instance, Intent i) {
+        if (instance != null && instance.isStarted())
+            instance.mLocalBroadcastManager.sendBroadcast(i);
+    }
+
+    synchronized void onReply() {
+        mPending--;
+        if (mQueue.isEmpty()) {
+            if (mPending == 0)
+                Log.v(TAG, "public keys: " + mRequested + " keys refreshed");
+        }
+        else {
+            next();
+        }
+    }
+
+}
@@ -31,8 +31,11 @@ import org.kontalk.util.Preferences;
  */
 class PushDiscoverItemsListener extends MessageCenterPacketListener {
 
-    public PushDiscoverItemsListener(MessageCenterService instance) {
+    private final ServiceDiscoveryCache.Revalidation mRevalidation;
+
+    public PushDiscoverItemsListener(MessageCenterService instance, ServiceDiscoveryCache.Revalidation revalidation) {
         super(instance);
+        mRevalidation = revalidation;
     }
 
     @Override
@@ -40,7 +43,12 @@ class PushDiscoverItemsListener extends MessageCenterPacketListener {
         // we don't need this listener anymore
         getConnection().removeAsyncStanzaListener(this);
 
-        DiscoverItems query = (DiscoverItems) packet;
+        if (packet instanceof DiscoverItems)
+            processItems((DiscoverItems) packet);
+        mRevalidation.done();
+    }
+
+    private void processItems(DiscoverItems query) {
         List<DiscoverItems.Item> items = query.getItems();
         for (DiscoverItems.Item item : items) {
             String jid = item.getEntityID().toString();
@@ -48,6 +56,7 @@ class PushDiscoverItemsListener extends MessageCenterPacketListener {
             if (("gcm.push." + getServer().getNetwork()).equals(jid)) {
                 String senderId = item.getNode();
                 setPushSenderId(senderId);
+                mRevalidation.setPushSenderId(senderId);
 
                 if (isPushNotificationsEnabled()) {
                     String oldSender = Preferences.getPushSenderId();
@@ -75,6 +75,9 @@ class RegenerateKeyPairListener extends RegisterKeyPairListener {
         if (mKeyReceiver != null) {
             unregisterReceiver(mKeyReceiver);
             mKeyReceiver = null;
+            // key pair was not generated yet, cancel it
+            Context ctx = getApplication();
+            ctx.stopService(new Intent(ctx, KeyPairGeneratorService.class));
         }
     }
 
@@ -20,7 +20,10 @@ package org.kontalk.service.msgcenter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
@@ -37,13 +40,24 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
+import org.kontalk.Log;
 import org.kontalk.util.Preferences;
 
 
 /**
  * A roster store backed by a SQLite database.
+ * Entries are loaded in memory on first access and looked up from there.
+ * Changes are applied in memory immediately and written to the database
+ * in background, batched into a single transaction every
+ * {@link #FLUSH_DELAY} milliseconds. The roster version is persisted only
+ * after the entries it refers to. If the database can't be read, no roster
+ * version is reported so the full roster will be requested.
  * @author Daniele Ricci
  */
 public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
@@ -69,14 +83,45 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         SCHEMA_ROSTER,
     };
 
-    private final Context mContext;
+    /** Delay for batching changes into a single transaction. */
+    static final int FLUSH_DELAY = 1000;
+    /** Failed flushes are retried with an exponential backoff, up to this many times. */
+    static final int MAX_FLUSH_RETRIES = 5;
 
     private SQLiteStatement mInsertStatement;
     private final Object mInsertLock = new Object();
 
+    /** In-memory entries by bare JID. Null until loaded. */
+    private Map<String, RosterPacket.Item> mEntries;
+    /** Changes not yet persisted by bare JID: null values are removals. */
+    private Map<String, RosterPacket.Item> mDirty = new LinkedHashMap<>();
+    /** Changes being written by {@link #flush}, if any. */
+    private Map<String, RosterPacket.Item> mFlushing;
+    /** True if the whole table must be cleared before writing changes. */
+    private boolean mDirtyReset;
+    /** Roster version not yet persisted. */
+    private String mDirtyVersion;
+
+    private final Object mFlushLock = new Object();
+    private HandlerThread mWriterThread;
+    private Handler mWriter;
+    private boolean mFlushScheduled;
+    private int mFlushRetries;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
     public SQLiteRosterStore(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
-        mContext = context;
+        this(context, DATABASE_NAME);
+    }
+
+    @VisibleForTesting
+    SQLiteRosterStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
     }
 
     @Override
@@ -94,6 +139,17 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     }
 
     public void onDestroy() {
+        synchronized (this) {
+            if (mWriterThread != null) {
+                mWriter.removeCallbacks(mFlush);
+                mWriterThread.quit();
+                mWriterThread = null;
+                mWriter = null;
+                mFlushScheduled = false;
+            }
+        }
+        // write any pending change now
+        flush();
         close();
     }
 
@@ -126,34 +182,73 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         return mInsertStatement;
     }
 
-    @Override
-    public List<RosterPacket.Item> getEntries() {
-        SQLiteDatabase db = getReadableDatabase();
+    /**
+     * Loads all entries in memory if not already done. Must hold the lock.
+     * @return false if entries could not be loaded (will be retried on next call)
+     */
+    private boolean ensureLoaded() {
+        if (mEntries != null)
+            return true;
+
+        long start = System.currentTimeMillis();
+        Map<String, RosterPacket.Item> entries = new HashMap<>();
+
         Cursor c = null;
         try {
+            SQLiteDatabase db = getReadableDatabase();
             c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
-            if (c != null) {
-                List<RosterPacket.Item> items = new ArrayList<>(c.getCount());
-                while (c.moveToNext()) {
-                    items.add(fromCursor(c));
+            while (c.moveToNext()) {
+                try {
+                    RosterPacket.Item item = fromCursor(c);
+                    entries.put(item.getJid().toString(), item);
+                }
+                catch (XmppStringprepException e) {
+                    Log.w(MessageCenterService.TAG, "invalid roster entry: " + c.getString(0));
                 }
-
-                return items;
             }
-
-            return null;
         }
         catch (SQLiteException e) {
-            return null;
-        }
-        catch (XmppStringprepException e) {
-            return null;
+            Log.w(MessageCenterService.TAG, "unable to load roster", e);
+            return false;
         }
         finally {
             if (c != null) {
                 c.close();
             }
         }
+
+        // apply changes made while entries were not loaded
+        if (mFlushing != null)
+            applyChanges(entries, mFlushing);
+        applyChanges(entries, mDirty);
+
+        mEntries = entries;
+        Log.v(MessageCenterService.TAG, "roster loaded (" + entries.size() + " entries) in " +
+            (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    private static void applyChanges(Map<String, RosterPacket.Item> entries,
+            Map<String, RosterPacket.Item> changes) {
+        for (Map.Entry<String, RosterPacket.Item> e : changes.entrySet()) {
+            if (e.getValue() != null)
+                entries.put(e.getKey(), e.getValue());
+            else
+                entries.remove(e.getKey());
+        }
+    }
+
+    @Override
+    public synchronized List<RosterPacket.Item> getEntries() {
+        if (!ensureLoaded()) {
+            List<RosterPacket.Item> items = new ArrayList<>(mDirty.size());
+            for (RosterPacket.Item item : mDirty.values()) {
+                if (item != null)
+                    items.add(item);
+            }
+            return items;
+        }
+        return new ArrayList<>(mEntries.values());
     }
 
     private RosterPacket.Item fromCursor(Cursor c) throws XmppStringprepException {
@@ -183,116 +278,168 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     }
 
     @Override
-    public RosterPacket.Item getEntry(Jid bareJid) {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null,
-                "jid = ?", new String[] { bareJid.toString() },
-                null, null, null);
-            if (c != null && c.moveToFirst()) {
-                return fromCursor(c);
-            }
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        catch (XmppStringprepException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return null;
+    public synchronized RosterPacket.Item getEntry(Jid bareJid) {
+        String jid = bareJid.toString();
+        return ensureLoaded() ? mEntries.get(jid) : mDirty.get(jid);
     }
 
     @Override
-    public String getRosterVersion() {
-        return Preferences.getRosterVersion();
+    public synchronized String getRosterVersion() {
+        // opening the database might create or upgrade it and reset the version
+        if (!ensureLoaded())
+            // request the full roster
+            return null;
+        return mDirtyVersion != null ? mDirtyVersion : Preferences.getRosterVersion();
     }
 
-    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item) {
-        synchronized (mInsertLock) {
-            try {
-                SQLiteStatement stm = prepareInsert(db, item);
-                stm.executeInsert();
-            }
-            catch (SQLiteException e) {
-                return false;
-            }
+    @Override
+    public synchronized boolean addEntry(RosterPacket.Item item, String version) {
+        String jid = item.getJid().toString();
+        if (ensureLoaded())
+            mEntries.put(jid, item);
+        mDirty.put(jid, item);
+        mDirtyVersion = version;
+        scheduleFlush();
+        return true;
+    }
 
-            // insert was successful
-            return true;
-        }
+    @Override
+    public synchronized void resetStore() {
+        mEntries = new HashMap<>();
+        mDirty.clear();
+        mDirtyReset = true;
+        mDirtyVersion = "";
+        scheduleFlush();
     }
 
     @Override
-    public boolean addEntry(RosterPacket.Item item, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        return addEntry(db, item) && setRosterVersion(version);
+    public synchronized boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
+        mEntries = new HashMap<>(items.size());
+        mDirty.clear();
+        for (RosterPacket.Item item : items) {
+            String jid = item.getJid().toString();
+            mEntries.put(jid, item);
+            mDirty.put(jid, item);
+        }
+        mDirtyReset = true;
+        mDirtyVersion = version;
+        scheduleFlush();
+        return true;
     }
 
     @Override
-    public void resetStore() {
-        SQLiteDatabase db = getWritableDatabase();
+    public synchronized boolean removeEntry(Jid bareJid, String version) {
+        String jid = bareJid.toString();
+        if (ensureLoaded())
+            mEntries.remove(jid);
+        mDirty.put(jid, null);
+        mDirtyVersion = version;
+        scheduleFlush();
+        return true;
+    }
 
-        beginTransaction(db);
-        boolean success = false;
+    private void scheduleFlush() {
+        scheduleFlush(FLUSH_DELAY);
+    }
 
-        try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
+    private void scheduleFlush(long delay) {
+        if (mFlushScheduled)
+            return;
 
-            success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion("");
-            }
-        }
-        catch (SQLiteException ignored) {
-        }
-        finally {
-            endTransaction(db, success);
+        if (mWriterThread == null) {
+            mWriterThread = new HandlerThread("RosterStoreWriter",
+                Process.THREAD_PRIORITY_BACKGROUND);
+            mWriterThread.start();
+            mWriter = new Handler(mWriterThread.getLooper());
         }
+        mFlushScheduled = true;
+        mWriter.postDelayed(mFlush, delay);
     }
 
-    @Override
-    public boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-
-        beginTransaction(db);
-        boolean success = false;
+    /** Writes all pending changes to the database in a single transaction. */
+    @VisibleForTesting
+    void flush() {
+        // one flush at a time (writer thread and destroy)
+        synchronized (mFlushLock) {
+            Map<String, RosterPacket.Item> dirty;
+            boolean reset;
+            String version;
+            synchronized (this) {
+                mFlushScheduled = false;
+                if (mDirty.isEmpty() && !mDirtyReset && mDirtyVersion == null)
+                    return;
+
+                dirty = mDirty;
+                reset = mDirtyReset;
+                version = mDirtyVersion;
+                mDirty = new LinkedHashMap<>();
+                mDirtyReset = false;
+                mFlushing = dirty;
+            }
 
-        try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
-            for (RosterPacket.Item item : items) {
-                addEntry(db, item);
+            boolean success = false;
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                beginTransaction(db);
+                try {
+                    if (reset)
+                        db.execSQL("DELETE FROM " + TABLE_ROSTER);
+
+                    for (Map.Entry<String, RosterPacket.Item> e : dirty.entrySet()) {
+                        if (e.getValue() != null)
+                            addEntry(db, e.getValue());
+                        else
+                            db.delete(TABLE_ROSTER, "jid = ?", new String[] { e.getKey() });
+                    }
+
+                    success = setTransactionSuccessful(db);
+                }
+                finally {
+                    endTransaction(db, success);
+                }
+            }
+            catch (SQLiteException e) {
+                Log.w(MessageCenterService.TAG, "unable to write roster changes", e);
             }
 
-            success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion(version);
+            synchronized (this) {
+                mFlushing = null;
+                if (success) {
+                    mFlushRetries = 0;
+                    // version is written only after its entries
+                    if (version != null && setRosterVersion(version) &&
+                            version.equals(mDirtyVersion))
+                        mDirtyVersion = null;
+                }
+                else if (mFlushRetries < MAX_FLUSH_RETRIES) {
+                    // put changes back for the next attempt, newer changes win
+                    // (unless the store was reset in the meantime)
+                    if (!mDirtyReset) {
+                        dirty.putAll(mDirty);
+                        mDirty = dirty;
+                        mDirtyReset = reset;
+                    }
+                    if (mWriter != null)
+                        scheduleFlush(FLUSH_DELAY << ++mFlushRetries);
+                }
+                else {
+                    // give up: the database is out of sync with the roster now,
+                    // reset the version so the full roster will be requested
+                    Log.w(MessageCenterService.TAG, "giving up writing roster changes");
+                    mFlushRetries = 0;
+                    mDirty.clear();
+                    mDirtyReset = false;
+                    mDirtyVersion = null;
+                    setRosterVersion("");
+                }
             }
         }
-        catch (SQLiteException e) {
-            return false;
-        }
-        finally {
-            endTransaction(db, success);
-        }
-
-        return false;
     }
 
-    @Override
-    public boolean removeEntry(Jid bareJid, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        try {
-            db.delete(TABLE_ROSTER, "jid = ?", new String[]{bareJid.toString()});
-            return setRosterVersion(version);
-        }
-        catch (SQLiteException e) {
-            return false;
+    private void addEntry(SQLiteDatabase db, RosterPacket.Item item) {
+        synchronized (mInsertLock) {
+            SQLiteStatement stm = prepareInsert(db, item);
+            stm.executeInsert();
         }
     }
 
@@ -0,0 +1,182 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.kontalk.Log;
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Persistent cache of service discovery results, so upload and push
+ * services are known as soon as a connection is authenticated. The entry is
+ * keyed by server and by the capabilities verification hash advertised by
+ * the server in its stream features, if any. Without a verification hash
+ * the entry expires after {@link #MAX_AGE}. Discovery is still run on every
+ * connection to revalidate the cache.
+ * @author Daniele Ricci
+ */
+class ServiceDiscoveryCache {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Maximum age of an entry without a verification hash. */
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final String KEY_SERVER = "server";
+    private static final String KEY_VER = "ver";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_UPLOAD = "upload";
+    private static final String KEY_PUSH_SENDER = "pushSender";
+
+    final List<String> uploadServices;
+    @Nullable
+    final String pushSenderId;
+
+    private ServiceDiscoveryCache(List<String> uploadServices, String pushSenderId) {
+        this.uploadServices = uploadServices;
+        this.pushSenderId = pushSenderId;
+    }
+
+    /**
+     * Returns the cached discovery results for the given server.
+     * @param ver capabilities verification hash of the server, null if not available
+     * @return the cached results, or null if not available or not valid anymore
+     */
+    @Nullable
+    static ServiceDiscoveryCache load(String server, @Nullable String ver) {
+        String data = Preferences.getServiceDiscoveryCache();
+        if (data == null)
+            return null;
+
+        try {
+            JSONObject entry = new JSONObject(data);
+            if (!server.equals(entry.getString(KEY_SERVER)))
+                return null;
+
+            String cachedVer = entry.optString(KEY_VER, null);
+            if (ver != null || cachedVer != null) {
+                if (!TextUtils.equals(ver, cachedVer))
+                    return null;
+            }
+            else if (System.currentTimeMillis() - entry.getLong(KEY_TIMESTAMP) > MAX_AGE) {
+                return null;
+            }
+
+            JSONArray upload = entry.getJSONArray(KEY_UPLOAD);
+            List<String> uploadServices = new ArrayList<>(upload.length());
+            for (int i = 0; i < upload.length(); i++)
+                uploadServices.add(upload.getString(i));
+
+            return new ServiceDiscoveryCache(Collections.unmodifiableList(uploadServices),
+                entry.optString(KEY_PUSH_SENDER, null));
+        }
+        catch (JSONException e) {
+            Log.w(TAG, "invalid service discovery cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Collects the results of a service discovery. Every query sent must be
+     * announced with {@link #expect} and completed with {@link #done}; the
+     * cache is updated when all queries are complete. A discovery that does
+     * not complete leaves the cache untouched.
+     */
+    static final class Revalidation {
+        /** Called when a discovery has completed. */
+        interface Callback {
+            /** Called from the thread completing the discovery. */
+            void onRevalidated(Set<String> uploadServices);
+        }
+
+        private final String mServer;
+        private final String mVer;
+        private final Callback mCallback;
+
+        private final Set<String> mUploadServices = new LinkedHashSet<>();
+        private String mPushSenderId;
+        private int mPending;
+        private boolean mFailed;
+
+        Revalidation(String server, @Nullable String ver, @Nullable Callback callback) {
+            mServer = server;
+            mVer = ver;
+            mCallback = callback;
+        }
+
+        synchronized void expect(int count) {
+            mPending += count;
+        }
+
+        synchronized void addUploadService(String jid) {
+            mUploadServices.add(jid);
+        }
+
+        synchronized void setPushSenderId(String senderId) {
+            mPushSenderId = senderId;
+        }
+
+        /** A query could not be sent: the discovery will not be complete. */
+        synchronized void failed() {
+            mFailed = true;
+        }
+
+        synchronized void done() {
+            if (--mPending == 0 && !mFailed) {
+                save();
+                if (mCallback != null)
+                    mCallback.onRevalidated(Collections.unmodifiableSet(mUploadServices));
+            }
+        }
+
+        private void save() {
+            try {
+                JSONObject entry = new JSONObject();
+                entry.put(KEY_SERVER, mServer);
+                if (mVer != null)
+                    entry.put(KEY_VER, mVer);
+                entry.put(KEY_TIMESTAMP, System.currentTimeMillis());
+                entry.put(KEY_UPLOAD, new JSONArray(mUploadServices));
+                if (mPushSenderId != null)
+                    entry.put(KEY_PUSH_SENDER, mPushSenderId);
+
+                Preferences.setServiceDiscoveryCache(entry.toString());
+                Log.v(TAG, "service discovery cache updated: " + mUploadServices.size() +
+                    " upload services");
+            }
+            catch (JSONException e) {
+                Log.w(TAG, "unable to save service discovery cache", e);
+            }
+        }
+    }
+
+}
@@ -169,6 +169,10 @@ public class Syncer {
                                 MessageCenterService.requestLastActivity(context, item.from, lastActivityId);
                                 notMatched.add(lastActivityId);
                             }
+
+                            // public keys might have been received before presences
+                            if (pubkeyCount == presenceCount && blocklistReceived && notMatched.size() == 0)
+                                finish();
                         }
                     }
                 }
@@ -701,6 +705,8 @@ public class Syncer {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_PUBLICKEY);
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, IQ_PACKET_ID);
+        // keys already known will be replied from the keyring
+        i.putExtra(MessageCenterService.EXTRA_REFRESH, true);
         mContext.startService(i);
     }
 
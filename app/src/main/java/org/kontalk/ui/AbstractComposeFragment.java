@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -43,7 +44,6 @@ import org.jxmpp.util.XmppStringUtils;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
-import android.content.AsyncQueryHandler;
 import android.content.BroadcastReceiver;
 import android.content.ClipData;
 import android.content.ContentUris;
@@ -109,8 +109,13 @@ import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.DownloadService;
+import org.kontalk.service.VoiceNoteStreamer;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.PresenceStore;
 import org.kontalk.ui.adapter.MessageListAdapter;
+import org.kontalk.ui.adapter.MessageListCache;
+import org.kontalk.ui.adapter.RowSnapshot;
+import org.kontalk.ui.adapter.SnapshotQueryHandler;
 import org.kontalk.ui.view.AttachmentRevealFrameLayout;
 import org.kontalk.ui.view.AudioContentView;
 import org.kontalk.ui.view.AudioContentViewControl;
@@ -148,6 +153,11 @@ public abstract class AbstractComposeFragment extends ListFragment implements
      * How many messages to load per page.
      */
     private static final int MESSAGE_PAGE_SIZE = 1000;
+    /** Messages kept ready for binding, should be a few screens of rows. */
+    private static final int MESSAGE_CACHE_SIZE = 150;
+
+    /** Delay for coalescing content changes into one requery. */
+    private static final int REQUERY_DELAY = 100;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = 1;
     private static final int SELECT_ATTACHMENT_CONTACT = 2;
@@ -183,6 +193,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
     MessageListQueryHandler mQueryHandler;
     MessageListAdapter mListAdapter;
+    MessageListCache mMessageCache;
     /**
      * Header view for the list view: "previous messages" button.
      */
@@ -223,6 +234,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
     protected LocalBroadcastManager mLocalBroadcastManager;
     private BroadcastReceiver mPresenceReceiver;
+    private PresenceStore.Listener mPresenceListener;
 
     private boolean mOfflineModeWarned;
     protected CharSequence mCurrentStatus;
@@ -335,6 +347,8 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
         Bundle savedInstanceState) {
+        // reply and composer bars contain emoji views
+        Kontalk.awaitEmoji(inflater.getContext());
         View view = inflater.inflate(R.layout.compose_message, container, false);
 
         // footer (for tablet presence status)
@@ -359,19 +373,34 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         return view;
     }
 
-    private final MessageListAdapter.OnContentChangedListener mContentChangedListener = new MessageListAdapter.OnContentChangedListener() {
-        public void onContentChanged(MessageListAdapter adapter) {
+    boolean mRequeryScheduled;
+
+    private final Runnable mRequery = new Runnable() {
+        @Override
+        public void run() {
+            mRequeryScheduled = false;
             if (isVisible())
                 startQuery();
         }
     };
 
+    private final MessageListAdapter.OnContentChangedListener mContentChangedListener = new MessageListAdapter.OnContentChangedListener() {
+        public void onContentChanged(MessageListAdapter adapter) {
+            // coalesce bursts of changes (e.g. receipts) into one requery
+            if (isVisible() && !mRequeryScheduled) {
+                mRequeryScheduled = true;
+                mHandler.postDelayed(mRequery, REQUERY_DELAY);
+            }
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Assent.setFragment(this, this);
 
         setHasOptionsMenu(true);
+        mMessageCache = new MessageListCache(getContext(), MESSAGE_CACHE_SIZE);
         mQueryHandler = new MessageListQueryHandler(this);
         mHandler = new Handler();
 
@@ -749,6 +778,22 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         }
     }
 
+    @Override
+    public VoiceNoteStreamer streamVoiceNote(File recording) {
+        final Conversation conv = mConversation;
+        if (conv == null || !MessageUtils.sendEncrypted(getContext(), conv.isEncryptionEnabled()))
+            return null;
+
+        if (conv.isGroupChat()) {
+            return VoiceNoteStreamer.start(getContext(), recording,
+                conv.getGroupJid(), conv.getGroupPeers());
+        }
+        else {
+            return VoiceNoteStreamer.start(getContext(), recording,
+                null, new String[] { conv.getRecipient() });
+        }
+    }
+
     @Override
     public void sendLocationMessage(String message, double lat, double lon, String geoText, String geoStreet) {
         offlineModeWarning();
@@ -1303,6 +1348,9 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     }
 
     private void stopQuery() {
+        if (mHandler != null)
+            mHandler.removeCallbacks(mRequery);
+        mRequeryScheduled = false;
         hideHeaderView();
         if (mListAdapter != null)
             mListAdapter.changeCursor(null);
@@ -1664,7 +1712,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
             }
 
             mListAdapter = new MessageListAdapter(getActivity(), null,
-                highlight, getListView(), this);
+                highlight, getListView(), this, mMessageCache);
             mListAdapter.setOnContentChangedListener(mContentChangedListener);
             setListAdapter(mListAdapter);
         }
@@ -1753,6 +1801,8 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                         String bareFrom = from != null ? XmppStringUtils.parseBareJid(from) : null;
 
                         // we are receiving a presence from our peer
+                        // (this is a reply to a presence request, live
+                        // presence updates come through the presence store)
                         if (from != null && isUserId(bareFrom)) {
 
                             // we handle only (un)available presence stanzas
@@ -1764,15 +1814,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
                             String fingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
 
-                            boolean removed = false;
-                            if (presenceType == Presence.Type.available) {
-                                mAvailableResources.add(from);
-                            }
-                            else if (presenceType == Presence.Type.unavailable) {
-                                removed = mAvailableResources.remove(from);
-                            }
-
-                            onPresence(from, presenceType, removed, presenceMode, fingerprint);
+                            handlePresence(from, presenceType, presenceMode, fingerprint);
                         }
                     }
 
@@ -1816,6 +1858,21 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
             mLocalBroadcastManager.registerReceiver(mPresenceReceiver, filter);
 
+            mPresenceListener = new PresenceStore.Listener() {
+                @Override
+                public void onPresenceChanged(Collection<PresenceStore.Item> changed) {
+                    // activity is terminating
+                    if (getContext() == null)
+                        return;
+
+                    for (PresenceStore.Item item : changed) {
+                        if (isUserId(item.bareJid))
+                            handlePresence(item.from, item.type, item.mode, item.fingerprint);
+                    }
+                }
+            };
+            PresenceStore.getInstance().addListener(mPresenceListener);
+
             // request connection and roster load status
             Context ctx = getContext();
             if (ctx != null) {
@@ -1825,11 +1882,27 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         }
     }
 
+    void handlePresence(String from, Presence.Type type, Presence.Mode mode, String fingerprint) {
+        boolean removed = false;
+        if (type == Presence.Type.available) {
+            mAvailableResources.add(from);
+        }
+        else if (type == Presence.Type.unavailable) {
+            removed = mAvailableResources.remove(from);
+        }
+
+        onPresence(from, type, removed, mode, fingerprint);
+    }
+
     private void unsubscribePresence() {
         if (mPresenceReceiver != null) {
             mLocalBroadcastManager.unregisterReceiver(mPresenceReceiver);
             mPresenceReceiver = null;
         }
+        if (mPresenceListener != null) {
+            PresenceStore.getInstance().removeListener(mPresenceListener);
+            mPresenceListener = null;
+        }
     }
 
     protected boolean isWarningVisible(WarningType type) {
@@ -2509,14 +2582,16 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     /**
      * The conversation list query handler.
      */
-    private static final class MessageListQueryHandler extends AsyncQueryHandler {
+    private static final class MessageListQueryHandler extends SnapshotQueryHandler {
         private WeakReference<AbstractComposeFragment> mParent;
+        private final MessageListCache mCache;
         private boolean mCancel;
         private long mLastId;
 
         MessageListQueryHandler(AbstractComposeFragment parent) {
             super(parent.getActivity().getApplicationContext().getContentResolver());
             mParent = new WeakReference<>(parent);
+            mCache = parent.mMessageCache;
         }
 
         @Override
@@ -2526,7 +2601,18 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         }
 
         @Override
-        protected synchronized void onQueryComplete(int token, Object cookie, Cursor cursor) {
+        protected int getIdColumn(int token) {
+            return token != CONVERSATION_QUERY_TOKEN ? CompositeMessage.COLUMN_ID : -1;
+        }
+
+        @Override
+        protected void onSnapshotCreated(int token, Cursor cursor, RowSnapshot snapshot) {
+            // build the messages to be displayed first while still on the worker thread
+            mCache.prebuild(cursor, snapshot);
+        }
+
+        @Override
+        protected synchronized void onQueryComplete(int token, Object cookie, Cursor cursor, RowSnapshot snapshot) {
             final AbstractComposeFragment parent = mParent.get();
             if (parent == null || cursor == null || parent.isFinishing() || mCancel) {
                 // close cursor - if any
@@ -2562,6 +2648,10 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                         parent.closeConversation();
 
                     }
+                    else if (parent.mListAdapter.isUnchanged(snapshot)) {
+                        // nothing to update
+                        cursor.close();
+                    }
                     else {
                         // first query - use last id of this new cursor
                         if (cursor.getCount() > 0) {
@@ -2591,7 +2681,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                             args.putBoolean(ComposeMessage.EXTRA_RELOADING, true);
                         }
 
-                        parent.mListAdapter.changeCursor(cursor);
+                        parent.mListAdapter.changeCursor(cursor, snapshot);
                         if (newSelectionPos >= 0) {
                             // +1 is for the header view
                             final int pos = newSelectionPos + 1;
@@ -2629,9 +2719,13 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                             // the new selection will be the next item after this new cursor
                             newSelectionPos = cursor.getCount();
                             cursor = new MergeCursor(new Cursor[]{cursor, oldCursor});
+
+                            RowSnapshot oldSnapshot = parent.mListAdapter.getSnapshot();
+                            snapshot = (snapshot != null && oldSnapshot != null) ?
+                                RowSnapshot.concat(snapshot, oldSnapshot) : null;
                         }
 
-                        parent.mListAdapter.swapCursor(cursor);
+                        parent.mListAdapter.swapCursor(cursor, snapshot);
                         if (newSelectionPos >= 0)
                             parent.getListView().setSelection(newSelectionPos);
 
@@ -18,6 +18,7 @@
 
 package org.kontalk.ui;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -48,6 +49,7 @@ import org.kontalk.crypto.PGP;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.PresenceStore;
 import org.kontalk.ui.view.ContactInfoBanner;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.SystemUtils;
@@ -80,6 +82,7 @@ public class ContactInfoFragment extends Fragment
 
     // created on demand
     private BroadcastReceiver mReceiver;
+    private PresenceStore.Listener mPresenceListener;
     private LocalBroadcastManager mLocalBroadcastManager;
 
     public static ContactInfoFragment newInstance(String userId) {
@@ -230,15 +233,7 @@ public class ContactInfoFragment extends Fragment
 
                             String fingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
 
-                            boolean removed = false;
-                            if (presenceType == Presence.Type.available) {
-                                mAvailableResources.add(from);
-                            }
-                            else if (presenceType == Presence.Type.unavailable) {
-                                removed = mAvailableResources.remove(from);
-                            }
-
-                            onPresence(from, presenceType, removed, presenceMode, fingerprint);
+                            handlePresence(from, presenceType, presenceMode, fingerprint);
                         }
 
                         else if (MessageCenterService.ACTION_LAST_ACTIVITY.equals(action)) {
@@ -281,10 +276,36 @@ public class ContactInfoFragment extends Fragment
             mLocalBroadcastManager.registerReceiver(mReceiver, filter);
         }
 
+        if (mPresenceListener == null) {
+            // live presence updates
+            mPresenceListener = new PresenceStore.Listener() {
+                @Override
+                public void onPresenceChanged(Collection<PresenceStore.Item> changed) {
+                    for (PresenceStore.Item item : changed) {
+                        if (mContact.getJID().equals(item.bareJid))
+                            handlePresence(item.bareJid, item.type, item.mode, item.fingerprint);
+                    }
+                }
+            };
+            PresenceStore.getInstance().addListener(mPresenceListener);
+        }
+
         MessageCenterService.requestConnectionStatus(context);
         MessageCenterService.requestRosterStatus(context);
     }
 
+    void handlePresence(String from, Presence.Type type, Presence.Mode mode, String fingerprint) {
+        boolean removed = false;
+        if (type == Presence.Type.available) {
+            mAvailableResources.add(from);
+        }
+        else if (type == Presence.Type.unavailable) {
+            removed = mAvailableResources.remove(from);
+        }
+
+        onPresence(from, type, removed, mode, fingerprint);
+    }
+
     protected void onPresence(String jid, Presence.Type type, boolean removed, Presence.Mode mode, String fingerprint) {
         final Context context = getContext();
         if (context == null)
@@ -456,6 +477,10 @@ public class ContactInfoFragment extends Fragment
             mLocalBroadcastManager.unregisterReceiver(mReceiver);
         }
         mReceiver = null;
+        if (mPresenceListener != null) {
+            PresenceStore.getInstance().removeListener(mPresenceListener);
+            mPresenceListener = null;
+        }
     }
 
     @Override
@@ -25,11 +25,9 @@ import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.github.clans.fab.FloatingActionMenu;
 
-import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ListFragment;
@@ -53,7 +51,10 @@ import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Conversation;
 import org.kontalk.provider.MyMessages;
+import org.kontalk.provider.ThreadIndex;
 import org.kontalk.ui.adapter.ConversationListAdapter;
+import org.kontalk.ui.adapter.RowSnapshot;
+import org.kontalk.ui.adapter.SnapshotQueryHandler;
 import org.kontalk.ui.view.AbsListViewScrollDetector;
 import org.kontalk.ui.view.ConversationListItem;
 import org.kontalk.util.SystemUtils;
@@ -65,6 +66,9 @@ public class ConversationListFragment extends ListFragment
 
     private static final int THREAD_LIST_QUERY_TOKEN = 8720;
 
+    /** Delay for coalescing content changes into one requery. */
+    private static final int REQUERY_DELAY = 100;
+
     private ThreadListQueryHandler mQueryHandler;
     ConversationListAdapter mListAdapter;
     private boolean mDualPane;
@@ -74,11 +78,29 @@ public class ConversationListFragment extends ListFragment
 
     private int mCheckedItemCount;
 
+    boolean mStarted;
+    boolean mRequeryScheduled;
+    /** Thread index version of the latest query. */
+    long mQueryVersion = -1;
+
+    private final Runnable mRequery = new Runnable() {
+        @Override
+        public void run() {
+            mRequeryScheduled = false;
+            // skip the query if no thread has changed since the last one
+            if (!isFinishing() && ThreadIndex.getInstance().getVersion() != mQueryVersion)
+                startQuery();
+        }
+    };
+
     private final ConversationListAdapter.OnContentChangedListener mContentChangedListener =
         new ConversationListAdapter.OnContentChangedListener() {
         public void onContentChanged(ConversationListAdapter adapter) {
-            if (!isFinishing())
-                startQuery();
+            // many changes can come in a burst (e.g. receipts)
+            if (!isFinishing() && !mRequeryScheduled) {
+                mRequeryScheduled = true;
+                mQueryHandler.postDelayed(mRequery, REQUERY_DELAY);
+            }
         }
     };
 
@@ -370,22 +392,14 @@ public class ConversationListFragment extends ListFragment
     }
 
     public void startQuery() {
-        Cursor c = null;
-        Context ctx = getActivity();
-        if (ctx != null) {
-            try {
-                c = Conversation.startQuery(ctx);
-            }
-            catch (SQLiteException e) {
-                Log.e(TAG, "query error", e);
-            }
-        }
-        mQueryHandler.onQueryComplete(THREAD_LIST_QUERY_TOKEN, null, c);
+        mQueryVersion = ThreadIndex.getInstance().getVersion();
+        Conversation.startQuery(mQueryHandler, THREAD_LIST_QUERY_TOKEN);
     }
 
     @Override
     public void onStart() {
         super.onStart();
+        mStarted = true;
         startQuery();
         Contact.registerContactChangeListener(this);
     }
@@ -393,7 +407,11 @@ public class ConversationListFragment extends ListFragment
     @Override
     public void onStop() {
         super.onStop();
+        mStarted = false;
         Contact.unregisterContactChangeListener(this);
+        mQueryHandler.removeCallbacks(mRequery);
+        mQueryHandler.cancelOperation(THREAD_LIST_QUERY_TOKEN);
+        mRequeryScheduled = false;
         mListAdapter.changeCursor(null);
         if (isActionMenuOpen())
             mAction.close(false);
@@ -425,8 +443,9 @@ public class ConversationListFragment extends ListFragment
         mQueryHandler.post(new Runnable() {
             @Override
             public void run() {
-                // just requery
-                startQuery();
+                // names and avatars might have changed, threads did not
+                mListAdapter.invalidateSummaries();
+                mListAdapter.notifyDataSetChanged();
             }
         });
     }
@@ -438,25 +457,43 @@ public class ConversationListFragment extends ListFragment
     /**
      * The conversation list query handler.
      */
-    private final class ThreadListQueryHandler extends AsyncQueryHandler {
+    private final class ThreadListQueryHandler extends SnapshotQueryHandler {
         public ThreadListQueryHandler(ContentResolver contentResolver) {
             super(contentResolver);
         }
 
         @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+        protected int getIdColumn(int token) {
+            return token == THREAD_LIST_QUERY_TOKEN ? 0 : -1;
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor, RowSnapshot snapshot) {
+            if (!mStarted) {
+                // completed after the fragment was stopped
+                if (cursor != null) cursor.close();
+                return;
+            }
+
             if (cursor == null || isFinishing()) {
                 // close cursor - if any
                 if (cursor != null) cursor.close();
 
                 Log.w(TAG, "query aborted or error!");
                 mListAdapter.changeCursor(null);
+                mQueryVersion = -1;
                 return;
             }
 
             switch (token) {
                 case THREAD_LIST_QUERY_TOKEN:
-                    mListAdapter.changeCursor(cursor);
+                    if (mListAdapter.isUnchanged(snapshot)) {
+                        // nothing to update
+                        cursor.close();
+                        break;
+                    }
+
+                    mListAdapter.changeCursor(cursor, snapshot);
                     ConversationsActivity parent = getParentActivity();
                     if (parent != null)
                         parent.onDatabaseChanged();
@@ -30,7 +30,6 @@ import org.jxmpp.util.XmppStringUtils;
 import android.accounts.Account;
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
@@ -62,6 +61,7 @@ import org.kontalk.provider.MessagesProviderClient.GroupThreadContent;
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.provider.ThreadIndex;
 import org.kontalk.service.NotificationActionReceiver;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
@@ -111,30 +111,6 @@ public class MessagingNotification {
     private static final int COLUMN_MESSAGES_GROUP_SUBJECT = 8;
     private static final int COLUMN_MESSAGES_TIMESTAMP = 9;
 
-    private static final String[] THREADS_UNREAD_PROJECTION =
-    {
-        Threads._ID,
-        Threads.PEER,
-        Threads.MIME,
-        Threads.CONTENT,
-        Threads.ENCRYPTED,
-        Threads.UNREAD,
-        Groups.GROUP_JID,
-        Groups.SUBJECT,
-        Threads.TIMESTAMP,
-    };
-
-    // mapped to THREADS_UNREAD_PROJECTION
-    private static final int COLUMN_THREADS_ID = 0;
-    private static final int COLUMN_THREADS_PEER = 1;
-    private static final int COLUMN_THREADS_MIME = 2;
-    private static final int COLUMN_THREADS_CONTENT = 3;
-    private static final int COLUMN_THREADS_ENCRYPTED = 4;
-    private static final int COLUMN_THREADS_UNREAD = 5;
-    private static final int COLUMN_THREADS_GROUP_JID = 6;
-    private static final int COLUMN_THREADS_GROUP_SUBJECT = 7;
-    private static final int COLUMN_THREADS_TIMESTAMP = 8;
-
     private static final String MESSAGES_UNREAD_SELECTION =
         Messages.NEW + " <> 0 AND " +
         Messages.DIRECTION + " = " + Messages.DIRECTION_IN;
@@ -225,52 +201,60 @@ public class MessagingNotification {
         }
         */
 
-        ContentResolver res = context.getContentResolver();
         NotificationManagerCompat nm = NotificationManagerCompat.from(context);
 
-        String query = MESSAGES_UNREAD_SELECTION;
-        String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
-        }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
-        }
-
         // is there a peer to not notify for?
         final String paused = sPaused;
-        if (paused != null) {
-            query += " AND " + Messages.PEER + " <> ? AND " +
-                "(" + Groups.GROUP_JID + " IS NULL OR " + Groups.GROUP_JID + " <> ?)";
-            args = new String[] { paused, paused };
-        }
-
-        Cursor c = res.query(uri, proj, query, args, order);
 
-        // this shouldn't happen, but who knows...
-        if (c == null) {
+        // unread state is kept in memory, so most updates end here
+        ThreadIndex index = ThreadIndex.getInstance();
+        if (!index.hasNewMessages(paused)) {
             nm.cancel(NOTIFICATION_ID_MESSAGES);
             return;
         }
 
+        Cursor c = null;
+        List<ThreadIndex.Entry> threads = null;
+        int unread;
+        if (supportsBigNotifications()) {
+            String query = MESSAGES_UNREAD_SELECTION;
+            String[] args = null;
+            if (paused != null) {
+                query += " AND " + Messages.PEER + " <> ? AND " +
+                    "(" + Groups.GROUP_JID + " IS NULL OR " + Groups.GROUP_JID + " <> ?)";
+                args = new String[] { paused, paused };
+            }
+
+            c = context.getContentResolver().query(Messages.CONTENT_URI,
+                MESSAGES_UNREAD_PROJECTION, query, args, Messages.DEFAULT_SORT_ORDER);
+
+            // this shouldn't happen, but who knows...
+            if (c == null) {
+                nm.cancel(NOTIFICATION_ID_MESSAGES);
+                return;
+            }
+
+            unread = c.getCount();
+        }
+        else {
+            threads = index.getNewThreads(paused);
+            unread = threads.size();
+        }
+
         // no unread messages - delete notification
-        int unread = c.getCount();
         if (unread == 0) {
-            c.close();
+            if (c != null)
+                c.close();
             nm.cancel(NOTIFICATION_ID_MESSAGES);
             return;
         }
 
         // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context) || sDisabled)
+        if (!Preferences.getNotificationsEnabled(context) || sDisabled) {
+            if (c != null)
+                c.close();
             return;
+        }
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
         Set<Uri> conversationIds = new HashSet<>(unread);
@@ -329,15 +313,15 @@ public class MessagingNotification {
         else {
             // loop all threads and accumulate them
             MessageAccumulator accumulator = new MessageAccumulator(context);
-            while (c.moveToNext()) {
-                long threadId = c.getLong(COLUMN_THREADS_ID);
-                String peer = c.getString(COLUMN_THREADS_PEER);
-                String mime = c.getString(COLUMN_THREADS_MIME);
-                String content = c.getString(COLUMN_THREADS_CONTENT);
-                boolean encrypted = c.getInt(COLUMN_THREADS_ENCRYPTED) != 0;
-                int unreadCount = c.getInt(COLUMN_THREADS_UNREAD);
-                String groupJid = c.getString(COLUMN_THREADS_GROUP_JID);
-                String groupSubject = c.getString(COLUMN_THREADS_GROUP_SUBJECT);
+            for (ThreadIndex.Entry thread : threads) {
+                long threadId = thread.getId();
+                String peer = thread.getPeer();
+                String mime = thread.getMime();
+                String content = thread.getContent();
+                boolean encrypted = thread.isEncrypted();
+                int unreadCount = thread.getUnreadCount();
+                String groupJid = thread.getGroupJid();
+                String groupSubject = thread.getGroupSubject();
 
                 if (encrypted) {
                     content = context.getString(R.string.text_encrypted);
@@ -372,10 +356,9 @@ public class MessagingNotification {
                 );
                 // actually we don't need to check for max since conversations were selected
                 // in timestamp order, but whatever...
-                latestTimestamp = Math.max(latestTimestamp, c.getLong(10));
+                latestTimestamp = Math.max(latestTimestamp, thread.getTimestamp());
                 conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
             }
-            c.close();
 
             builder.setTicker(accumulator.getTicker());
             Contact contact = accumulator.getContact();
@@ -466,6 +466,10 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
         keepScreenOn(false);
 
         stopKeyReceiver();
+        if (isFinishing() && mKey == null) {
+            // no one will need the key pair being generated
+            stopService(new Intent(this, KeyPairGeneratorService.class));
+        }
 
         if (mProgress != null) {
             if (isFinishing())
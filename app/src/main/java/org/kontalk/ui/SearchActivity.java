@@ -21,6 +21,10 @@ package org.kontalk.ui;
 import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.widget.SearchView;
+import android.view.Menu;
+import android.view.MenuItem;
 
 import org.kontalk.R;
 
@@ -33,6 +37,7 @@ public class SearchActivity extends ToolbarActivity {
     public static final String TAG = SearchActivity.class.getSimpleName();
 
     private SearchFragment mFragment;
+    private String mQuery;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,10 +51,52 @@ public class SearchActivity extends ToolbarActivity {
 
         Intent intent = getIntent();
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
-            String query = intent.getStringExtra(SearchManager.QUERY);
-            setTitle(getResources().getString(R.string.title_search, query));
+            mQuery = intent.getStringExtra(SearchManager.QUERY);
+            setTitle(getResources().getString(R.string.title_search, mQuery));
+
+            mFragment.setQuery(mQuery);
+        }
+    }
 
-            mFragment.setQuery(query);
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.search_menu, menu);
+
+        // refine the search while typing
+        MenuItem searchMenu = menu.findItem(R.id.menu_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchMenu);
+        // LayoutParams.MATCH_PARENT does not work, use a big value instead
+        searchView.setMaxWidth(1000000);
+
+        // expanding clears the query text: restore it before listening for changes
+        if (mQuery != null) {
+            searchMenu.expandActionView();
+            searchView.setQuery(mQuery, false);
+            searchView.clearFocus();
+        }
+
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query, false);
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText, true);
+                return true;
+            }
+        });
+        return true;
+    }
+
+    void search(String query, boolean typing) {
+        query = query.trim();
+        if (!query.equals(mQuery)) {
+            mQuery = query;
+            setTitle(getResources().getString(R.string.title_search, query));
+            mFragment.setQuery(query, typing);
         }
     }
 
@@ -18,19 +18,21 @@
 
 package org.kontalk.ui;
 
+import java.util.List;
+
 import org.kontalk.R;
+import org.kontalk.data.SearchEngine;
 import org.kontalk.data.SearchItem;
 import org.kontalk.ui.adapter.SearchListAdapter;
 import org.kontalk.ui.view.SearchListItem;
 
-import android.app.Activity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 
@@ -38,11 +40,15 @@ import android.widget.ListView;
  * A basic search fragment for the entire database.
  * @author Daniele Ricci
  */
-public class SearchFragment extends ListFragment {
+public class SearchFragment extends ListFragment implements SearchEngine.Listener {
+
+    /** Request the next page when this many items are left to scroll. */
+    private static final int LOAD_MORE_THRESHOLD = 10;
 
-    private Cursor mCursor;
     private String mQuery;
     private SearchListAdapter mListAdapter;
+    private SearchEngine mEngine;
+    private boolean mHasMore;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -54,6 +60,39 @@ public class SearchFragment extends ListFragment {
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        mEngine = new SearchEngine(getActivity(), this);
+        mListAdapter = new SearchListAdapter(getActivity());
+        setListAdapter(mListAdapter);
+
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (mHasMore && totalItemCount > 0 &&
+                        firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                    mEngine.loadMore();
+                }
+            }
+        });
+
+        if (mQuery != null)
+            mEngine.search(mQuery, false);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mEngine != null)
+            mEngine.close();
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         SearchListItem item = (SearchListItem) v;
@@ -65,19 +104,29 @@ public class SearchFragment extends ListFragment {
         startActivity(i);
     }
 
+    /** Starts a search immediately. */
     public void setQuery(String query) {
-        mQuery = query;
+        setQuery(query, false);
+    }
 
-        Activity parent = getActivity();
-        if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            if (mCursor != null)
-                getActivity().startManagingCursor(mCursor);
+    /**
+     * Starts a search, cancelling the previous one.
+     * @param typing true if the query is being typed, to wait for more input
+     */
+    public void setQuery(String query, boolean typing) {
+        mQuery = query;
+        mHasMore = false;
+        if (mEngine != null)
+            mEngine.search(query, typing);
+    }
 
-            mListAdapter = new SearchListAdapter(parent, mCursor);
-            // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
-            setListAdapter(mListAdapter);
-        }
+    @Override
+    public void onSearchResults(String query, List<SearchItem> items, boolean first, boolean hasMore) {
+        mHasMore = hasMore;
+        if (first)
+            mListAdapter.setItems(items);
+        else
+            mListAdapter.addItems(items);
     }
 
 }
@@ -20,24 +20,31 @@ package org.kontalk.ui.adapter;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView.RecyclerListener;
-import android.widget.CursorAdapter;
 import android.widget.ListView;
 
+import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.data.Conversation;
 import org.kontalk.ui.ConversationsActivity;
 import org.kontalk.ui.view.ConversationListItem;
+import org.kontalk.ui.view.ConversationSummary;
 
 
-public class ConversationListAdapter extends CursorAdapter {
+public class ConversationListAdapter extends SnapshotCursorAdapter {
     private static final String TAG = ConversationsActivity.TAG;
 
+    /** Thread summaries to keep, should be a few screens of rows. */
+    private static final int MAX_SUMMARIES = 100;
+
     private final LayoutInflater mFactory;
+    private final LruCache<Long, ConversationSummary> mSummaries =
+        new LruCache<>(MAX_SUMMARIES);
     private OnContentChangedListener mOnContentChangedListener;
 
     public ConversationListAdapter(Context context, Cursor cursor, ListView list) {
@@ -60,14 +67,41 @@ public class ConversationListAdapter extends CursorAdapter {
             return;
         }
 
+        long key = getBindingKey(cursor.getPosition());
+        if (isBound(view, key))
+            return;
+
         ConversationListItem headerView = (ConversationListItem) view;
-        Conversation conv = Conversation.createFromCursor(context, cursor);
+        headerView.bind(context, getSummary(context, cursor));
+        setBound(view, key);
+    }
+
+    /**
+     * Returns the summary for the current cursor row. Summaries are rebuilt
+     * only for threads that changed since the last query, so a requery
+     * caused by a new message does not recompute all visible rows.
+     */
+    private ConversationSummary getSummary(Context context, Cursor cursor) {
+        long threadId = Conversation.getMessageId(cursor);
+        String[] state = Conversation.getRowState(cursor);
+        long day = MessageUtils.currentDay();
+
+        ConversationSummary summary = mSummaries.get(threadId);
+        if (summary == null || !summary.isValid(state, day)) {
+            summary = ConversationSummary.create(context, cursor, state, day);
+            mSummaries.put(threadId, summary);
+        }
+        return summary;
+    }
 
-        headerView.bind(context, conv);
+    /** Discards all thread summaries, e.g. when contact names have changed. */
+    public void invalidateSummaries() {
+        mSummaries.evictAll();
     }
 
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        Kontalk.awaitEmoji(context);
         return mFactory.inflate(R.layout.conversation_list_item, parent, false);
     }
 
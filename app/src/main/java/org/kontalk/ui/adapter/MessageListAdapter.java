@@ -22,7 +22,6 @@ import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -32,33 +31,45 @@ import android.widget.ListView;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.message.CompositeMessage;
-import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.view.MessageListItem;
-import org.kontalk.util.MessageUtils;
 
 
-public class MessageListAdapter extends CursorAdapter {
+public class MessageListAdapter extends SnapshotCursorAdapter {
 
     private static final String TAG = ComposeMessage.TAG;
 
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
+    private final MessageListCache mCache;
     private OnContentChangedListener mOnContentChangedListener;
 
     private AudioPlayerControl mAudioPlayerControl;
 
-    public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
+    public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, final ListView list,
+            AudioPlayerControl audioPlayerControl, MessageListCache cache) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
+        mCache = cache;
         mHighlight = highlight;
         mAudioPlayerControl = audioPlayerControl;
 
         list.setRecyclerListener(new RecyclerListener() {
-            public void onMovedToScrapHeap(View view) {
+            public void onMovedToScrapHeap(final View view) {
                 if (view instanceof MessageListItem) {
-                    ((MessageListItem) view).unbind();
+                    // a data set change moves all rows to the scrap heap and
+                    // takes them back for unchanged rows: unbind only if the
+                    // view was not reused during the layout pass
+                    list.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (view.getParent() == null) {
+                                ((MessageListItem) view).unbind();
+                                setBound(view, 0);
+                            }
+                        }
+                    });
                 }
             }
         });
@@ -71,21 +82,53 @@ public class MessageListAdapter extends CursorAdapter {
             return;
         }
 
+        // rows also display information from the previous row
+        int position = cursor.getPosition();
+        RowSnapshot snapshot = getSnapshot();
+        long key = getBindingKey(position);
+        if (key != 0 && position > 0)
+            key = 31 * key + snapshot.getHash(position - 1);
+        if (isBound(view, key))
+            return;
+
         MessageListItem headerView = (MessageListItem) view;
-        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+        // unbinding of scrapped views is deferred, it might not have happened yet
+        headerView.unbind();
+        MessageListEntry entry = mCache.get(cursor,
+            snapshot != null ? snapshot.getHash(position) : 0);
 
         long previousTimestamp = -1;
         int previousItemType = -1;
         String previousPeer = null;
-        if (cursor.moveToPrevious()) {
-            previousTimestamp = MessageUtils.getMessageTimestamp(cursor);
-            previousPeer = MessageUtils.getMessagePeer(cursor);
-            previousItemType = getItemViewType(cursor);
+        if (position > 0) {
+            MessageListEntry previous = getEntry(cursor, snapshot, position - 1);
+            previousTimestamp = previous.timestamp;
+            previousPeer = previous.peer;
+            previousItemType = previous.itemType;
         }
-        cursor.moveToNext();
 
-        headerView.bind(context, msg, mHighlight, getItemViewType(cursor),
+        headerView.bind(context, entry.message, mHighlight, entry.itemType,
             previousItemType, previousTimestamp, previousPeer, mAudioPlayerControl);
+        setBound(view, key);
+    }
+
+    /**
+     * Returns the entry for the given row, moving the cursor only if the
+     * entry is not cached. The cursor position is preserved.
+     */
+    private MessageListEntry getEntry(Cursor cursor, RowSnapshot snapshot, int position) {
+        if (snapshot != null) {
+            MessageListEntry entry = mCache.peek(snapshot.getId(position), snapshot.getHash(position));
+            if (entry != null)
+                return entry;
+        }
+
+        int current = cursor.getPosition();
+        cursor.moveToPosition(position);
+        MessageListEntry entry = mCache.get(cursor,
+            snapshot != null ? snapshot.getHash(position) : 0);
+        cursor.moveToPosition(current);
+        return entry;
     }
 
     @Override
@@ -94,8 +137,7 @@ public class MessageListAdapter extends CursorAdapter {
     }
 
     private boolean isEvent(Cursor cursor) {
-        String mime = cursor.getString(CompositeMessage.COLUMN_BODY_MIME);
-        return (GroupCommandComponent.supportsMimeType(mime));
+        return MessageListEntry.isEvent(cursor);
     }
 
     private boolean isGroupChat(Cursor cursor) {
@@ -103,11 +145,7 @@ public class MessageListAdapter extends CursorAdapter {
     }
 
     private int getItemViewType(Cursor cursor) {
-        int type = cursor.getInt(CompositeMessage.COLUMN_DIRECTION);
-        // MyMessages.DIRECTION_* OR-ed with 2 for group events
-        if (isEvent(cursor))
-            type |= 2;
-        return type;
+        return MessageListEntry.getItemViewType(cursor);
     }
 
     @Override
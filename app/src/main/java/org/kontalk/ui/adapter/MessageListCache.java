@@ -0,0 +1,90 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.message.CompositeMessage;
+
+
+/**
+ * Bounded cache of message list entries, by message id. An entry is valid
+ * as long as the row hash of its message does not change, so a requery
+ * does not rebuild messages that were not modified. Entries for the rows
+ * shown first can be built on the query worker thread with
+ * {@link #prebuild}. Thread-safe.
+ * @author Daniele Ricci
+ */
+public class MessageListCache {
+
+    /** Rows built on the worker thread, should be more than a screen of rows. */
+    private static final int PREBUILD_ROWS = 30;
+
+    private final Context mContext;
+    private final LruCache<Long, MessageListEntry> mEntries;
+
+    public MessageListCache(Context context, int maxSize) {
+        mContext = context.getApplicationContext();
+        mEntries = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Returns the entry for the current cursor row, creating it if needed.
+     * @param hash row hash from the snapshot, 0 to bypass the cache
+     */
+    MessageListEntry get(Cursor cursor, long hash) {
+        if (hash == 0)
+            return MessageListEntry.create(mContext, cursor, 0);
+
+        long id = cursor.getLong(CompositeMessage.COLUMN_ID);
+        MessageListEntry entry = mEntries.get(id);
+        if (entry == null || entry.hash != hash) {
+            entry = MessageListEntry.create(mContext, cursor, hash);
+            mEntries.put(id, entry);
+        }
+        return entry;
+    }
+
+    /** Returns the cached entry for the given row version, if any. */
+    MessageListEntry peek(long id, long hash) {
+        MessageListEntry entry = mEntries.get(id);
+        return (entry != null && entry.hash == hash) ? entry : null;
+    }
+
+    /**
+     * Builds the entries for the last rows of a cursor, which are the first
+     * ones to be displayed. Meant to be called on the query worker thread.
+     * The cursor position will be reset before the first row.
+     */
+    public void prebuild(Cursor cursor, RowSnapshot snapshot) {
+        int count = Math.min(snapshot.size(), cursor.getCount());
+        for (int i = Math.max(count - PREBUILD_ROWS, 0); i < count; i++) {
+            if (peek(snapshot.getId(i), snapshot.getHash(i)) == null && cursor.moveToPosition(i))
+                get(cursor, snapshot.getHash(i));
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.GroupCommandComponent;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Everything a message row needs for binding, read once from a cursor row.
+ * The message must be treated as immutable: entries are cached and shared
+ * by all views bound to the same row version.
+ * @author Daniele Ricci
+ */
+final class MessageListEntry {
+
+    final CompositeMessage message;
+    /** View type, as returned by {@link #getItemViewType(Cursor)}. */
+    final int itemType;
+    final long timestamp;
+    final String peer;
+    /** Row hash from the {@link RowSnapshot}, 0 if not known. */
+    final long hash;
+
+    private MessageListEntry(CompositeMessage message, int itemType, long timestamp,
+            String peer, long hash) {
+        this.message = message;
+        this.itemType = itemType;
+        this.timestamp = timestamp;
+        this.peer = peer;
+        this.hash = hash;
+    }
+
+    /**
+     * Creates an entry for the current cursor row. Can be called from any thread.
+     * @param context an application context, since entries are cached
+     */
+    static MessageListEntry create(Context context, Cursor cursor, long hash) {
+        return new MessageListEntry(CompositeMessage.fromCursor(context, cursor),
+            getItemViewType(cursor), MessageUtils.getMessageTimestamp(cursor),
+            MessageUtils.getMessagePeer(cursor), hash);
+    }
+
+    static boolean isEvent(Cursor cursor) {
+        String mime = cursor.getString(CompositeMessage.COLUMN_BODY_MIME);
+        return (GroupCommandComponent.supportsMimeType(mime));
+    }
+
+    static int getItemViewType(Cursor cursor) {
+        int type = cursor.getInt(CompositeMessage.COLUMN_DIRECTION);
+        // MyMessages.DIRECTION_* OR-ed with 2 for group events
+        if (isEvent(cursor))
+            type |= 2;
+        return type;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import java.util.Arrays;
+
+import android.database.Cursor;
+
+
+/**
+ * Immutable fingerprint of the rows of a query result: row id and a hash
+ * of all column values for every position. Snapshots are created on the
+ * query worker thread and compared on the main thread to find out which
+ * rows actually changed between two queries.
+ * @author Daniele Ricci
+ */
+public final class RowSnapshot {
+
+    private final long[] mIds;
+    private final long[] mHashes;
+
+    private RowSnapshot(long[] ids, long[] hashes) {
+        mIds = ids;
+        mHashes = hashes;
+    }
+
+    /**
+     * Reads all rows of the given cursor. The cursor position will be
+     * reset before the first row.
+     */
+    public static RowSnapshot create(Cursor cursor, int idColumn) {
+        int count = cursor.getCount();
+        int columns = cursor.getColumnCount();
+        long[] ids = new long[count];
+        long[] hashes = new long[count];
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < count && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumn);
+
+            long hash = 1;
+            for (int c = 0; c < columns; c++)
+                hash = 31 * hash + hashColumn(cursor, c);
+            hashes[i] = hash;
+        }
+        cursor.moveToPosition(-1);
+
+        return new RowSnapshot(ids, hashes);
+    }
+
+    private static long hashColumn(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return Double.doubleToLongBits(cursor.getDouble(column));
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column).hashCode();
+            case Cursor.FIELD_TYPE_BLOB:
+                return Arrays.hashCode(cursor.getBlob(column));
+            default:
+                return 0;
+        }
+    }
+
+    /** Joins two snapshots, e.g. when a page is prepended to a list. */
+    public static RowSnapshot concat(RowSnapshot first, RowSnapshot second) {
+        int count = first.size() + second.size();
+        long[] ids = new long[count];
+        long[] hashes = new long[count];
+        System.arraycopy(first.mIds, 0, ids, 0, first.size());
+        System.arraycopy(second.mIds, 0, ids, first.size(), second.size());
+        System.arraycopy(first.mHashes, 0, hashes, 0, first.size());
+        System.arraycopy(second.mHashes, 0, hashes, first.size(), second.size());
+        return new RowSnapshot(ids, hashes);
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    /** Hash of the row values, including the row id. */
+    public long getHash(int position) {
+        return mHashes[position];
+    }
+
+    /** Returns true if both snapshots have the same rows in the same order. */
+    public boolean contentEquals(RowSnapshot other) {
+        return other != null && Arrays.equals(mIds, other.mIds) &&
+            Arrays.equals(mHashes, other.mHashes);
+    }
+
+    /** Counts the rows that are new or changed compared to another snapshot. */
+    public int countChanged(RowSnapshot previous) {
+        if (previous == null)
+            return size();
+
+        int changed = 0;
+        for (int i = 0; i < mIds.length; i++) {
+            int index = previous.indexOf(mIds[i], i);
+            if (index < 0 || previous.mHashes[index] != mHashes[i])
+                changed++;
+        }
+        return changed;
+    }
+
+    /** Looks for a row id starting from the expected position. */
+    private int indexOf(long id, int hint) {
+        // rows usually stay in place or move by one (insertion or removal)
+        for (int i = Math.max(hint - 1, 0), c = Math.min(hint + 2, mIds.length); i < c; i++) {
+            if (mIds[i] == id)
+                return i;
+        }
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+}
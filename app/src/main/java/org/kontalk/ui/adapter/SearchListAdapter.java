@@ -18,62 +18,77 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.Context;
-import android.database.Cursor;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 
-import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
-import org.kontalk.ui.SearchActivity;
 import org.kontalk.ui.view.SearchListItem;
 
 
-public class SearchListAdapter extends CursorAdapter {
-
-    private static final String TAG = SearchActivity.TAG;
+/**
+ * Adapter for search results. Results are added a page at a time.
+ */
+public class SearchListAdapter extends BaseAdapter {
 
+    private final Context mContext;
     private final LayoutInflater mFactory;
-    private OnContentChangedListener mOnContentChangedListener;
+    private final List<SearchItem> mItems = new ArrayList<>();
 
-    public SearchListAdapter(Context context, Cursor cursor) {
-        super(context, cursor, false);
+    public SearchListAdapter(Context context) {
+        mContext = context;
         mFactory = LayoutInflater.from(context);
     }
 
-    @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (!(view instanceof SearchListItem)) {
-            Log.e(TAG, "Unexpected bound view: " + view);
-            return;
+    /** Replaces all items with the given results. */
+    public void setItems(List<SearchItem> items) {
+        mItems.clear();
+        mItems.addAll(items);
+        notifyDataSetChanged();
+    }
+
+    /** Appends a page of results. */
+    public void addItems(List<SearchItem> items) {
+        if (items.size() > 0) {
+            mItems.addAll(items);
+            notifyDataSetChanged();
         }
+    }
 
-        SearchListItem headerView = (SearchListItem) view;
-        SearchItem found = SearchItem.fromCursor(context, cursor);
-        headerView.bind(context, found);
+    @Override
+    public int getCount() {
+        return mItems.size();
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return mFactory.inflate(R.layout.search_list_item, parent, false);
+    public SearchItem getItem(int position) {
+        return mItems.get(position);
     }
 
-    public interface OnContentChangedListener {
-        void onContentChanged(SearchListAdapter adapter);
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).getMessageId();
     }
 
-    public void setOnContentChangedListener(OnContentChangedListener l) {
-        mOnContentChangedListener = l;
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
-    protected void onContentChanged() {
-        Cursor c = getCursor();
-        if (c != null && !c.isClosed() && mOnContentChangedListener != null) {
-            mOnContentChangedListener.onContentChanged(this);
-        }
+    public View getView(int position, View convertView, ViewGroup parent) {
+        SearchListItem view = (SearchListItem) convertView;
+        if (view == null)
+            view = (SearchListItem) mFactory.inflate(R.layout.search_list_item, parent, false);
+
+        view.bind(mContext, getItem(position));
+        return view;
     }
+
 }
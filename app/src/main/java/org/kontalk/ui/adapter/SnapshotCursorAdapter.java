@@ -0,0 +1,101 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.widget.CursorAdapter;
+import android.view.View;
+
+import org.kontalk.R;
+import org.kontalk.data.Contact;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * A cursor adapter that skips binding rows that did not change.
+ * Every requery causes a full data set change in the list view, but
+ * rows whose values are the same as the ones the view was last bound to
+ * (according to the {@link RowSnapshot} of the cursor) are left untouched.
+ * @author Daniele Ricci
+ */
+public abstract class SnapshotCursorAdapter extends CursorAdapter {
+
+    private RowSnapshot mSnapshot;
+    private Cursor mSnapshotCursor;
+
+    public SnapshotCursorAdapter(Context context, Cursor c, boolean autoRequery) {
+        super(context, c, autoRequery);
+    }
+
+    public void changeCursor(Cursor cursor, RowSnapshot snapshot) {
+        mSnapshot = snapshot;
+        mSnapshotCursor = cursor;
+        changeCursor(cursor);
+    }
+
+    public Cursor swapCursor(Cursor cursor, RowSnapshot snapshot) {
+        mSnapshot = snapshot;
+        mSnapshotCursor = cursor;
+        return swapCursor(cursor);
+    }
+
+    /** Returns the snapshot of the current cursor, if any. */
+    public RowSnapshot getSnapshot() {
+        Cursor cursor = getCursor();
+        return (cursor != null && cursor == mSnapshotCursor &&
+            mSnapshot != null && mSnapshot.size() == cursor.getCount()) ? mSnapshot : null;
+    }
+
+    /**
+     * Returns true if the given snapshot has the same rows as the current
+     * cursor, in which case the new cursor can be discarded.
+     */
+    public boolean isUnchanged(RowSnapshot snapshot) {
+        RowSnapshot current = getSnapshot();
+        return current != null && current.contentEquals(snapshot);
+    }
+
+    /**
+     * Returns a key identifying the contents of the row at the given
+     * position, or 0 if not available. Rows also depend on contact
+     * information and on the current day (for dates).
+     */
+    protected long getBindingKey(int position) {
+        RowSnapshot snapshot = getSnapshot();
+        if (snapshot == null)
+            return 0;
+
+        long key = snapshot.getHash(position);
+        key = 31 * key + Contact.getVersion();
+        key = 31 * key + MessageUtils.currentDay();
+        return key;
+    }
+
+    /** Returns true if the view was already bound to the given key. */
+    protected static boolean isBound(View view, long key) {
+        Object bound = view.getTag(R.id.binding_key);
+        return key != 0 && bound instanceof Long && (Long) bound == key;
+    }
+
+    protected static void setBound(View view, long key) {
+        view.setTag(R.id.binding_key, key != 0 ? key : null);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import org.kontalk.Log;
+
+
+/**
+ * An {@link AsyncQueryHandler} that also creates a {@link RowSnapshot} of
+ * query results on the worker thread, before they are delivered to the
+ * main thread.
+ * @author Daniele Ricci
+ */
+public abstract class SnapshotQueryHandler extends AsyncQueryHandler {
+    private static final String TAG = SnapshotQueryHandler.class.getSimpleName();
+
+    public SnapshotQueryHandler(ContentResolver cr) {
+        super(cr);
+    }
+
+    /**
+     * Returns the column holding the row id for query results of the
+     * given token, or -1 if no snapshot should be created.
+     */
+    protected abstract int getIdColumn(int token);
+
+    /**
+     * Called on the worker thread after a snapshot has been created, to
+     * precompute data for the rows before results are delivered. The cursor
+     * must be left before the first row.
+     */
+    protected void onSnapshotCreated(int token, Cursor cursor, RowSnapshot snapshot) {
+    }
+
+    /**
+     * Called on the main thread when a query is complete.
+     * @param snapshot snapshot of the cursor rows, null if not available
+     */
+    protected abstract void onQueryComplete(int token, Object cookie, Cursor cursor, RowSnapshot snapshot);
+
+    @Override
+    protected final void onQueryComplete(int token, Object cookie, Cursor cursor) {
+        RowSnapshot snapshot = null;
+        if (cookie instanceof SnapshotCookie) {
+            snapshot = ((SnapshotCookie) cookie).snapshot;
+            cookie = ((SnapshotCookie) cookie).cookie;
+        }
+        onQueryComplete(token, cookie, cursor, snapshot);
+    }
+
+    @Override
+    protected Handler createHandler(Looper looper) {
+        return new SnapshotWorkerHandler(looper);
+    }
+
+    private static final class SnapshotCookie {
+        final Object cookie;
+        final RowSnapshot snapshot;
+
+        SnapshotCookie(Object cookie, RowSnapshot snapshot) {
+            this.cookie = cookie;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Redirects the reply of every operation to a handler running on the
+     * worker thread, which will snapshot the results and forward the reply
+     * to the main thread.
+     */
+    private final class SnapshotWorkerHandler extends WorkerHandler {
+        private final Handler mReplyHandler;
+
+        SnapshotWorkerHandler(Looper looper) {
+            super(looper);
+            mReplyHandler = new Handler(looper) {
+                @Override
+                public void handleMessage(Message msg) {
+                    WorkerArgs args = (WorkerArgs) msg.obj;
+                    if (args.result instanceof Cursor) {
+                        int idColumn = getIdColumn(msg.what);
+                        if (idColumn >= 0) {
+                            try {
+                                Cursor cursor = (Cursor) args.result;
+                                RowSnapshot snapshot = RowSnapshot.create(cursor, idColumn);
+                                args.cookie = new SnapshotCookie(args.cookie, snapshot);
+                                onSnapshotCreated(msg.what, cursor, snapshot);
+                            }
+                            catch (RuntimeException e) {
+                                Log.w(TAG, "unable to create snapshot", e);
+                            }
+                        }
+                    }
+
+                    args.handler = SnapshotQueryHandler.this;
+                    Message reply = SnapshotQueryHandler.this
+                        .obtainMessage(msg.what, msg.arg1, msg.arg2, args);
+                    reply.sendToTarget();
+                }
+            };
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            ((WorkerArgs) msg.obj).handler = mReplyHandler;
+            super.handleMessage(msg);
+        }
+    }
+
+}
@@ -45,6 +45,7 @@ import android.widget.Toast;
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
+import org.kontalk.StartupInitializer;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.PersonalKeyPack;
@@ -270,6 +271,30 @@ public class MaintenanceFragment extends RootPreferenceFragment {
                 return true;
             }
         });
+
+        // startup timing
+        final Preference startupTrace = findPreference("pref_startup_trace");
+        final StartupInitializer startup = Kontalk.get(getActivity()).getStartupInitializer();
+        startupTrace.setSummary(getString(R.string.pref_title_startup_trace,
+            startup.getBlockingTime()));
+        startupTrace.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                StringBuilder traces = new StringBuilder();
+                for (StartupInitializer.Trace trace : startup.getTraces()) {
+                    if (traces.length() > 0)
+                        traces.append('\n');
+                    traces.append(trace);
+                }
+
+                new MaterialDialog.Builder(getActivity())
+                    .title(R.string.pref_startup_trace)
+                    .content(traces)
+                    .positiveText(android.R.string.ok)
+                    .show();
+                return true;
+            }
+        });
     }
 
     @Override
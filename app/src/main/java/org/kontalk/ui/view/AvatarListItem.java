@@ -98,6 +98,8 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
             contact.getAvatarAsync(getContext(), this);
         }
         else {
+            // row recycled for a contact-less item: drop any pending load
+            Contact.cancelAvatarAsync(this);
             mAvatarView.setTag(null);
             mAvatarView.setImageDrawable(defaultIcon);
         }
@@ -98,6 +98,7 @@ public class AvatarMessageTheme extends BaseMessageTheme implements Contact.Cont
 
         if (mAvatar != null) {
             if (mMessageBlocks && sameMessageBlock) {
+                Contact.cancelAvatarAsync(this);
                 mAvatar.setVisibility(View.INVISIBLE);
                 mAvatar.setImageDrawable(null);
             }
@@ -110,6 +111,7 @@ public class AvatarMessageTheme extends BaseMessageTheme implements Contact.Cont
                     contact.getAvatarAsync(mContext, this);
                 }
                 else {
+                    Contact.cancelAvatarAsync(this);
                     mAvatar.setTag(null);
                     mAvatar.assignContactUri(null);
                 }
@@ -125,6 +127,8 @@ public class AvatarMessageTheme extends BaseMessageTheme implements Contact.Cont
         setView(sameMessageBlock);
 
         if (mAvatar != null) {
+            // recycled incoming row: drop any pending load
+            Contact.cancelAvatarAsync(this);
             if (mMessageBlocks && sameMessageBlock) {
                 mAvatar.setVisibility(View.INVISIBLE);
                 mAvatar.setImageDrawable(null);
@@ -63,6 +63,7 @@ import android.widget.Toast;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.message.AudioComponent;
+import org.kontalk.service.VoiceNoteStreamer;
 import org.kontalk.ui.AudioDialog;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.util.MediaStorage;
@@ -90,6 +91,12 @@ public class ComposerBar extends RelativeLayout implements
 
     private static final int REQUEST_PERMISSIONS = 200;
 
+    /** Streamed voice notes are recorded as ADTS, which is written sequentially. */
+    private static final String STREAM_MIME = "audio/aac";
+    private static final String STREAM_EXTENSION = "aac";
+    private static final int STREAM_SAMPLE_RATE = 16000;
+    private static final int STREAM_BIT_RATE = 24000;
+
     Context mContext;
 
     // for the text entry
@@ -122,6 +129,7 @@ public class ComposerBar extends RelativeLayout implements
     private TextView mRecordText;
     private File mRecordFile;
     private MediaRecorder mRecord;
+    private VoiceNoteStreamer mStreamer;
     long startTime;
     long elapsedTime;
     boolean mCheckMove;
@@ -535,7 +543,19 @@ public class ComposerBar extends RelativeLayout implements
 
     private void doStartRecording() {
         try {
-            mRecordFile = MediaStorage.getOutgoingAudioFile();
+            mStreamer = null;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && mListener != null) {
+                // encrypt while recording if the voice note will be encrypted
+                File file = MediaStorage.getOutgoingAudioFile(STREAM_EXTENSION);
+                mStreamer = mListener.streamVoiceNote(file);
+                if (mStreamer != null)
+                    mRecordFile = file;
+                else
+                    file.delete();
+            }
+
+            if (mStreamer == null)
+                mRecordFile = MediaStorage.getOutgoingAudioFile();
         }
         catch (IOException e) {
             Log.e(TAG, "error creating audio file", e);
@@ -551,9 +571,14 @@ public class ComposerBar extends RelativeLayout implements
         mRecord = new MediaRecorder();
         try {
             mRecord.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mRecord.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
+            if (mStreamer != null) {
+                setupStreamingRecorder(mRecord);
+            }
+            else {
+                mRecord.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
+                mRecord.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
+            }
             mRecord.setOutputFile(mRecordFile.getAbsolutePath());
-            mRecord.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
             mVibrator.vibrate(AUDIO_RECORD_VIBRATION);
             startTimer();
             mRecord.prepare();
@@ -579,6 +604,21 @@ public class ComposerBar extends RelativeLayout implements
                 R.string.err_audio_record;
             Toast.makeText(mContext, resId, Toast.LENGTH_LONG).show();
         }
+        finally {
+            if (!mIsRecordingAudio && mStreamer != null) {
+                mStreamer.cancel();
+                mStreamer = null;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setupStreamingRecorder(MediaRecorder recorder) {
+        recorder.setOutputFormat(MediaRecorder.OutputFormat.AAC_ADTS);
+        recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        recorder.setAudioChannels(1);
+        recorder.setAudioSamplingRate(STREAM_SAMPLE_RATE);
+        recorder.setAudioEncodingBitRate(STREAM_BIT_RATE);
     }
 
     void stopRecording(boolean send) {
@@ -598,10 +638,18 @@ public class ComposerBar extends RelativeLayout implements
         try {
             if (mRecord != null) {
                 mRecord.stop();
+                // recorder has flushed everything by now
+                if (mStreamer != null)
+                    mStreamer.finish();
+
                 if (canSend) {
                     if (mListener != null) {
                         mListener.sendBinaryMessage(Uri.fromFile(mRecordFile),
-                            AudioDialog.DEFAULT_MIME, false, AudioComponent.class);
+                            mStreamer != null ? STREAM_MIME : AudioDialog.DEFAULT_MIME,
+                            false, AudioComponent.class);
+                    }
+                    else {
+                        canSend = false;
                     }
                 }
                 else if (send) {
@@ -636,6 +684,12 @@ public class ComposerBar extends RelativeLayout implements
 
             if (!canSend && mRecordFile != null)
                 mRecordFile.delete();
+
+            if (mStreamer != null) {
+                if (!canSend)
+                    mStreamer.cancel();
+                mStreamer = null;
+            }
         }
     }
 
@@ -18,9 +18,12 @@
 
 package org.kontalk.ui.view;
 
+import java.io.File;
+
 import android.net.Uri;
 
 import org.kontalk.message.MessageComponent;
+import org.kontalk.service.VoiceNoteStreamer;
 
 
 /**
@@ -38,6 +41,12 @@ public interface ComposerListener {
     void sendBinaryMessage(Uri uri, String mime, boolean media,
         Class<? extends MessageComponent<?>> klass);
 
+    /**
+     * Starts encrypting a voice note while it's being recorded.
+     * @return the streamer, or null if the voice note will not be encrypted
+     */
+    VoiceNoteStreamer streamVoiceNote(File recording);
+
     /**
      * Sends a typing notification.
      * @return true if the notification was sent
@@ -0,0 +1,253 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.view;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Typeface;
+import android.support.v4.content.ContextCompat;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+
+import org.kontalk.BuildConfig;
+import org.kontalk.R;
+import org.kontalk.data.Contact;
+import org.kontalk.data.Conversation;
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.GroupCommandComponent;
+import org.kontalk.provider.MessagesProviderClient.GroupThreadContent;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Everything a {@link ConversationListItem} displays, computed once per
+ * thread row. Group content parsing, contact lookups, time formatting and
+ * span building are done when the summary is created; binding a row just
+ * sets the precomputed values. A summary stays valid as long as the thread
+ * row does not change and the local day is the same (for the time format).
+ * @author Daniele Ricci
+ */
+public final class ConversationSummary {
+
+    private static final StyleSpan STYLE_BOLD = new StyleSpan(Typeface.BOLD);
+    private static final StyleSpan STYLE_ITALIC = new StyleSpan(Typeface.ITALIC);
+
+    final Conversation conversation;
+    final CharSequence from;
+    final CharSequence text;
+    final String date;
+    /** Status icon resource, 0 for no icon (incoming message or draft). */
+    final int statusIcon;
+    final int statusDescription;
+
+    private final String[] mRowState;
+    private final long mDay;
+
+    private ConversationSummary(Conversation conversation, CharSequence from, CharSequence text,
+            String date, int statusIcon, int statusDescription, String[] rowState, long day) {
+        this.conversation = conversation;
+        this.from = from;
+        this.text = text;
+        this.date = date;
+        this.statusIcon = statusIcon;
+        this.statusDescription = statusDescription;
+        mRowState = rowState;
+        mDay = day;
+    }
+
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /** Returns true if this summary can be used for the given row state. */
+    public boolean isValid(String[] rowState, long day) {
+        return mDay == day && Arrays.equals(mRowState, rowState);
+    }
+
+    /**
+     * Creates a summary from the current row of a conversation cursor.
+     * @param rowState the row state as returned by {@link Conversation#getRowState}
+     * @param day the current local day as returned by {@link MessageUtils#currentDay()}
+     */
+    public static ConversationSummary create(Context context, Cursor cursor, String[] rowState, long day) {
+        Conversation conv = Conversation.createFromCursor(context, cursor);
+
+        // used for the conversation subject: either group subject or contact name
+        String recipient = null;
+
+        if (conv.isGroupChat()) {
+            recipient = conv.getGroupSubject();
+            if (TextUtils.isEmpty(recipient))
+                recipient = context.getString(R.string.group_untitled);
+        }
+        else {
+            Contact contact = conv.getContact();
+
+            if (contact != null) {
+                recipient = contact.getDisplayName();
+            }
+
+            if (recipient == null) {
+                if (BuildConfig.DEBUG) {
+                    recipient = conv.getRecipient();
+                }
+                else {
+                    recipient = context.getString(R.string.peer_unknown);
+                }
+            }
+        }
+
+        SpannableStringBuilder from = new SpannableStringBuilder(recipient);
+        if (conv.getUnreadCount() > 0)
+            from.setSpan(STYLE_BOLD, 0, from.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+
+        // draft indicator
+        int lastpos = from.length();
+        String draft = conv.getDraft();
+        if (draft != null) {
+            from.append(" ");
+            from.append(context.getResources().getString(R.string.has_draft));
+            from.setSpan(new ForegroundColorSpan(
+                ContextCompat.getColor(context, R.color.text_color_draft)),
+                lastpos, from.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+
+        // error indicator
+        int resId = 0;
+        int statusId = 0;
+        switch (conv.getStatus()) {
+            case Messages.STATUS_SENDING:
+                // use pending icon even for errors
+            case Messages.STATUS_ERROR:
+            case Messages.STATUS_PENDING:
+            case Messages.STATUS_QUEUED:
+                resId = R.drawable.ic_msg_pending;
+                statusId = R.string.msg_status_sending;
+                break;
+            case Messages.STATUS_SENT:
+                resId = R.drawable.ic_msg_sent;
+                statusId = R.string.msg_status_sent;
+                break;
+            case Messages.STATUS_RECEIVED:
+                resId = R.drawable.ic_msg_delivered;
+                statusId = R.string.msg_status_delivered;
+                break;
+            // here we use the error icon
+            case Messages.STATUS_NOTACCEPTED:
+                resId = R.drawable.ic_thread_error;
+                statusId = R.string.msg_status_notaccepted;
+                break;
+            case Messages.STATUS_NOTDELIVERED:
+                resId = R.drawable.ic_msg_notdelivered;
+                statusId = R.string.msg_status_notdelivered;
+                break;
+        }
+
+        boolean incoming = resId == 0;
+        // no matching resource or draft - hide status icon
+        if (draft != null) {
+            resId = 0;
+            statusId = 0;
+        }
+
+        CharSequence text;
+
+        // last message or draft??
+        if (conv.getRequestStatus() == Threads.REQUEST_WAITING) {
+            text = new SpannableString(context.getString(R.string.text_invitation_info));
+            ((Spannable) text).setSpan(STYLE_ITALIC, 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+        else {
+            String subject = conv.getSubject();
+            String source = (draft != null) ? draft : subject;
+
+            if (source != null) {
+                if (GroupCommandComponent.supportsMimeType(conv.getMime()) && draft == null) {
+                    if (incoming) {
+                        // content is in a special format
+                        GroupThreadContent parsed = GroupThreadContent.parseIncoming(subject);
+                        subject = parsed.command;
+                    }
+                    text = new SpannableString(GroupCommandComponent.getTextContent(context, subject, incoming));
+                    ((Spannable) text).setSpan(STYLE_ITALIC, 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+                }
+                else {
+                    if (incoming && conv.isGroupChat()) {
+                        // content is in a special format
+                        GroupThreadContent parsed = GroupThreadContent.parseIncoming(subject);
+                        Contact contact = parsed.sender != null ? Contact.findByUserId(context, parsed.sender) : null;
+                        source = parsed.command;
+
+                        String displayName = null;
+                        if (contact != null)
+                            displayName = contact.getDisplayName();
+
+                        if (displayName == null) {
+                            if (BuildConfig.DEBUG) {
+                                displayName = conv.getRecipient();
+                            }
+                            else {
+                                displayName = context.getString(R.string.peer_unknown);
+                            }
+                        }
+
+                        if (source == null) {
+                            // determine from mime type
+                            source = CompositeMessage.getSampleTextContent(conv.getMime());
+                        }
+
+                        text = new SpannableString(displayName + ": " + source);
+                        ((Spannable) text).setSpan(STYLE_ITALIC, 0, displayName.length()+1, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+                    }
+                    else {
+                        text = source;
+                    }
+                }
+            }
+
+            else if (conv.isEncrypted()) {
+                text = context.getString(R.string.text_encrypted);
+            }
+
+            else {
+                // determine from mime type
+                text = CompositeMessage.getSampleTextContent(conv.getMime());
+            }
+        }
+
+        if (conv.getUnreadCount() > 0) {
+            text = new SpannableString(text);
+            ((Spannable) text).setSpan(STYLE_BOLD, 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+
+        String date = MessageUtils.formatTimeStampString(context, conv.getDate());
+
+        return new ConversationSummary(conv, from, text, date,
+            resId, statusId, rowState, day);
+    }
+
+}
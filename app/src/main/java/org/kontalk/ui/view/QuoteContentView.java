@@ -33,6 +33,7 @@ import android.view.ViewGroup;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.data.Contact;
@@ -144,6 +145,7 @@ public class QuoteContentView extends RelativeLayout
     }
 
     public static QuoteContentView create(LayoutInflater inflater, ViewGroup parent) {
+        Kontalk.awaitEmoji(inflater.getContext());
         return (QuoteContentView) inflater.inflate(R.layout.message_content_quote, parent, false);
     }
 
@@ -39,6 +39,7 @@ import android.view.LayoutInflater;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.Preferences;
@@ -236,6 +237,7 @@ public class TextContentView extends EmojiTextView
     }
 
     public static TextContentView create(LayoutInflater inflater, ViewGroup parent, boolean encryptionPlaceholder) {
+        Kontalk.awaitEmoji(inflater.getContext());
         TextContentView view = (TextContentView) inflater.inflate(R.layout.message_content_text,
             parent, false);
         view.mEncryptionPlaceholder = encryptionPlaceholder;
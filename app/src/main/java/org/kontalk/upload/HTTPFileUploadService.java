@@ -19,26 +19,43 @@
 package org.kontalk.upload;
 
 import java.lang.ref.WeakReference;
+import java.util.LinkedList;
+import java.util.Queue;
 
+import org.jivesoftware.smack.ExceptionCallback;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jxmpp.jid.BareJid;
 
+import org.kontalk.Log;
 import org.kontalk.client.HTTPFileUpload;
 import org.kontalk.service.msgcenter.IUploadService;
 
 
 /**
  * Implements XEP-0363: HTTP File Upload.
+ * Slot requests for a batch of media are sent in parallel, up to
+ * {@link #MAX_PARALLEL_REQUESTS} at a time. Requests that time out are
+ * retried a few times before giving up.
  * @author Daniele Ricci
  */
 public class HTTPFileUploadService implements IUploadService {
+    private static final String TAG = HTTPFileUploadService.class.getSimpleName();
+
+    /** Max slot requests waiting for a reply. */
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+
+    /** Max retries after a slot request timeout. */
+    private static final int MAX_RETRIES = 2;
 
     private final WeakReference<XMPPConnection> mConnection;
     private final BareJid mService;
 
+    private final Queue<SlotRequest> mQueue = new LinkedList<>();
+    private int mPending;
+
     public HTTPFileUploadService(XMPPConnection connection, BareJid service) {
         mConnection = new WeakReference<>(connection);
         mService = service;
@@ -48,31 +65,110 @@ public class HTTPFileUploadService implements IUploadService {
         return mConnection.get();
     }
 
+    public BareJid getService() {
+        return mService;
+    }
+
     @Override
     public boolean requiresCertificate() {
         return false;
     }
 
     @Override
-    public void getPostUrl(String filename, long size, String mime, final UrlCallback callback) {
-        HTTPFileUpload.Request request = new HTTPFileUpload.Request(filename, size, mime);
-        request.setTo(mService);
-        try {
-            connection().sendIqWithResponseCallback(request, new StanzaListener() {
-                @Override
-                public void processStanza(Stanza packet) throws SmackException.NotConnectedException {
-                    if (packet instanceof HTTPFileUpload.Slot) {
-                        HTTPFileUpload.Slot slot = (HTTPFileUpload.Slot) packet;
-                        callback.callback(slot.getPutUrl(), slot.getGetUrl());
-                    }
-                }
-            });
+    public void getPostUrl(String filename, long size, String mime, UrlCallback callback) {
+        synchronized (this) {
+            mQueue.add(new SlotRequest(filename, size, mime, callback));
+        }
+        sendNext();
+    }
+
+    /** Sends queued requests until the window is full. */
+    void sendNext() {
+        while (true) {
+            SlotRequest request;
+            synchronized (this) {
+                if (mPending >= MAX_PARALLEL_REQUESTS || mQueue.isEmpty())
+                    return;
+                request = mQueue.poll();
+                mPending++;
+            }
+            request.send();
+        }
+    }
+
+    void requestDone() {
+        synchronized (this) {
+            mPending--;
         }
-        catch (SmackException.NotConnectedException e) {
-            // ignored
+        sendNext();
+    }
+
+    private final class SlotRequest implements StanzaListener, ExceptionCallback {
+        private final String mFilename;
+        private final long mSize;
+        private final String mMime;
+        private final UrlCallback mCallback;
+        private int mRetries;
+
+        SlotRequest(String filename, long size, String mime, UrlCallback callback) {
+            mFilename = filename;
+            mSize = size;
+            mMime = mime;
+            mCallback = callback;
+        }
+
+        void send() {
+            XMPPConnection conn = connection();
+            if (conn == null) {
+                processException(new SmackException.NotConnectedException());
+                return;
+            }
+
+            HTTPFileUpload.Request request = new HTTPFileUpload.Request(mFilename, mSize, mMime);
+            request.setTo(mService);
+            try {
+                conn.sendIqWithResponseCallback(request, this, this, conn.getPacketReplyTimeout());
+            }
+            catch (SmackException.NotConnectedException e) {
+                processException(e);
+            }
+            catch (InterruptedException e) {
+                processException(e);
+            }
         }
-        catch (InterruptedException e) {
-            // ignored
+
+        @Override
+        public void processStanza(Stanza packet) {
+            try {
+                if (packet instanceof HTTPFileUpload.Slot) {
+                    HTTPFileUpload.Slot slot = (HTTPFileUpload.Slot) packet;
+                    mCallback.callback(slot.getPutUrl(), slot.getGetUrl());
+                }
+                else {
+                    mCallback.error(new SmackException("unexpected slot reply: " + packet));
+                }
+            }
+            finally {
+                requestDone();
+            }
+        }
+
+        @Override
+        public void processException(Exception exception) {
+            if (exception instanceof SmackException.NoResponseException && mRetries < MAX_RETRIES) {
+                mRetries++;
+                Log.d(TAG, "slot request timed out, retrying (" + mRetries + "/" + MAX_RETRIES + ")");
+                send();
+                return;
+            }
+
+            try {
+                Log.w(TAG, "slot request failed: " + exception);
+                mCallback.error(exception);
+            }
+            finally {
+                requestDone();
+            }
         }
     }
 
@@ -0,0 +1,119 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.SHA1;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.kontalk.provider.MyMessages.Uploads;
+
+
+/**
+ * Remembers the fetch URL of uploaded media, so that identical content can
+ * be sent again without uploading it. Entries are keyed by media index
+ * hash, MIME type and encryption mode. Encrypted uploads are reused only
+ * for the same recipients, since nobody else can decrypt them.
+ * @author Daniele Ricci
+ */
+public class UploadCache {
+
+    /**
+     * Uploads older than this will not be reused. XEP-0363 doesn't say
+     * how long files are kept, this is a conservative guess.
+     */
+    private static final long UPLOAD_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    public static final class Entry {
+        public final String fetchUrl;
+        /** Length of the uploaded data. */
+        public final long length;
+
+        Entry(String fetchUrl, long length) {
+            this.fetchUrl = fetchUrl;
+            this.length = length;
+        }
+    }
+
+    private UploadCache() {}
+
+    /**
+     * Builds the cache key of an upload.
+     * @param mediaHash key of the file in the media index
+     * @param recipients used only for encrypted uploads, order is not relevant
+     */
+    public static String getKey(String mediaHash, String mime, boolean encrypt, String[] recipients) {
+        StringBuilder key = new StringBuilder(mediaHash)
+            .append('/').append(mime);
+        if (encrypt) {
+            String[] sorted = recipients.clone();
+            Arrays.sort(sorted);
+            StringBuilder joined = new StringBuilder();
+            for (String recipient : sorted)
+                joined.append(recipient).append(',');
+            key.append("/encrypted/").append(SHA1.hex(joined.toString()));
+        }
+        else {
+            key.append("/plain");
+        }
+        return key.toString();
+    }
+
+    /** Returns a previous upload, or null if not found or expired. */
+    public static Entry get(Context context, String key) {
+        ContentResolver cr = context.getContentResolver();
+        Uri uri = Uploads.getUri(key);
+        Cursor c = cr.query(uri, new String[] { Uploads.FETCH_URL, Uploads.LENGTH, Uploads.EXPIRES },
+            null, null, null);
+        if (c == null)
+            return null;
+
+        try {
+            if (c.moveToFirst()) {
+                if (c.getLong(2) > System.currentTimeMillis())
+                    return new Entry(c.getString(0), c.getLong(1));
+
+                cr.delete(uri, null, null);
+            }
+            return null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Remembers a completed upload. */
+    public static void put(Context context, String key, String mediaHash, String fetchUrl, long length) {
+        ContentValues values = new ContentValues(5);
+        values.put(Uploads.KEY, key);
+        values.put(Uploads.MEDIA_HASH, mediaHash);
+        values.put(Uploads.FETCH_URL, fetchUrl);
+        values.put(Uploads.LENGTH, length);
+        values.put(Uploads.EXPIRES, System.currentTimeMillis() + UPLOAD_LIFETIME);
+        context.getContentResolver().insert(Uploads.CONTENT_URI, values);
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.telephony.TelephonyManager;
+
+import org.kontalk.Log;
+
+
+/**
+ * Encodes images within a byte budget.
+ * The highest quality whose output fits the budget is found by binary
+ * search; the budget depends on the network the image will be sent over.
+ * @author Daniele Ricci
+ */
+public class ImageEncoder {
+    private static final String TAG = ImageEncoder.class.getSimpleName();
+
+    /** Budget for unmetered networks. */
+    static final long BUDGET_UNMETERED = 1536 * 1024;
+    /** Budget for metered networks. */
+    static final long BUDGET_METERED = 400 * 1024;
+    /** Budget for slow (2G) mobile networks. */
+    static final long BUDGET_SLOW = 150 * 1024;
+
+    /** Encode time of every image. */
+    private static final LatencyStats sEncodeTime = new LatencyStats(50);
+
+    /** Encodes an image at the given quality. */
+    interface QualityEncoder {
+        byte[] encode(int quality) throws IOException;
+    }
+
+    private ImageEncoder() {
+    }
+
+    /** Returns the byte budget for images sent over the current network. */
+    public static long getByteBudget(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        // we don't know where this is going to be sent
+        if (info == null)
+            return BUDGET_METERED;
+
+        if (info.getType() == ConnectivityManager.TYPE_MOBILE && isSlowNetwork(info.getSubtype()))
+            return BUDGET_SLOW;
+
+        return ConnectivityManagerCompat.isActiveNetworkMetered(cm) ?
+            BUDGET_METERED : BUDGET_UNMETERED;
+    }
+
+    private static boolean isSlowNetwork(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the largest power of two sample size that decodes an image
+     * still not smaller than the requested size. The decoded image can
+     * then be filtered down to the exact size.
+     */
+    public static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0)
+            return sampleSize;
+
+        while ((width / (sampleSize * 2)) >= reqWidth && (height / (sampleSize * 2)) >= reqHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Compresses a bitmap with the highest quality whose output fits the
+     * given budget. If not even the minimum quality fits, the minimum
+     * quality output is returned anyway.
+     */
+    public static byte[] compress(final Bitmap bitmap, final Bitmap.CompressFormat format,
+            long maxBytes, int minQuality, int maxQuality) throws IOException {
+
+        long start = SystemClock.elapsedRealtime();
+        byte[] data = compress(new QualityEncoder() {
+            @Override
+            public byte[] encode(int quality) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (!bitmap.compress(format, quality, out))
+                    throw new IOException("unable to compress image");
+                return out.toByteArray();
+            }
+        }, maxBytes, minQuality, maxQuality);
+
+        long time = SystemClock.elapsedRealtime() - start;
+        sEncodeTime.add(time);
+        Log.d(TAG, "encoded " + bitmap.getWidth() + "x" + bitmap.getHeight() + " image to " +
+            data.length + " bytes in " + time + " ms, " + sEncodeTime);
+        return data;
+    }
+
+    static byte[] compress(QualityEncoder encoder, long maxBytes, int minQuality, int maxQuality)
+            throws IOException {
+
+        // most images will fit at the maximum quality
+        byte[] best = encoder.encode(maxQuality);
+        if (best.length <= maxBytes)
+            return best;
+
+        byte[] fallback = null;
+        best = null;
+        int low = minQuality;
+        int high = maxQuality - 1;
+        while (low <= high) {
+            int quality = (low + high) >>> 1;
+            byte[] data = encoder.encode(quality);
+            if (data.length <= maxBytes) {
+                best = data;
+                low = quality + 1;
+            }
+            else {
+                if (quality == minQuality)
+                    fallback = data;
+                high = quality - 1;
+            }
+        }
+
+        if (best != null)
+            return best;
+        return fallback != null ? fallback : encoder.encode(minQuality);
+    }
+
+}
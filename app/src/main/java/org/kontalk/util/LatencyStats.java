@@ -0,0 +1,76 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * Keeps the most recent latency samples and computes percentiles over them.
+ * @author Daniele Ricci
+ */
+public class LatencyStats {
+
+    private final long[] mSamples;
+    /** Total number of samples ever added. */
+    private long mCount;
+
+    public LatencyStats(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        mSamples = new long[capacity];
+    }
+
+    public synchronized void add(long value) {
+        mSamples[(int) (mCount % mSamples.length)] = value;
+        mCount++;
+    }
+
+    /** Number of samples used for percentiles. */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mSamples.length);
+    }
+
+    /**
+     * Returns the given percentile (nearest rank method) of the recorded
+     * samples, or -1 if there are no samples.
+     * @param percentile a value between 0 and 100
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+
+        int size = size();
+        if (size == 0)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * size);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "p50 %d ms, p90 %d ms, p99 %d ms (%d samples)",
+            getPercentile(50), getPercentile(90), getPercentile(99), size());
+    }
+
+}
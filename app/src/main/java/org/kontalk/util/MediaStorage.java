@@ -19,16 +19,22 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import org.spongycastle.jcajce.provider.digest.SHA256;
+
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -42,6 +48,7 @@ import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.support.media.ExifInterface;
 import android.support.v4.app.Fragment;
@@ -87,9 +94,16 @@ public abstract class MediaStorage {
     public static final String THUMBNAIL_MIME = "image/png";
     public static final String THUMBNAIL_MIME_NETWORK = "image/jpeg";
     public static final int THUMBNAIL_MIME_COMPRESSION = 50;
+    private static final int THUMBNAIL_MIN_COMPRESSION = 20;
+    /** Max size of a thumbnail sent along with a message. */
+    private static final long THUMBNAIL_NETWORK_MAX_BYTES = 16 * 1024;
 
     public static final String COMPRESS_MIME = "image/jpeg";
     private static final int COMPRESSION_QUALITY = 85;
+    private static final int MIN_COMPRESSION_QUALITY = 50;
+
+    /** Size of the memory mapped regions used for hashing. */
+    private static final long HASH_MAP_WINDOW = 8 * 1024 * 1024;
 
     public static boolean isExternalStorageAvailable() {
         return Environment.getExternalStorageState()
@@ -116,10 +130,7 @@ public abstract class MediaStorage {
         // error :(
         if (w < 0 || h < 0) return null;
 
-        if (w > scaleWidth)
-            options.inSampleSize = (w / scaleWidth);
-        else if (h > scaleHeight)
-            options.inSampleSize = (h / scaleHeight);
+        options.inSampleSize = ImageEncoder.computeSampleSize(w, h, scaleWidth, scaleHeight);
 
         options.inJustDecodeBounds = false;
         options.inPreferredConfig = Bitmap.Config.RGB_565;
@@ -150,10 +161,16 @@ public abstract class MediaStorage {
     }
 
     private static void cacheThumbnail(Context context, Uri media, FileOutputStream fout, boolean forNetwork) throws IOException {
-        resizeImage(context, media, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
-                forNetwork ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG,
-            forNetwork ? THUMBNAIL_MIME_COMPRESSION : 0,
-            fout);
+        if (forNetwork) {
+            // thumbnail will be embedded in the message
+            resizeImage(context, media, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                Bitmap.CompressFormat.JPEG, THUMBNAIL_NETWORK_MAX_BYTES,
+                THUMBNAIL_MIN_COMPRESSION, THUMBNAIL_MIME_COMPRESSION, fout);
+        }
+        else {
+            resizeImage(context, media, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                Bitmap.CompressFormat.PNG, 0, fout);
+        }
     }
 
     /**
@@ -351,13 +368,18 @@ public abstract class MediaStorage {
 
     /** Creates a temporary 3gp file. */
     public static File getOutgoingAudioFile() throws IOException {
-        return getOutgoingAudioFile(new Date());
+        return getOutgoingAudioFile("3gp");
     }
 
-    private static File getOutgoingAudioFile(Date date) throws IOException {
+    /** Creates a temporary audio file with the given extension. */
+    public static File getOutgoingAudioFile(String extension) throws IOException {
+        return getOutgoingAudioFile(new Date(), extension);
+    }
+
+    private static File getOutgoingAudioFile(Date date, String extension) throws IOException {
         createNoMedia(AUDIO_SENT_ROOT);
         String timeStamp = sDateFormat.format(date);
-        File f = new File(AUDIO_SENT_ROOT, "record_" + timeStamp + ".3gp");
+        File f = new File(AUDIO_SENT_ROOT, "record_" + timeStamp + "." + extension);
         f.createNewFile();
         return f;
     }
@@ -439,41 +461,71 @@ public abstract class MediaStorage {
         return mime;
     }
 
-    public static File resizeImage(Context context, Uri uri, int maxSize) throws IOException {
-        return resizeImage(context, uri, maxSize, maxSize, COMPRESSION_QUALITY);
+    public static void resizeImage(Context context, Uri uri, int maxWidth, int maxHeight,
+            Bitmap.CompressFormat format, int quality, FileOutputStream output)
+            throws IOException {
+
+        Bitmap bitmap = decodeScaledBitmap(context, uri, maxWidth, maxHeight);
+        if (bitmap == null)
+            return;
+
+        try {
+            bitmap.compress(format, quality, output);
+        }
+        finally {
+            bitmap.recycle();
+        }
     }
 
-    public static File resizeImage(Context context, Uri uri, int maxWidth, int maxHeight, int quality)
+    /**
+     * Resizes an image and compresses it as JPEG with the best quality
+     * fitting the given byte budget.
+     * @see ImageEncoder#getByteBudget(Context)
+     */
+    public static File resizeImage(Context context, Uri uri, int maxSize, long maxBytes)
             throws IOException {
 
-        FileOutputStream stream = null;
+        final File file = getOutgoingPictureFile();
+        FileOutputStream stream = new FileOutputStream(file);
         try {
-            final File file = getOutgoingPictureFile();
-            stream = new FileOutputStream(file);
-            resizeImage(context, uri, maxWidth, maxHeight,
-                Bitmap.CompressFormat.JPEG, quality, stream);
+            resizeImage(context, uri, maxSize, maxSize, Bitmap.CompressFormat.JPEG,
+                maxBytes, MIN_COMPRESSION_QUALITY, COMPRESSION_QUALITY, stream);
             return file;
         }
         finally {
-            try {
-                stream.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
+            SystemUtils.closeStream(stream);
         }
     }
 
-    public static void resizeImage(Context context, Uri uri, int maxWidth, int maxHeight,
-            Bitmap.CompressFormat format, int quality, FileOutputStream output)
-            throws IOException {
+    private static void resizeImage(Context context, Uri uri, int maxWidth, int maxHeight,
+            Bitmap.CompressFormat format, long maxBytes, int minQuality, int maxQuality,
+            FileOutputStream output) throws IOException {
+
+        Bitmap bitmap = decodeScaledBitmap(context, uri, maxWidth, maxHeight);
+        if (bitmap == null)
+            return;
+
+        try {
+            output.write(ImageEncoder.compress(bitmap, format, maxBytes, minQuality, maxQuality));
+        }
+        finally {
+            bitmap.recycle();
+        }
+    }
 
-        final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
+    /**
+     * Decodes an image scaled down to fit the given size and rotated as
+     * needed. The image is subsampled while decoding and then filtered
+     * down to the exact size. Images are never scaled up.
+     * @return the bitmap or null if the image could not be decoded
+     */
+    private static Bitmap decodeScaledBitmap(Context context, Uri uri, int maxWidth, int maxHeight)
+            throws IOException {
 
         ContentResolver cr = context.getContentResolver();
 
         // compute optimal image scale size
-        int scale = 1;
+        int sampleSize = 1;
         InputStream in = cr.openInputStream(uri);
 
         try {
@@ -481,61 +533,48 @@ public abstract class MediaStorage {
             BitmapFactory.Options o = new BitmapFactory.Options();
             o.inJustDecodeBounds = true;
             BitmapFactory.decodeStream(in, null, o);
-            in.close();
 
-            // calculate optimal image scale size
-            while ((o.outWidth * o.outHeight) * (1 / Math.pow(scale, 2)) > MAX_IMAGE_SIZE)
-                scale++;
+            if (o.outWidth > 0 && o.outHeight > 0) {
+                // the decoded image must still be larger than the target in both dimensions
+                float ratio = Math.max((float) o.outWidth / maxWidth, (float) o.outHeight / maxHeight);
+                sampleSize = ImageEncoder.computeSampleSize(o.outWidth, o.outHeight,
+                    (int) (o.outWidth / ratio), (int) (o.outHeight / ratio));
+            }
 
-            Log.d(TAG, "scale = " + scale + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
-        }
-        catch (IOException e) {
-            Log.d(TAG, "unable to calculate optimal scale size, using original image");
+            Log.d(TAG, "sample size = " + sampleSize + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
         }
         finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
+            SystemUtils.closeStream(in);
         }
 
         // open image again for the actual scaling
-        Bitmap bitmap = null;
+        Bitmap bitmap;
 
         try {
             in = cr.openInputStream(uri);
             BitmapFactory.Options o = new BitmapFactory.Options();
-
-            if (scale > 1) {
-                o.inSampleSize = scale - 1;
-            }
-
+            o.inSampleSize = sampleSize;
             bitmap = BitmapFactory.decodeStream(in, null, o);
         }
         finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
+            SystemUtils.closeStream(in);
         }
 
         if (bitmap == null) {
-            return;
+            return null;
         }
         float photoW = bitmap.getWidth();
         float photoH = bitmap.getHeight();
         if (photoW == 0 || photoH == 0) {
-            return;
+            bitmap.recycle();
+            return null;
         }
-        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
+        float scaleFactor = Math.max(1, Math.max(photoW / maxWidth, photoH / maxHeight));
         int w = (int) (photoW / scaleFactor);
         int h = (int) (photoH / scaleFactor);
         if (h == 0 || w == 0) {
-            return;
+            bitmap.recycle();
+            return null;
         }
 
         Bitmap scaledBitmap = null;
@@ -552,12 +591,45 @@ public abstract class MediaStorage {
         if (rotatedScaledBitmap != scaledBitmap)
             scaledBitmap.recycle();
 
+        return rotatedScaledBitmap;
+    }
+
+    /**
+     * Computes the SHA-256 hash of the contents of a media file, used as
+     * key for the media index. Regular files are memory mapped in windows
+     * to avoid copying their data through Java buffers; anything else
+     * (e.g. pipes from content providers) is read as a stream.
+     * @return the hash as a hex string
+     */
+    public static String getContentHash(Context context, Uri media) throws IOException {
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(media, "r");
+        if (pfd == null)
+            throw new FileNotFoundException(media.toString());
+
+        MessageDigest md = new SHA256.Digest();
+        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
         try {
-            rotatedScaledBitmap.compress(format, quality, output);
+            long size = pfd.getStatSize();
+            if (size >= 0) {
+                FileChannel channel = in.getChannel();
+                for (long pos = 0; pos < size; pos += HASH_MAP_WINDOW) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                        pos, Math.min(HASH_MAP_WINDOW, size - pos)));
+                }
+            }
+            else {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) > 0)
+                    md.update(buffer, 0, len);
+            }
         }
         finally {
-            rotatedScaledBitmap.recycle();
+            SystemUtils.closeStream(in);
+            pfd.close();
         }
+
+        return MessageUtils.bytesToHex(md.digest());
     }
 
     public static File copyOutgoingMedia(Context context, Uri media) throws IOException {
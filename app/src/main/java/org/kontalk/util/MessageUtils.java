@@ -140,6 +140,12 @@ public final class MessageUtils {
             format_flags);
     }
 
+    /** Returns the current local day, used to invalidate formatted dates. */
+    public static long currentDay() {
+        long now = System.currentTimeMillis();
+        return (now + TimeZone.getDefault().getOffset(now)) / DateUtils.DAY_IN_MILLIS;
+    }
+
     public static String formatDateString(Context context, long when) {
         Time then = new Time();
         then.set(when);
@@ -594,11 +600,11 @@ public final class MessageUtils {
         return StringUtils.randomString(30);
     }
 
-    public static File encryptFile(Context context, InputStream in, String[] users)
+    public static File encryptFile(Context context, InputStream in, String groupJid, String[] users)
             throws GeneralSecurityException, IOException, PGPException {
         PersonalKey key = Kontalk.get(context).getPersonalKey();
         EndpointServer server = Preferences.getEndpointServer(context);
-        Coder coder = Keyring.getEncryptCoder(context, server, key, users);
+        Coder coder = Keyring.getEncryptCoder(context, server, key, groupJid, users);
         // create a temporary file to store encrypted data
         File temp = File.createTempFile("media", null, context.getCacheDir());
         FileOutputStream out = new FileOutputStream(temp);
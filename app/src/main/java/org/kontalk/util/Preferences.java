@@ -56,6 +56,7 @@ import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.ServerList;
+import org.kontalk.client.ServerSelector;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.Keyring;
 import org.kontalk.service.ServerListUpdater;
@@ -188,7 +189,7 @@ public final class Preferences {
         }
         else {
             ServerList list = ServerListUpdater.getCurrentList(context);
-            return new ServerList.ServerListProvider(list);
+            return new ServerList.ServerListProvider(list, ServerSelector.getInstance(context));
         }
     }
 
@@ -505,6 +506,16 @@ public final class Preferences {
             .commit();
     }
 
+    public static String getServiceDiscoveryCache() {
+        return getString("service_discovery_cache", null);
+    }
+
+    public static boolean setServiceDiscoveryCache(String data) {
+        return sPreferences.edit()
+            .putString("service_discovery_cache", data)
+            .commit();
+    }
+
     public static boolean getAcceptAnyCertificate(Context context) {
         return getBoolean("pref_accept_any_certificate", context.getResources()
             .getBoolean(R.bool.pref_default_accept_any_certificate));
@@ -595,31 +606,42 @@ public final class Preferences {
             .getResources().getBoolean(R.bool.pref_default_debug_log));
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong("ping_alarm_interval_" + networkType, defaultValue) :
-            defaultValue;
+    /**
+     * Returns the ping interval learned on the given network. If nothing was
+     * learned on that network yet, the value learned on the same network
+     * type is returned.
+     */
+    public static long getPingAlarmInterval(String networkId, long defaultValue) {
+        return getNetworkLong("ping_alarm_interval_", networkId, defaultValue);
+    }
+
+    public static boolean setPingAlarmInterval(String networkId, long intervalMillis) {
+        return setNetworkLong("ping_alarm_interval_", networkId, intervalMillis);
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
-            .commit();
+    /** Same as {@link #getPingAlarmInterval} for the ping backoff. */
+    public static long getPingAlarmBackoff(String networkId, long defaultValue) {
+        return getNetworkLong("ping_alarm_backoff_", networkId, defaultValue);
     }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong("ping_alarm_backoff_" + networkType, defaultValue) :
-            defaultValue;
+    public static boolean setPingAlarmBackoff(String networkId, long intervalMillis) {
+        return setNetworkLong("ping_alarm_backoff_", networkId, intervalMillis);
+    }
+
+    private static long getNetworkLong(String prefix, String networkId, long defaultValue) {
+        if (networkId == null)
+            return defaultValue;
+
+        long value = getLong(prefix + networkId, -1);
+        return value >= 0 ? value :
+            getLong(prefix + SystemUtils.getNetworkIdentityType(networkId), defaultValue);
     }
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
+    private static boolean setNetworkLong(String prefix, String networkId, long value) {
+        // network type value is used as a starting point for new networks
+        return networkId != null && sPreferences.edit()
+            .putLong(prefix + networkId, value)
+            .putLong(prefix + SystemUtils.getNetworkIdentityType(networkId), value)
             .commit();
     }
 
@@ -51,6 +51,7 @@ import android.provider.ContactsContract;
 import android.support.annotation.AttrRes;
 import android.support.annotation.ColorRes;
 import android.support.v4.content.ContextCompat;
+import android.telephony.TelephonyManager;
 import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
@@ -77,6 +78,8 @@ public final class SystemUtils {
     private static final Pattern VERSION_CODE_MATCH = Pattern
         .compile("\\(([0-9]+)\\)$");
 
+    private static final char NETWORK_IDENTITY_SEPARATOR = '/';
+
     private static Uri sProfileUri;
 
     private SystemUtils() {
@@ -207,6 +210,46 @@ public final class SystemUtils {
         return info != null ? info.getTypeName() : null;
     }
 
+    /**
+     * Returns an identifier for the current network: the network type name,
+     * followed by a hash of the Wi-Fi SSID or of the mobile operator code
+     * when available.
+     */
+    public static String getCurrentNetworkIdentity(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return null;
+
+        String extra = null;
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+                // SSID (might be hidden on recent devices)
+                extra = info.getExtraInfo();
+                if (extra != null && extra.startsWith("<"))
+                    extra = null;
+                break;
+            case ConnectivityManager.TYPE_MOBILE:
+                TelephonyManager tm = (TelephonyManager) context
+                    .getSystemService(Context.TELEPHONY_SERVICE);
+                if (tm != null)
+                    extra = tm.getNetworkOperator();
+                break;
+        }
+
+        return (extra != null && extra.length() > 0) ?
+            info.getTypeName() + NETWORK_IDENTITY_SEPARATOR + Integer.toHexString(extra.hashCode()) :
+            info.getTypeName();
+    }
+
+    /** Returns the network type name part of a network identity. */
+    public static String getNetworkIdentityType(String networkId) {
+        int sep = networkId.indexOf(NETWORK_IDENTITY_SEPARATOR);
+        return sep > 0 ? networkId.substring(0, sep) : networkId;
+    }
+
     public static int getCurrentNetworkType(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
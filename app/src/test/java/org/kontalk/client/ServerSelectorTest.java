@@ -0,0 +1,96 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ServerSelectorTest {
+
+    private static final EndpointServer FAST = new EndpointServer("beta.kontalk.net|fast.kontalk.net");
+    private static final EndpointServer SLOW = new EndpointServer("beta.kontalk.net|slow.kontalk.net");
+    private static final EndpointServer FAILING = new EndpointServer("beta.kontalk.net|failing.kontalk.net");
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("serverstats", ".properties");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void testRank() throws Exception {
+        ServerSelector selector = new ServerSelector(mFile);
+        selector.reportSuccess(FAST, 100);
+        selector.reportSuccess(SLOW, 1000);
+        selector.reportSuccess(FAILING, 50);
+        selector.reportFailure(FAILING);
+
+        List<EndpointServer> ranked = selector.rank(Arrays.asList(FAILING, SLOW, FAST));
+        assertEquals(Arrays.asList(FAST, SLOW, FAILING), ranked);
+    }
+
+    @Test
+    public void testUnknownServer() throws Exception {
+        ServerSelector selector = new ServerSelector(mFile);
+        EndpointServer unknown = new EndpointServer("beta.kontalk.net|unknown.kontalk.net");
+        selector.reportSuccess(SLOW, ServerSelector.UNKNOWN_RTT * 2);
+        selector.reportSuccess(FAST, ServerSelector.UNKNOWN_RTT / 2);
+
+        List<EndpointServer> ranked = selector.rank(Arrays.asList(SLOW, unknown, FAST));
+        assertEquals(Arrays.asList(FAST, unknown, SLOW), ranked);
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+        ServerSelector selector = new ServerSelector(mFile);
+        selector.reportSuccess(SLOW, 1000);
+        selector.reportFailure(FAST);
+        selector.reportSuccess(FAST, 100);
+
+        assertEquals(FAST, selector.rank(Arrays.asList(SLOW, FAST)).get(0));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        ServerSelector selector = new ServerSelector(mFile);
+        selector.reportSuccess(FAST, 100);
+        selector.reportSuccess(SLOW, 1000);
+        selector.reportFailure(FAILING);
+
+        selector = new ServerSelector(mFile);
+        List<EndpointServer> ranked = selector.rank(Arrays.asList(FAILING, SLOW, FAST));
+        assertEquals(Arrays.asList(FAST, SLOW, FAILING), ranked);
+    }
+
+}
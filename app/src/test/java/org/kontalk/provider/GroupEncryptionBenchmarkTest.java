@@ -0,0 +1,233 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.Log;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PGPRecipientKeys;
+import org.kontalk.crypto.PersonalKey;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Compares per-message encryption cost by group size, resolving recipient
+ * keys for every message versus going through {@link GroupEncryptionCache}.
+ * Key resolution reads and parses keyrings from a keyring store, just like
+ * {@link Keyring} does with the users database.
+ */
+public class GroupEncryptionBenchmarkTest {
+    private static final String TAG = GroupEncryptionBenchmarkTest.class.getSimpleName();
+
+    private static final String NETWORK = "beta.kontalk.net";
+    private static final String GROUP_JID = "group@" + NETWORK;
+    private static final int[] GROUP_SIZES = { 1, 10, 50 };
+    private static final int MESSAGES = 20;
+    /** Distinct keys to generate (members will cycle through them). */
+    private static final int DISTINCT_KEYS = 3;
+
+    private static EndpointServer sServer;
+    private static PersonalKey sKey;
+    private static byte[][] sKeyData;
+
+    private GroupEncryptionCache mCache;
+    /** Simulated users database: JID to encoded public keyring. */
+    private Map<String, byte[]> mKeyStore;
+    private CountingLoader mLoader;
+
+    @BeforeClass
+    public static void setUpKeys() throws Exception {
+        PGP.PROVIDER = new BouncyCastleProvider();
+        sServer = new EndpointServer(NETWORK);
+        sKey = PersonalKey.create(new Date());
+        sKey.storeNetwork("sender", NETWORK, "Sender", "test");
+
+        sKeyData = new byte[DISTINCT_KEYS][];
+        for (int i = 0; i < DISTINCT_KEYS; i++) {
+            PersonalKey rcpt = PersonalKey.create(new Date());
+            sKeyData[i] = rcpt.storeNetwork("user" + i, NETWORK, "User " + i, "test")
+                .publicKey.getEncoded();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mCache = new GroupEncryptionCache();
+        mKeyStore = new HashMap<>();
+        mLoader = new CountingLoader();
+    }
+
+    private final class CountingLoader implements GroupEncryptionCache.Loader {
+        int loads;
+
+        @Override
+        public PGPRecipientKeys load(String[] sortedMembers) {
+            loads++;
+            PGPPublicKeyRing[] rings = new PGPPublicKeyRing[sortedMembers.length];
+            try {
+                for (int i = 0; i < sortedMembers.length; i++)
+                    rings[i] = PGP.readPublicKeyring(mKeyStore.get(sortedMembers[i]));
+            }
+            catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+            return new PGPRecipientKeys(rings, NETWORK);
+        }
+    }
+
+    private String[] createMembers(int count) {
+        String[] members = new String[count];
+        for (int i = 0; i < count; i++) {
+            members[i] = "member" + i + "@" + NETWORK;
+            mKeyStore.put(members[i], sKeyData[i % DISTINCT_KEYS]);
+        }
+        return GroupEncryptionCache.sortMembers(members);
+    }
+
+    private PGPRecipientKeys getKeys(String[] members) {
+        return mCache.get(GROUP_JID, NETWORK, members, mLoader);
+    }
+
+    @Test
+    public void testSendCostByGroupSize() throws Exception {
+        for (int size : GROUP_SIZES) {
+            String[] members = createMembers(size);
+
+            mLoader.loads = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                Coder coder = new PGPCoder(sServer, sKey, mLoader.load(members));
+                assertNotNull(coder.encryptText("benchmark message " + i));
+            }
+            long uncached = (System.nanoTime() - start) / MESSAGES;
+            assertEquals(MESSAGES, mLoader.loads);
+
+            mLoader.loads = 0;
+            mCache.clear();
+            start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                Coder coder = new PGPCoder(sServer, sKey, getKeys(members));
+                assertNotNull(coder.encryptText("benchmark message " + i));
+            }
+            long cached = (System.nanoTime() - start) / MESSAGES;
+            // keys were resolved only for the first message
+            assertEquals(1, mLoader.loads);
+
+            Log.d(TAG, String.format(Locale.US,
+                "group size %3d: uncached %8.3f ms/msg, cached %8.3f ms/msg",
+                size, uncached / 1e6, cached / 1e6));
+        }
+    }
+
+    @Test
+    public void testCacheHit() {
+        String[] members = createMembers(5);
+        PGPRecipientKeys keys = getKeys(members);
+        assertEquals(5, keys.size());
+        assertSame(keys, getKeys(members));
+        assertSame(keys, getKeys(GroupEncryptionCache.sortMembers(members.clone())));
+        assertEquals(1, mLoader.loads);
+        assertEquals(1, mCache.missCount());
+        assertEquals(2, mCache.hitCount());
+    }
+
+    @Test
+    public void testMembershipChange() {
+        String[] members = createMembers(5);
+        PGPRecipientKeys keys = getKeys(members);
+
+        String[] newMembers = createMembers(6);
+        PGPRecipientKeys newKeys = getKeys(newMembers);
+        assertNotSame(keys, newKeys);
+        assertEquals(6, newKeys.size());
+        assertEquals(2, mLoader.loads);
+
+        // a different network must not reuse the keys either
+        assertNull(mCache.get(GROUP_JID, "other." + NETWORK, newMembers));
+    }
+
+    @Test
+    public void testInvalidateGroup() {
+        String[] members = createMembers(3);
+        PGPRecipientKeys keys = getKeys(members);
+
+        mCache.invalidateGroup("another@" + NETWORK);
+        assertSame(keys, getKeys(members));
+
+        mCache.invalidateGroup(GROUP_JID);
+        assertNull(mCache.get(GROUP_JID, NETWORK, members));
+        assertNotSame(keys, getKeys(members));
+        assertEquals(2, mLoader.loads);
+    }
+
+    @Test
+    public void testInvalidateUser() throws Exception {
+        String[] members = createMembers(3);
+        PGPRecipientKeys keys = getKeys(members);
+
+        mCache.invalidateUser("stranger@" + NETWORK);
+        assertSame(keys, getKeys(members));
+        assertEquals(1, mLoader.loads);
+
+        // member changed key
+        mKeyStore.put(members[0], sKeyData[DISTINCT_KEYS - 1]);
+        mCache.invalidateUser(members[0]);
+        PGPRecipientKeys newKeys = getKeys(members);
+        assertNotSame(keys, newKeys);
+        assertEquals(2, mLoader.loads);
+        assertEquals(PGP.getFingerprint(PGP.getMasterKey(sKeyData[DISTINCT_KEYS - 1])),
+            PGP.getFingerprint(PGP.getMasterKey(newKeys.getKeyrings()[0])));
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() {
+        final String[] members = createMembers(3);
+        PGPRecipientKeys keys = mCache.get(GROUP_JID, NETWORK, members, new GroupEncryptionCache.Loader() {
+            @Override
+            public PGPRecipientKeys load(String[] sortedMembers) {
+                PGPRecipientKeys loaded = mLoader.load(sortedMembers);
+                // e.g. a key refresh on another thread
+                mCache.invalidateUser(members[1]);
+                return loaded;
+            }
+        });
+        assertNotNull(keys);
+
+        // keys loaded during the invalidation must not be cached
+        assertNull(mCache.get(GROUP_JID, NETWORK, members));
+        getKeys(members);
+        assertEquals(2, mLoader.loads);
+        assertNotNull(mCache.get(GROUP_JID, NETWORK, members));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+public class VoiceNoteStreamerTest {
+
+    private static final String[] USERS = { "alice@example.com", "bob@example.com" };
+    private static final int LENGTH = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRecording;
+    private File mEncrypted;
+
+    @Before
+    public void setUp() throws IOException {
+        mRecording = createFile("recording.aac", LENGTH);
+        mEncrypted = createFile("encrypted", LENGTH + 100);
+    }
+
+    private File createFile(String name, int length) throws IOException {
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private VoiceNoteStreamer register(String groupJid, String[] users) {
+        VoiceNoteStreamer stream = VoiceNoteStreamer
+            .register(null, mRecording, groupJid, users);
+        stream.finish();
+        return stream;
+    }
+
+    @Test
+    public void testTake() {
+        register(null, USERS).complete(mEncrypted, LENGTH);
+
+        // recipients order doesn't matter
+        File taken = VoiceNoteStreamer.take(mRecording.getAbsolutePath(),
+            null, new String[] { USERS[1], USERS[0] });
+        assertEquals(mEncrypted, taken);
+        assertTrue(taken.isFile());
+
+        // a stream can be taken only once
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+    }
+
+    @Test
+    public void testTakeGroup() {
+        register("group@example.com", USERS).complete(mEncrypted, LENGTH);
+
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+        assertFalse(mEncrypted.exists());
+    }
+
+    @Test
+    public void testTakeRecipientMismatch() {
+        register(null, USERS).complete(mEncrypted, LENGTH);
+
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(),
+            null, new String[] { USERS[0] }));
+        // encrypted file was discarded
+        assertFalse(mEncrypted.exists());
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+    }
+
+    @Test
+    public void testTakeLengthMismatch() {
+        // recorder wrote more data after encryption
+        register(null, USERS).complete(mEncrypted, LENGTH - 1);
+
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+        assertFalse(mEncrypted.exists());
+    }
+
+    @Test
+    public void testTakeNotFinished() {
+        VoiceNoteStreamer stream = register(null, USERS);
+
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+
+        // encryption completing later will be discarded
+        stream.complete(mEncrypted, LENGTH);
+        assertFalse(mEncrypted.exists());
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+    }
+
+    @Test
+    public void testTakeUnknown() {
+        assertNull(VoiceNoteStreamer.take(mRecording.getAbsolutePath(), null, USERS));
+    }
+
+}
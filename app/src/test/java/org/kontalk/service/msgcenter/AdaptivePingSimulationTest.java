@@ -0,0 +1,232 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jivesoftware.smack.XMPPConnection;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Deterministic simulation of {@link AbstractAdaptiveServerPingManager}
+ * with a virtual clock and synthetic NAT timeouts. A user moving between
+ * home Wi-Fi, mobile network and office Wi-Fi is simulated for a few weeks,
+ * learning intervals per network versus a single global interval.
+ * Failed pings (i.e. reconnections) measure convergence, total pings
+ * measure battery cost.
+ */
+public class AdaptivePingSimulationTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private static final int DAYS = 14;
+
+    private static final class Network {
+        final String id;
+        final long natTimeout;
+
+        Network(String id, long natTimeout) {
+            this.id = id;
+            this.natTimeout = natTimeout;
+        }
+    }
+
+    private static final Network HOME = new Network("WIFI/home", 25 * MINUTE);
+    private static final Network MOBILE = new Network("MOBILE/22210", 4 * MINUTE);
+    private static final Network OFFICE = new Network("WIFI/office", 10 * MINUTE);
+
+    /** One day of the simulated user. */
+    private static final Object[][] DAY = {
+        { HOME, 8 * HOUR },
+        { MOBILE, HOUR },
+        { OFFICE, 9 * HOUR },
+        { MOBILE, HOUR },
+        { HOME, 5 * HOUR },
+    };
+
+    private static final class Result {
+        long pings;
+        long failures;
+        long lastWeekFailures;
+        /** Learned intervals by network (or a single global one). */
+        Map<String, Long> intervals;
+    }
+
+    private static final class SimulatedPingManager extends AbstractAdaptiveServerPingManager {
+        private final boolean mPerNetwork;
+        private final Map<String, Long> mIntervals = new HashMap<>();
+        private final Map<String, Long> mBackoffs = new HashMap<>();
+
+        long mNow;
+        long mNextPing;
+
+        SimulatedPingManager(boolean perNetwork) {
+            super(dummyConnection());
+            mPerNetwork = perNetwork;
+        }
+
+        private String key(String networkId) {
+            return mPerNetwork ? networkId : "global";
+        }
+
+        void connected(Network network) {
+            restoreNetwork(network.id);
+            mPingStreak = 0;
+        }
+
+        @Override
+        public void onConnectionCompleted() {
+        }
+
+        @Override
+        public void onConnectivityChanged() {
+        }
+
+        @Override
+        protected void setupPing(long intervalMillis) {
+            mInterval = clampInterval(intervalMillis);
+            mIntervals.put(key(mNetworkId), mInterval);
+            mNextPing = mNow + mInterval;
+        }
+
+        @Override
+        protected void setNextIncreaseInterval(long interval) {
+            super.setNextIncreaseInterval(interval);
+            mBackoffs.put(key(mNetworkId), mNextIncrease);
+        }
+
+        @Override
+        protected long getElapsedRealtime() {
+            return mNow;
+        }
+
+        @Override
+        protected long getLearnedInterval(String networkId, long defaultValue) {
+            Long value = mIntervals.get(key(networkId));
+            return value != null ? value : defaultValue;
+        }
+
+        @Override
+        protected long getLearnedBackoff(String networkId, long defaultValue) {
+            Long value = mBackoffs.get(key(networkId));
+            return value != null ? value : defaultValue;
+        }
+    }
+
+    static XMPPConnection dummyConnection() {
+        return (XMPPConnection) Proxy.newProxyInstance(
+            XMPPConnection.class.getClassLoader(),
+            new Class<?>[] { XMPPConnection.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class)
+                        return false;
+                    if (type == int.class)
+                        return 0;
+                    if (type == long.class)
+                        return 0L;
+                    return null;
+                }
+            });
+    }
+
+    private static Result simulate(boolean perNetwork) {
+        SimulatedPingManager manager = new SimulatedPingManager(perNetwork);
+        Result result = new Result();
+
+        for (int day = 0; day < DAYS; day++) {
+            for (Object[] segment : DAY) {
+                Network network = (Network) segment[0];
+                long end = manager.mNow + (Long) segment[1];
+
+                // network switch: connection is recreated
+                manager.connected(network);
+
+                while (manager.mNextPing <= end) {
+                    long idle = manager.mNextPing - manager.mNow;
+                    manager.mNow = manager.mNextPing;
+                    result.pings++;
+
+                    if (idle <= network.natTimeout) {
+                        manager.pingSuccess();
+                    }
+                    else {
+                        result.failures++;
+                        if (day >= DAYS - 7)
+                            result.lastWeekFailures++;
+
+                        manager.pingFailed();
+                        // NAT mapping is gone: reconnect
+                        manager.connected(network);
+                    }
+                }
+
+                manager.mNow = end;
+            }
+        }
+
+        result.intervals = manager.mIntervals;
+        return result;
+    }
+
+    private static void assertLearned(Result result, Network network) {
+        long interval = result.intervals.get(network.id);
+        assertTrue(network.id + " interval above NAT timeout: " + interval,
+            interval <= network.natTimeout);
+        assertTrue(network.id + " interval too conservative: " + interval,
+            interval >= network.natTimeout / 2);
+    }
+
+    @Test
+    public void testPerNetworkIntervals() {
+        Result global = simulate(false);
+        Result perNetwork = simulate(true);
+
+        assertTrue(perNetwork.failures < global.failures);
+        assertTrue(perNetwork.lastWeekFailures < global.lastWeekFailures);
+
+        // every network converged to an interval within its NAT timeout
+        assertLearned(perNetwork, HOME);
+        assertLearned(perNetwork, MOBILE);
+        assertLearned(perNetwork, OFFICE);
+
+        // a single interval can't fit the mobile network too
+        assertEquals(1, global.intervals.size());
+        assertTrue(global.intervals.get("global") > MOBILE.natTimeout);
+    }
+
+    @Test
+    public void testDeterministic() {
+        Result first = simulate(true);
+        Result second = simulate(true);
+        assertEquals(first.pings, second.pings);
+        assertEquals(first.failures, second.failures);
+    }
+
+}
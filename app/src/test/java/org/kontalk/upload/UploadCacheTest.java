@@ -0,0 +1,59 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class UploadCacheTest {
+
+    private static final String HASH = "0123456789abcdef";
+
+    @Test
+    public void testPlainKeyIgnoresRecipients() {
+        assertEquals(
+            UploadCache.getKey(HASH, "image/jpeg", false, new String[] { "alice@example.com" }),
+            UploadCache.getKey(HASH, "image/jpeg", false, new String[] { "bob@example.com" }));
+    }
+
+    @Test
+    public void testEncryptedKeyRecipients() {
+        String[] recipients = { "alice@example.com", "bob@example.com" };
+        String key = UploadCache.getKey(HASH, "image/jpeg", true, recipients);
+        // order doesn't matter
+        assertEquals(key, UploadCache.getKey(HASH, "image/jpeg", true,
+            new String[] { "bob@example.com", "alice@example.com" }));
+        assertNotEquals(key, UploadCache.getKey(HASH, "image/jpeg", true,
+            new String[] { "alice@example.com" }));
+        // the given array must not be modified
+        assertEquals("alice@example.com", recipients[0]);
+    }
+
+    @Test
+    public void testKeyParameters() {
+        String[] recipients = { "alice@example.com" };
+        String key = UploadCache.getKey(HASH, "image/jpeg", false, recipients);
+        assertNotEquals(key, UploadCache.getKey(HASH, "image/jpeg", true, recipients));
+        assertNotEquals(key, UploadCache.getKey(HASH, "image/png", false, recipients));
+        assertNotEquals(key, UploadCache.getKey("fedcba9876543210", "image/jpeg", false, recipients));
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ImageEncoderTest {
+
+    /** Output size is 100 bytes per quality point. */
+    private static class FakeEncoder implements ImageEncoder.QualityEncoder {
+        final List<Integer> qualities = new ArrayList<>();
+
+        @Override
+        public byte[] encode(int quality) throws IOException {
+            qualities.add(quality);
+            return new byte[quality * 100];
+        }
+    }
+
+    @Test
+    public void testSampleSize() {
+        assertEquals(1, ImageEncoder.computeSampleSize(1000, 1000, 1000, 1000));
+        assertEquals(1, ImageEncoder.computeSampleSize(1000, 1000, 600, 600));
+        assertEquals(2, ImageEncoder.computeSampleSize(1000, 1000, 500, 500));
+        assertEquals(4, ImageEncoder.computeSampleSize(4000, 3000, 512, 384));
+        // never smaller than requested
+        assertEquals(2, ImageEncoder.computeSampleSize(4000, 3000, 512, 700));
+        // image smaller than requested
+        assertEquals(1, ImageEncoder.computeSampleSize(300, 200, 512, 512));
+        assertEquals(1, ImageEncoder.computeSampleSize(300, 200, 0, 0));
+    }
+
+    @Test
+    public void testMaxQualityFits() throws IOException {
+        FakeEncoder encoder = new FakeEncoder();
+        byte[] data = ImageEncoder.compress(encoder, 10000, 40, 85);
+        assertEquals(8500, data.length);
+        assertEquals(1, encoder.qualities.size());
+    }
+
+    @Test
+    public void testBinarySearch() throws IOException {
+        FakeEncoder encoder = new FakeEncoder();
+        byte[] data = ImageEncoder.compress(encoder, 6150, 40, 85);
+        assertEquals(6100, data.length);
+        // way fewer attempts than a linear search
+        assertTrue(encoder.qualities.size() <= 7);
+    }
+
+    @Test
+    public void testBudgetTooSmall() throws IOException {
+        FakeEncoder encoder = new FakeEncoder();
+        byte[] data = ImageEncoder.compress(encoder, 1000, 40, 85);
+        // minimum quality is used anyway
+        assertEquals(4000, data.length);
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class LatencyStatsTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyStats stats = new LatencyStats(10);
+        assertEquals(0, stats.size());
+        assertEquals(-1, stats.getPercentile(50));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyStats stats = new LatencyStats(100);
+        // add in reverse order to check sorting
+        for (int i = 100; i > 0; i--)
+            stats.add(i);
+
+        assertEquals(100, stats.size());
+        assertEquals(1, stats.getPercentile(0));
+        assertEquals(50, stats.getPercentile(50));
+        assertEquals(90, stats.getPercentile(90));
+        assertEquals(99, stats.getPercentile(99));
+        assertEquals(100, stats.getPercentile(100));
+    }
+
+    @Test
+    public void testWindow() {
+        LatencyStats stats = new LatencyStats(10);
+        for (int i = 0; i < 10; i++)
+            stats.add(1000);
+        // old samples are replaced by the new ones
+        for (int i = 0; i < 10; i++)
+            stats.add(10);
+
+        assertEquals(10, stats.size());
+        assertEquals(10, stats.getPercentile(99));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentile() {
+        new LatencyStats(10).getPercentile(101);
+    }
+
+}